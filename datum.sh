@@ -5,6 +5,18 @@ JAVA="java -Djava.util.logging.config.file=logging.properties"
 if [ "$1" = "import" ]; then
     shift
     $JAVA cc.vidr.datum.tools.Import "$@"
+elif [ "$1" = "benchmark" ]; then
+    shift
+    $JAVA cc.vidr.datum.tools.Benchmark "$@"
+elif [ "$1" = "snapshot" ]; then
+    shift
+    $JAVA cc.vidr.datum.tools.Snapshot "$@"
+elif [ "$1" = "lsmcheck" ]; then
+    shift
+    $JAVA cc.vidr.datum.tools.LSMCheck "$@"
+elif [ "$1" = "rulecheck" ]; then
+    shift
+    $JAVA cc.vidr.datum.tools.RuleIndexCheck "$@"
 else
-    $JAVA cc.vidr.datum.tools.Console
+    $JAVA cc.vidr.datum.tools.Console "$@"
 fi
@@ -0,0 +1,762 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The agenda of pending tasks to be performed by servers. Rather than
+ * servers calling each other directly, each step of the evaluation is added
+ * to the agenda, which is then drained in a loop. This keeps the stack depth
+ * constant regardless of the length of a derivation.
+ * 
+ * By default tasks are performed one at a time on the thread of the caller.
+ * In parallel mode they are instead performed concurrently on a shared pool
+ * of worker threads, with tasks that block on I/O (such as database and
+ * Freebase lookups) given a separate pool so that they do not hold up the
+ * workers. Either way, the caller waits until no tasks remain, i.e. until the
+ * global fixpoint has been reached.
+ * 
+ * Each task belongs to the frame of the evaluation which scheduled it. The
+ * first evaluation on a thread shares the root frame, whose callers wait for
+ * every task. An evaluation begun while the thread has another in progress,
+ * such as a blocking query made while a stream is open, is given a frame of
+ * its own and waits only for its own tasks; if it finds an incomplete table
+ * of an outer evaluation, it waits for the tasks of the outer frames too.
+ * In parallel mode, the tasks of a frame with an open stream are set aside
+ * while nobody waits for them, and resumed once the consumer of the stream
+ * asks for more, so that the workers never run far ahead of the consumer.
+ * 
+ * @author  David Roberts
+ */
+public final class Agenda {
+    /**
+     * The order in which tasks are taken from the agenda.
+     */
+    public enum Order {
+        /** Breadth-first: the oldest task is performed first */
+        FIFO,
+        /** Depth-first: the newest task is performed first */
+        LIFO
+    }
+    
+    /**
+     * The tasks of an evaluation, and of any evaluations nested in it which
+     * were abandoned. The fields are guarded by the lock on the agenda,
+     * except for the tables, which are guarded by the lock on the table
+     * manager.
+     */
+    static final class Frame {
+        /** The frame of the evaluation in progress when this one began */
+        private final Frame parent;
+        /** The pending tasks, if not in parallel mode */
+        private final Deque<Submission> tasks = new ArrayDeque<Submission>();
+        /** The tables created by the evaluation, unless in the root frame */
+        final List<Server> tables = new ArrayList<Server>();
+        /** The number of tasks scheduled but not yet performed */
+        private int pending = 0;
+        /** The number of threads waiting for the tasks of this frame */
+        private int waiters = 0;
+        /** The number of open streams over the evaluation */
+        private int streams = 0;
+        /** Does the evaluation need an incomplete table of an outer frame? */
+        private boolean dependent = false;
+        /** The frame this frame's tasks were passed on to, or null */
+        private volatile Frame merged = null;
+        
+        /**
+         * Create a new frame nested in the given frame.
+         * 
+         * @param parent  the outer frame, or null for the root frame
+         */
+        private Frame(Frame parent) {
+            this.parent = parent;
+        }
+        
+        /**
+         * Returns true iff this is the frame of a nested evaluation, rather
+         * than the root frame.
+         * 
+         * @return  true iff this is a nested frame
+         */
+        boolean isNested() {
+            return parent != null;
+        }
+        
+        /**
+         * Return the frame now holding the tasks of this frame.
+         * 
+         * @return  the frame
+         */
+        private Frame resolve() {
+            Frame frame = this;
+            while(frame.merged != null)
+                frame = frame.merged;
+            return frame;
+        }
+    }
+    
+    /** The frame shared by the first evaluation on each thread */
+    private static final Frame root = new Frame(null);
+    /** The frames of the evaluations in progress, the root frame first */
+    private static List<Frame> frames = new ArrayList<Frame>();
+    /** The frame of the evaluation or task in progress on each thread */
+    private static final ThreadLocal<Frame> current = new ThreadLocal<Frame>();
+    /** The order in which tasks are performed */
+    private static Order order = Order.FIFO;
+    /** Lock held while draining, so tasks are performed one at a time */
+    private static final Object drainLock = new Object();
+    /** The number of tasks performed so far */
+    private static long numTasks = 0;
+    /** The largest number of tasks that have been pending at once */
+    private static int peakSize = 0;
+    /** The pool of worker threads, or null if not in parallel mode */
+    private static ExecutorService workers = null;
+    /** The pool of threads for tasks which block on I/O */
+    private static ExecutorService blockingWorkers = null;
+    /** Creates the daemon threads used by the pools */
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "datum-agenda");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    /** The number of tasks scheduled but not yet performed */
+    private static int pending = 0;
+    /** The tasks set aside until somebody waits for their frame */
+    private static List<Submission> parked = new ArrayList<Submission>();
+    /** The first exception thrown by a task performed by the pools */
+    private static RuntimeException failure = null;
+    /** The number of threads waiting for the next task to be performed */
+    private static int waiters = 0;
+    /** Incremented whenever pending tasks are discarded */
+    private static volatile int generation = 0;
+    /** Are pending tasks being discarded? */
+    private static boolean discarding = false;
+    
+    static {
+        frames.add(root);
+    }
+    
+    /**
+     * Prevent instantiation.
+     */
+    private Agenda() {}
+    
+    /**
+     * Set the order in which tasks are performed.
+     * 
+     * @param order  the order
+     */
+    public static synchronized void setOrder(Order order) {
+        Agenda.order = order;
+    }
+    
+    /**
+     * Return the order in which tasks are performed.
+     * 
+     * @return  the order
+     */
+    public static synchronized Order getOrder() {
+        return order;
+    }
+    
+    /**
+     * Set the number of worker threads used to perform tasks. If greater than
+     * one, tasks are performed in parallel; otherwise they are performed on
+     * the thread of the caller. This should not be called while queries are
+     * being evaluated.
+     * 
+     * @param threads  the number of worker threads
+     */
+    public static synchronized void setParallelism(int threads) {
+        if(workers != null) {
+            workers.shutdown();
+            blockingWorkers.shutdown();
+            workers = blockingWorkers = null;
+        }
+        if(threads > 1) {
+            workers = new ThreadPoolExecutor(threads, threads,
+                    0, TimeUnit.MILLISECONDS, new TaskQueue(), threadFactory);
+            blockingWorkers = Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+    
+    /**
+     * Return the number of worker threads used to perform tasks.
+     * 
+     * @return  the number of worker threads, or 1 if not in parallel mode
+     */
+    public static synchronized int getParallelism() {
+        if(workers == null)
+            return 1;
+        return ((ThreadPoolExecutor) workers).getCorePoolSize();
+    }
+    
+    /**
+     * Return the number of tasks that have been performed.
+     * 
+     * @return  the number of tasks
+     */
+    public static synchronized long getNumTasks() {
+        return numTasks;
+    }
+    
+    /**
+     * Return the largest number of tasks that have been pending at once.
+     * 
+     * @return  the peak number of pending tasks
+     */
+    public static synchronized int getPeakSize() {
+        return peakSize;
+    }
+    
+    /**
+     * Return the frame of the evaluation or task in progress on this thread.
+     * 
+     * @return  the frame, or the root frame if there is none
+     */
+    static Frame getFrame() {
+        Frame frame = current.get();
+        return frame != null ? frame : root;
+    }
+    
+    /**
+     * Record the start of an evaluation on this thread: in the root frame if
+     * the thread has no other evaluation in progress, and otherwise in a new
+     * frame nested in that of the evaluation in progress.
+     * 
+     * @return  the frame of the evaluation
+     */
+    static synchronized Frame enter() {
+        Frame parent = current.get();
+        Frame frame = root;
+        if(parent != null) {
+            frame = new Frame(parent);
+            frames.add(frame);
+        }
+        current.set(frame);
+        return frame;
+    }
+    
+    /**
+     * Record the end of the evaluation with the given frame. The tasks left
+     * in a nested frame, if the evaluation was abandoned, are passed on to
+     * the outer frame.
+     * 
+     * @param frame  the frame
+     */
+    static synchronized void exit(Frame frame) {
+        if(current.get() == frame)
+            current.set(frame.parent);
+        if(!frame.isNested())
+            return;
+        frames.remove(frame);
+        Frame parent = frame.parent.resolve();
+        if(frame.pending > 0 && frame.dependent)
+            parent.dependent = true;
+        parent.tasks.addAll(frame.tasks);
+        parent.pending += frame.pending;
+        parent.streams += frame.streams;
+        frame.tasks.clear();
+        frame.pending = frame.streams = 0;
+        frame.merged = parent;
+        unpark();
+        Agenda.class.notifyAll();
+    }
+    
+    /**
+     * Record that the evaluation on this thread has found the given table,
+     * which was not created by it. If the evaluation is nested and the table
+     * is incomplete, the evaluation must also wait for the tasks of the outer
+     * frames. Must be called while holding the lock on the table manager.
+     * 
+     * @param server  the table
+     */
+    static synchronized void depend(Server server) {
+        Frame frame = getFrame().resolve();
+        if(!frame.isNested() || frame.dependent || server.complete
+        || server.frame == null || server.frame.resolve() == frame)
+            return;
+        frame.dependent = true;
+        // waiting threads must now wait for the outer frames too
+        Agenda.class.notifyAll();
+    }
+    
+    /**
+     * Record that a stream over the evaluation with the given frame has
+     * been opened. In parallel mode, the tasks of the frame are set aside
+     * while nobody waits for them.
+     * 
+     * @param frame  the frame
+     */
+    static synchronized void attach(Frame frame) {
+        frame.resolve().streams++;
+    }
+    
+    /**
+     * Record that a stream over the evaluation with the given frame has
+     * been closed.
+     * 
+     * @param frame  the frame
+     */
+    static synchronized void detach(Frame frame) {
+        frame.resolve().streams--;
+        unpark();
+    }
+    
+    /**
+     * Add the given task to the agenda.
+     * 
+     * @param task  the task
+     */
+    static void schedule(Runnable task) {
+        schedule(task, false);
+    }
+    
+    /**
+     * Add the given task, which may block on I/O, to the agenda.
+     * 
+     * @param task  the task
+     */
+    static void scheduleBlocking(Runnable task) {
+        schedule(task, true);
+    }
+    
+    /**
+     * Add the given task to the frame of the evaluation or task in progress
+     * on this thread.
+     * 
+     * @param task      the task
+     * @param blocking  true iff the task may block on I/O
+     */
+    private static synchronized void schedule(Runnable task,
+                                              boolean blocking) {
+        if(discarding)
+            return;
+        Frame frame = getFrame().resolve();
+        Submission submission = new Submission(task, frame, blocking);
+        frame.pending++;
+        if(++pending > peakSize)
+            peakSize = pending;
+        if(workers == null)
+            frame.tasks.addLast(submission);
+        else
+            submission.submit();
+    }
+    
+    /**
+     * Remove the next task to be performed for the given frame: one of its
+     * own, or if it is waiting for the outer frames, one of theirs. The root
+     * frame takes the tasks of every frame.
+     * 
+     * @param frame  the frame
+     * @return       the task, or null if there are none
+     */
+    private static synchronized Submission next(Frame frame) {
+        frame = frame.resolve();
+        while(frame.isNested()) {
+            if(!frame.tasks.isEmpty())
+                return poll(frame);
+            if(!frame.dependent)
+                return null;
+            frame = frame.parent.resolve();
+        }
+        for(Frame other : frames)
+            if(!other.tasks.isEmpty())
+                return poll(other);
+        return null;
+    }
+    
+    /**
+     * Remove the next task from the given non-empty frame.
+     * 
+     * @param frame  the frame
+     * @return       the task
+     */
+    private static Submission poll(Frame frame) {
+        Submission task = order == Order.FIFO
+                        ? frame.tasks.pollFirst() : frame.tasks.pollLast();
+        frame.pending--;
+        pending--;
+        numTasks++;
+        return task;
+    }
+    
+    /**
+     * Returns true iff no tasks remain which the evaluation with the given
+     * frame is waiting for. Must be called while holding the lock on this
+     * class.
+     * 
+     * @param frame  the frame
+     * @return       true iff the evaluation has reached its fixpoint
+     */
+    private static boolean isIdle(Frame frame) {
+        frame = frame.resolve();
+        while(frame.isNested()) {
+            if(frame.pending > 0)
+                return false;
+            if(!frame.dependent)
+                return true;
+            frame = frame.parent.resolve();
+        }
+        return pending == 0;
+    }
+    
+    /**
+     * Record that a task submitted to the pools has been performed.
+     * 
+     * @param task  the task
+     * @param e     the exception thrown by the task, or null
+     */
+    private static synchronized void done(Submission task,
+                                          RuntimeException e) {
+        numTasks++;
+        if(e != null && failure == null)
+            failure = e;
+        Frame frame = task.frame.resolve();
+        frame.pending--;
+        if(--pending == 0 || frame.pending == 0 || waiters > 0)
+            Agenda.class.notifyAll();
+    }
+    
+    /**
+     * Perform tasks until none remain for the evaluation in progress on this
+     * thread.
+     */
+    static void run() {
+        Frame frame = getFrame();
+        synchronized(Agenda.class) {
+            if(workers != null) {
+                awaitIdle(frame);
+                return;
+            }
+        }
+        synchronized(drainLock) {
+            Submission task;
+            while((task = next(frame)) != null)
+                task.perform();
+        }
+    }
+    
+    /**
+     * Perform a single task for the evaluation with the given frame. In
+     * parallel mode, instead wait until the pools have performed at least
+     * one more task, the given deadline passes, or a waiting thread is
+     * woken; the tasks of the frame set aside while nobody waited for them
+     * are resumed meanwhile.
+     * 
+     * @param frame     the frame
+     * @param deadline  the time to stop waiting, in milliseconds
+     * @return          false iff there were no tasks remaining
+     * @see             #wake()
+     */
+    static boolean step(Frame frame, long deadline) {
+        synchronized(Agenda.class) {
+            if(workers != null) {
+                if(isIdle(frame)) {
+                    rethrow();
+                    return false;
+                }
+                long performed = numTasks;
+                boolean interrupted = false;
+                List<Frame> demanded = demand(frame);
+                waiters++;
+                long now = System.currentTimeMillis();
+                if(!isIdle(frame) && numTasks == performed && now < deadline)
+                    try {
+                        // a cancelled query is woken early
+                        Agenda.class.wait(deadline == Long.MAX_VALUE
+                                          ? 0 : deadline - now);
+                    } catch(InterruptedException e) {
+                        interrupted = true;
+                    }
+                waiters--;
+                release(demanded);
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+                rethrow();
+                return true;
+            }
+        }
+        synchronized(drainLock) {
+            Submission task = next(frame);
+            if(task == null)
+                return false;
+            task.perform();
+            return true;
+        }
+    }
+    
+    /**
+     * Wake every thread waiting in {@link #step(Frame, long)}.
+     */
+    static synchronized void wake() {
+        if(waiters > 0)
+            Agenda.class.notifyAll();
+    }
+    
+    /**
+     * Discard every pending task. In parallel mode, tasks already being
+     * performed are allowed to finish first, but any tasks they schedule are
+     * discarded too.
+     */
+    static synchronized void discard() {
+        if(workers == null) {
+            for(Frame frame : frames) {
+                frame.tasks.clear();
+                frame.pending = 0;
+            }
+            pending = 0;
+            return;
+        }
+        generation++;
+        discarding = true;
+        try {
+            // tasks set aside are resumed, and skipped
+            unpark();
+            awaitFixpoint();
+        } catch(RuntimeException e) {
+            // the evaluation is being abandoned anyway
+        } finally {
+            discarding = false;
+        }
+    }
+    
+    /**
+     * Record that the calling thread waits for the tasks of the given frame,
+     * and of the outer frames it is waiting for, resuming any of them which
+     * were set aside. Must be called while holding the lock on this class.
+     * 
+     * @param frame  the frame
+     * @return       the frames waited for
+     */
+    private static List<Frame> demand(Frame frame) {
+        List<Frame> demanded = new ArrayList<Frame>();
+        frame = frame.resolve();
+        while(true) {
+            frame.waiters++;
+            demanded.add(frame);
+            if(!frame.isNested() || !frame.dependent)
+                break;
+            frame = frame.parent.resolve();
+        }
+        unpark();
+        return demanded;
+    }
+    
+    /**
+     * Record that the calling thread no longer waits for the given frames.
+     * Must be called while holding the lock on this class.
+     * 
+     * @param demanded  the frames returned by {@link #demand(Frame)}
+     */
+    private static void release(List<Frame> demanded) {
+        for(Frame frame : demanded)
+            frame.waiters--;
+    }
+    
+    /**
+     * Returns true iff the tasks of the given frame are to be set aside,
+     * because a stream is open over its evaluation and nobody waits for
+     * them. Must be called while holding the lock on this class.
+     * 
+     * @param frame  the frame
+     * @return       true iff the tasks of the frame are set aside
+     */
+    private static boolean isThrottled(Frame frame) {
+        return frame.streams > 0 && frame.waiters == 0 && root.waiters == 0
+            && !discarding;
+    }
+    
+    /**
+     * Set the given task aside if its frame is throttled.
+     * 
+     * @param task  the task
+     * @return      true iff the task was set aside
+     */
+    private static synchronized boolean park(Submission task) {
+        if(task.generation != generation
+        || !isThrottled(task.frame.resolve()))
+            return false;
+        parked.add(task);
+        return true;
+    }
+    
+    /**
+     * Resubmit the tasks set aside whose frames are no longer throttled.
+     * Must be called while holding the lock on this class.
+     */
+    private static void unpark() {
+        if(parked.isEmpty())
+            return;
+        List<Submission> resumed = parked;
+        parked = new ArrayList<Submission>();
+        for(Submission task : resumed)
+            if(isThrottled(task.frame.resolve()))
+                parked.add(task);
+            else
+                task.submit();
+    }
+    
+    /**
+     * Wait until no tasks remain which the evaluation with the given frame
+     * is waiting for. Must be called while holding the lock on this class.
+     * 
+     * @param frame  the frame
+     */
+    private static void awaitIdle(Frame frame) {
+        boolean interrupted = false;
+        while(!isIdle(frame)) {
+            // the frames waited for change if the evaluation finds an
+            // incomplete table of an outer frame
+            List<Frame> demanded = demand(frame);
+            try {
+                Agenda.class.wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            } finally {
+                release(demanded);
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        rethrow();
+    }
+    
+    /**
+     * Wait until every task submitted to the pools has been performed. Must
+     * be called while holding the lock on this class.
+     */
+    private static void awaitFixpoint() {
+        boolean interrupted = false;
+        while(pending > 0)
+            try {
+                Agenda.class.wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        rethrow();
+    }
+    
+    /**
+     * Throw the first exception thrown by a task performed by the pools, if
+     * any. Must be called while holding the lock on this class.
+     */
+    private static void rethrow() {
+        if(failure != null) {
+            RuntimeException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+    
+    /**
+     * A task scheduled in a frame.
+     */
+    private static class Submission implements Runnable {
+        /** The task to be performed */
+        private final Runnable task;
+        /** The frame of the task */
+        private final Frame frame;
+        /** Does the task block on I/O? */
+        private final boolean blocking;
+        /** The generation of tasks this task belongs to */
+        private final int generation = Agenda.generation;
+        
+        /**
+         * Wrap the given task.
+         * 
+         * @param task      the task
+         * @param frame     the frame of the task
+         * @param blocking  true iff the task may block on I/O
+         */
+        public Submission(Runnable task, Frame frame, boolean blocking) {
+            this.task = task;
+            this.frame = frame;
+            this.blocking = blocking;
+        }
+        
+        /**
+         * Submit this task to the pool it belongs to. Must be called while
+         * holding the lock on the agenda.
+         */
+        private void submit() {
+            try {
+                (blocking ? blockingWorkers : workers).execute(this);
+            } catch(RejectedExecutionException e) {
+                // the pools were shut down by setParallelism
+                done(this, null);
+            }
+        }
+        
+        /**
+         * Perform the task, in its frame, unless it has been discarded.
+         */
+        private void perform() {
+            Frame previous = current.get();
+            // tasks scheduled by the task belong to the same frame
+            current.set(frame.resolve());
+            try {
+                if(generation == Agenda.generation)
+                    task.run();
+            } finally {
+                current.set(previous);
+            }
+        }
+        
+        public void run() {
+            if(park(this))
+                return;
+            RuntimeException exception = null;
+            try {
+                perform();
+            } catch(RuntimeException e) {
+                exception = e;
+            } finally {
+                done(this, exception);
+            }
+        }
+    }
+    
+    /**
+     * The work queue of the worker pool, which hands out tasks in the order
+     * chosen for the agenda.
+     */
+    @SuppressWarnings("serial")
+    private static class TaskQueue extends LinkedBlockingDeque<Runnable> {
+        public boolean offer(Runnable task) {
+            if(getOrder() == Order.LIFO)
+                return offerFirst(task);
+            return offerLast(task);
+        }
+    }
+}
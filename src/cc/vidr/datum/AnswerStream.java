@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A blocking iterator over the facts matching one or more goals, which
+ * returns each fact as soon as it has been found rather than once every
+ * fact has been found.
+ * 
+ * Evaluation is driven by the consumer: when no unreturned fact is
+ * available, the iterator performs tasks from the agenda until one is, so
+ * evaluation never runs far ahead of the consumer. In parallel mode the
+ * workers perform the tasks instead, and the iterator waits for them to find
+ * the next fact; while the consumer is not waiting, the tasks of the stream
+ * are set aside until it next asks for a fact. The stream ends early if a
+ * limit in its query options is reached. The stream must be closed once it
+ * is no longer needed; closing it before it has ended abandons the
+ * evaluation.
+ * 
+ * A blocking query made by the consumer while the stream is open (such as
+ * {@link Server#query(Literal)}) is evaluated in a frame of its own on the
+ * agenda, so it does not run the evaluation of the stream to the fixpoint,
+ * unless it needs one of the stream's tables which is not yet complete.
+ * 
+ * @author  David Roberts
+ * @see     Server#stream(Literal...)
+ */
+public final class AnswerStream implements Iterator<Literal> {
+    /** The servers for the goals */
+    private final List<Server> servers;
+    /** The limits on the query */
+    private final QueryOptions options;
+    /** The frame of the evaluation on the agenda */
+    private final Agenda.Frame frame;
+    /** The number of answers of each server which have been buffered */
+    private final int[] cursors;
+    /** The facts found but not yet returned */
+    private LinkedList<Literal> buffer = new LinkedList<Literal>();
+    /** The facts found so far */
+    private Set<Literal> seen = new HashSet<Literal>();
+    /** The time at which the stream was opened, in nanoseconds */
+    private final long startTime = System.nanoTime();
+    /** The time taken to find the first fact, in nanoseconds */
+    private long firstAnswerTime = -1;
+    /** The number of facts returned so far */
+    private int numReturned = 0;
+    /** Has the agenda run out of tasks? */
+    private boolean exhausted = false;
+    /** Did the stream end because a limit was reached? */
+    private boolean truncated = false;
+    /** Has the stream been closed? */
+    private boolean closed = false;
+    
+    /**
+     * Create a new stream over the answers of the given servers. The caller
+     * must have recorded the start of an evaluation with the table manager,
+     * with the deadline from the given options.
+     * 
+     * @param servers  the servers
+     * @param options  the limits on the query
+     * @param frame    the frame of the evaluation on the agenda
+     */
+    AnswerStream(List<Server> servers, QueryOptions options,
+                 Agenda.Frame frame) {
+        this.servers = servers;
+        this.options = options;
+        this.frame = frame;
+        this.cursors = new int[servers.size()];
+        Agenda.attach(frame);
+    }
+    
+    public boolean hasNext() {
+        if(!closed && numReturned >= options.getMaxAnswers()) {
+            truncated = !exhausted || !buffer.isEmpty() || poll();
+            close();
+        }
+        while(buffer.isEmpty()) {
+            if(closed)
+                return false;
+            if(poll())
+                break;
+            if(exhausted) {
+                close();
+                return false;
+            }
+            if(options.isExpired()) {
+                truncated = true;
+                close();
+                return false;
+            }
+            exhausted = !Agenda.step(frame, options.getDeadline());
+        }
+        return true;
+    }
+    
+    public Literal next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        numReturned++;
+        return buffer.removeFirst();
+    }
+    
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Close this stream, discarding any facts which have not been returned.
+     * If the evaluation had not finished, it is abandoned and the tables it
+     * left incomplete are discarded. Has no effect if the stream is already
+     * closed.
+     */
+    public void close() {
+        if(closed)
+            return;
+        closed = true;
+        buffer.clear();
+        Agenda.detach(frame);
+        TableManager.end(options, frame, !exhausted);
+    }
+    
+    /**
+     * Returns true iff this stream ended because a limit in its query
+     * options was reached, so there may be further facts which were not
+     * returned.
+     * 
+     * @return  true iff the facts returned may be incomplete
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
+    /**
+     * Return the time taken to find the first fact.
+     * 
+     * @return  the time in nanoseconds, or -1 if no fact has been found
+     */
+    public long getFirstAnswerTime() {
+        return firstAnswerTime;
+    }
+    
+    /**
+     * Move any newly found facts into the buffer.
+     * 
+     * @return  true iff any new facts were found
+     */
+    private boolean poll() {
+        boolean found = false;
+        for(int i = 0; i < servers.size(); i++)
+            for(Literal fact : servers.get(i).getAnswers(cursors[i])) {
+                cursors[i]++;
+                if(fact != null && seen.add(fact)) {
+                    buffer.addLast(fact);
+                    found = true;
+                }
+            }
+        if(found && firstAnswerTime < 0)
+            firstAnswerTime = System.nanoTime() - startTime;
+        return found;
+    }
+}
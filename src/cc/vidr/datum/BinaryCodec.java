@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import cc.vidr.datum.term.Atom;
+import cc.vidr.datum.term.DateTimeTerm;
+import cc.vidr.datum.term.FloatTerm;
+import cc.vidr.datum.term.IntegerTerm;
+import cc.vidr.datum.term.Measurement;
+import cc.vidr.datum.term.StringTerm;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.TermDictionary;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * A compact binary encoding of literals and clauses, used to store them.
+ * 
+ * An encoding starts with a version byte. A literal is encoded as the name
+ * of its predicate, its arity, and then each argument as a one-byte type tag
+ * followed by its value. Lengths and integers are written as variable-length
+ * integers, and strings as UTF-8. Each distinct constant is written in full
+ * the first time it occurs, and afterwards as a reference to that first
+ * occurrence; variables are numbered in order of first occurrence. A clause
+ * is encoded as its body length followed by its head and conditions, and a
+ * constant on its own as its type tag and value.
+ * 
+ * Decoding a literal against a goal stops at the first argument which does
+ * not match the goal, so stored facts which do not match are never fully
+ * decoded. The constants of decoded literals are interned in the term
+ * dictionary, unless they are only held for a while, as when a log is
+ * replayed.
+ * 
+ * @author  David Roberts
+ */
+public final class BinaryCodec {
+    /** The version of the encoding */
+    private static final int VERSION = 1;
+    /** The character set of strings */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** Type tag of a variable */
+    private static final int VARIABLE = 0;
+    /** Type tag of a reference to an earlier constant */
+    private static final int REFERENCE = 1;
+    /** Type tag of an atom */
+    private static final int ATOM = 2;
+    /** Type tag of a string */
+    private static final int STRING = 3;
+    /** Type tag of an integer */
+    private static final int INTEGER = 4;
+    /** Type tag of a floating point number */
+    private static final int FLOAT = 5;
+    /** Type tag of a datetime */
+    private static final int DATETIME = 6;
+    /** Type tag of a measurement */
+    private static final int MEASUREMENT = 7;
+    
+    /**
+     * Prevent instantiation.
+     */
+    private BinaryCodec() {}
+    
+    /**
+     * Encode the given literal.
+     * 
+     * @param literal  the literal
+     * @return         the encoding
+     * @throws         IllegalArgumentException if the literal contains a
+     *                 term of an unknown type
+     */
+    public static byte[] encode(Literal literal) {
+        Encoder encoder = new Encoder();
+        encoder.writeLiteral(literal);
+        return encoder.toByteArray();
+    }
+    
+    /**
+     * Encode the given clause.
+     * 
+     * @param clause  the clause
+     * @return        the encoding
+     * @throws        IllegalArgumentException if the clause contains a term
+     *                of an unknown type
+     */
+    public static byte[] encode(Clause clause) {
+        Encoder encoder = new Encoder();
+        encoder.writeVarint(clause.getBodyLength());
+        encoder.writeLiteral(clause.getHead());
+        for(int i = 0; i < clause.getBodyLength(); i++)
+            encoder.writeLiteral(clause.getCondition(i));
+        return encoder.toByteArray();
+    }
+    
+    /**
+     * Encode the given constant. Equal constants have equal encodings.
+     * 
+     * @param term  the constant
+     * @return      the encoding
+     * @throws      IllegalArgumentException if the term is a variable or of
+     *              an unknown type
+     */
+    public static byte[] encode(Term term) {
+        if(term.isVariable())
+            throw new IllegalArgumentException("Cannot encode variable");
+        Encoder encoder = new Encoder();
+        encoder.writeTerm(term);
+        return encoder.toByteArray();
+    }
+    
+    /**
+     * Decode the given encoding of a literal.
+     * 
+     * @param data  the encoding
+     * @return      the literal
+     * @throws      IllegalArgumentException if the encoding is malformed or
+     *              of an unsupported version
+     */
+    public static Literal decodeLiteral(byte[] data) {
+        return decodeLiteral(data, null);
+    }
+    
+    /**
+     * Decode the given encoding of a literal if the literal matches the
+     * constants of the given goal. Arguments which are variables in the goal
+     * are not checked, so the caller must still unify the result with the
+     * goal if the goal repeats a variable.
+     * 
+     * @param data  the encoding
+     * @param goal  the goal, or null to decode the literal regardless
+     * @return      the literal, or null if it does not match the goal
+     * @throws      IllegalArgumentException if the encoding is malformed or
+     *              of an unsupported version
+     */
+    public static Literal decodeLiteral(byte[] data, Literal goal) {
+        return new Decoder(data).readLiteral(goal);
+    }
+    
+    /**
+     * Decode the given encoding of a literal without interning its
+     * constants in the term dictionary, which only grows.
+     * 
+     * @param data  the encoding
+     * @return      the literal
+     * @throws      IllegalArgumentException if the encoding is malformed or
+     *              of an unsupported version
+     */
+    public static Literal decodeLiteralUninterned(byte[] data) {
+        Decoder decoder = new Decoder(data);
+        decoder.intern = false;
+        return decoder.readLiteral(null);
+    }
+    
+    /**
+     * Decode the given encoding of a constant.
+     * 
+     * @param data  the encoding
+     * @return      the constant
+     * @throws      IllegalArgumentException if the encoding is malformed or
+     *              of an unsupported version
+     */
+    public static Term decodeTerm(byte[] data) {
+        return new Decoder(data).readTerm();
+    }
+    
+    /**
+     * Decode the given encoding of a clause.
+     * 
+     * @param data  the encoding
+     * @return      the clause, with new variables
+     * @throws      IllegalArgumentException if the encoding is malformed or
+     *              of an unsupported version
+     */
+    public static Clause decodeClause(byte[] data) {
+        Decoder decoder = new Decoder(data);
+        Literal[] body = new Literal[decoder.readVarint()];
+        Literal head = decoder.readLiteral(null);
+        for(int i = 0; i < body.length; i++)
+            body[i] = decoder.readLiteral(null);
+        return new Clause(head, body);
+    }
+    
+    /**
+     * Writes an encoding into a growable array of bytes.
+     */
+    private static final class Encoder {
+        /** The bytes written so far, followed by unused space */
+        private byte[] bytes = new byte[64];
+        /** The number of bytes written */
+        private int length = 0;
+        /** The index of each constant written so far */
+        private final Map<Term, Integer> constants =
+            new HashMap<Term, Integer>();
+        /** The number of each variable written so far */
+        private final Map<Variable, Integer> variables =
+            new HashMap<Variable, Integer>();
+        
+        /**
+         * Create a new encoder, and write the version.
+         */
+        Encoder() {
+            writeByte(VERSION);
+        }
+        
+        /**
+         * Return the bytes written so far.
+         * 
+         * @return  the encoding
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+        
+        /**
+         * Write the given literal.
+         * 
+         * @param literal  the literal
+         */
+        void writeLiteral(Literal literal) {
+            writeString(literal.getPredicateName());
+            writeVarint(literal.getArity());
+            for(int i = 0; i < literal.getArity(); i++)
+                writeTerm(literal.getArgument(i));
+        }
+        
+        /**
+         * Write the given term, or a reference to it if it is a constant
+         * which has already been written.
+         * 
+         * @param term  the term
+         */
+        void writeTerm(Term term) {
+            if(term instanceof Variable) {
+                Integer number = variables.get(term);
+                if(number == null) {
+                    number = variables.size();
+                    variables.put((Variable) term, number);
+                }
+                writeByte(VARIABLE);
+                writeVarint(number);
+                return;
+            }
+            Integer index = constants.get(term);
+            if(index != null) {
+                writeByte(REFERENCE);
+                writeVarint(index);
+                return;
+            }
+            constants.put(term, constants.size());
+            if(term instanceof Atom) {
+                writeByte(ATOM);
+                writeString(((Atom) term).getValue());
+            } else if(term instanceof StringTerm) {
+                writeByte(STRING);
+                writeString(((StringTerm) term).getValue());
+            } else if(term instanceof IntegerTerm) {
+                long value = ((IntegerTerm) term).getValue();
+                writeByte(INTEGER);
+                writeVarlong((value << 1) ^ (value >> 63));
+            } else if(term instanceof FloatTerm) {
+                writeByte(FLOAT);
+                writeDouble(((FloatTerm) term).getValue());
+            } else if(term instanceof DateTimeTerm) {
+                DateTime value = ((DateTimeTerm) term).getValue();
+                long millis = value.getMillis();
+                writeByte(DATETIME);
+                writeVarlong((millis << 1) ^ (millis >> 63));
+                writeString(value.getZone().getID());
+            } else if(term instanceof Measurement) {
+                Measurement measurement = (Measurement) term;
+                writeByte(MEASUREMENT);
+                writeDouble(measurement.getValue());
+                writeString(measurement.getUnit().getValue());
+            } else {
+                throw new IllegalArgumentException(
+                        "Cannot encode term: " + term);
+            }
+        }
+        
+        /**
+         * Write the given string, preceded by its length.
+         * 
+         * @param string  the string
+         */
+        void writeString(String string) {
+            byte[] encoded = string.getBytes(UTF8);
+            writeVarint(encoded.length);
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+        
+        /**
+         * Write the given double as eight bytes, most significant first.
+         * 
+         * @param value  the double
+         */
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for(int shift = 56; shift >= 0; shift -= 8)
+                writeByte((int) (bits >>> shift));
+        }
+        
+        /**
+         * Write the given non-negative int as a variable-length integer.
+         * 
+         * @param value  the int
+         */
+        void writeVarint(int value) {
+            writeVarlong(value & 0xffffffffL);
+        }
+        
+        /**
+         * Write the given long as a variable-length integer, seven bits at a
+         * time, least significant first.
+         * 
+         * @param value  the long
+         */
+        void writeVarlong(long value) {
+            while((value & ~0x7fL) != 0) {
+                writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+        
+        /**
+         * Write the low eight bits of the given int.
+         * 
+         * @param b  the byte
+         */
+        void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+        
+        /**
+         * Make room for the given number of bytes.
+         * 
+         * @param extra  the number of bytes
+         */
+        private void ensureCapacity(int extra) {
+            if(length + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(2 * bytes.length, length + extra));
+        }
+    }
+    
+    /**
+     * Reads an encoding from an array of bytes.
+     */
+    private static final class Decoder {
+        /** The encoding */
+        private final byte[] bytes;
+        /** The position of the next byte to be read */
+        private int position = 0;
+        /** The constants read so far, in order */
+        private final List<Term> constants = new ArrayList<Term>();
+        /** The variables read so far, in order of number */
+        private final List<Variable> variables = new ArrayList<Variable>();
+        /** Are the constants of literals interned in the term dictionary? */
+        private boolean intern = true;
+        
+        /**
+         * Create a new decoder for the given encoding, and check its
+         * version.
+         * 
+         * @param bytes  the encoding
+         */
+        Decoder(byte[] bytes) {
+            this.bytes = bytes;
+            int version = readByte();
+            if(version != VERSION)
+                throw new IllegalArgumentException(
+                        "Unsupported encoding version: " + version);
+        }
+        
+        /**
+         * Read a literal, giving up as soon as it fails to match the given
+         * goal.
+         * 
+         * @param goal  the goal, or null
+         * @return      the literal, or null if it does not match the goal
+         */
+        Literal readLiteral(Literal goal) {
+            String name = readString();
+            Predicate predicate = Predicate.get(name, readVarint());
+            if(goal != null && predicate != goal.getPredicateSymbol())
+                return null;
+            Term[] arguments = new Term[predicate.getArity()];
+            for(int i = 0; i < arguments.length; i++) {
+                Term argument = readTerm();
+                if(goal != null && !goal.getArgument(i).isVariable()
+                && !goal.getArgument(i).equals(argument))
+                    return null;
+                arguments[i] = argument;
+            }
+            if(intern)
+                TermDictionary.intern(arguments);
+            return new Literal(predicate, arguments);
+        }
+        
+        /**
+         * Read a term.
+         * 
+         * @return  the term
+         */
+        Term readTerm() {
+            int tag = readByte();
+            switch(tag) {
+            case VARIABLE:
+                int number = readVarint();
+                while(variables.size() <= number)
+                    variables.add(new Variable());
+                return variables.get(number);
+            case REFERENCE:
+                return constants.get(readVarint());
+            }
+            Term term;
+            switch(tag) {
+            case ATOM:
+                term = new Atom(readString());
+                break;
+            case STRING:
+                term = new StringTerm(readString());
+                break;
+            case INTEGER:
+                long value = readVarlong();
+                term = new IntegerTerm((value >>> 1) ^ -(value & 1));
+                break;
+            case FLOAT:
+                term = new FloatTerm(readDouble());
+                break;
+            case DATETIME:
+                long millis = readVarlong();
+                millis = (millis >>> 1) ^ -(millis & 1);
+                term = new DateTimeTerm(new DateTime(millis,
+                        DateTimeZone.forID(readString())));
+                break;
+            case MEASUREMENT:
+                double magnitude = readDouble();
+                term = new Measurement(magnitude, new Atom(readString()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type tag: " + tag);
+            }
+            constants.add(term);
+            return term;
+        }
+        
+        /**
+         * Read a string preceded by its length.
+         * 
+         * @return  the string
+         */
+        String readString() {
+            int length = readVarint();
+            if(length > bytes.length - position)
+                throw new IllegalArgumentException("Truncated encoding");
+            String string = new String(bytes, position, length, UTF8);
+            position += length;
+            return string;
+        }
+        
+        /**
+         * Read a double written as eight bytes.
+         * 
+         * @return  the double
+         */
+        double readDouble() {
+            long bits = 0;
+            for(int i = 0; i < 8; i++)
+                bits = (bits << 8) | readByte();
+            return Double.longBitsToDouble(bits);
+        }
+        
+        /**
+         * Read a variable-length int.
+         * 
+         * @return  the int
+         */
+        int readVarint() {
+            return (int) readVarlong();
+        }
+        
+        /**
+         * Read a variable-length long.
+         * 
+         * @return  the long
+         */
+        long readVarlong() {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("Malformed variable-length "
+                                               + "integer");
+        }
+        
+        /**
+         * Read an unsigned byte.
+         * 
+         * @return  the byte
+         */
+        int readByte() {
+            if(position >= bytes.length)
+                throw new IllegalArgumentException("Truncated encoding");
+            return bytes[position++] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.Arrays;
+
+import cc.vidr.datum.term.Term;
+
+/**
+ * A register file of variable bindings, indexed by the slots of a compiled
+ * clause. A trail records the order in which slots were bound, so that the
+ * bindings made since a given mark can be undone and the register file
+ * reused without allocating.
+ * 
+ * @author  David Roberts
+ * @see     CompiledClause
+ */
+public final class Bindings {
+    /** The term bound to each slot, or null if the slot is unbound */
+    private Term[] slots;
+    /** The slots in the order they were bound */
+    private int[] trail;
+    /** The number of slots on the trail */
+    private int top = 0;
+    
+    /**
+     * Create a new register file with the given number of slots, all of them
+     * unbound.
+     * 
+     * @param size  the number of slots
+     */
+    public Bindings(int size) {
+        slots = new Term[size];
+        trail = new int[size];
+    }
+    
+    /**
+     * Unbind every slot, and make sure there are at least the given number
+     * of slots.
+     * 
+     * @param size  the number of slots
+     */
+    public void reset(int size) {
+        undo(0);
+        if(slots.length < size) {
+            slots = new Term[size];
+            trail = new int[size];
+        }
+    }
+    
+    /**
+     * Unbind every slot, and then bind each slot to the corresponding term
+     * of the given array, leaving the slots of null entries unbound.
+     * 
+     * @param terms  the terms
+     */
+    public void load(Term[] terms) {
+        reset(terms.length);
+        for(int slot = 0; slot < terms.length; slot++)
+            if(terms[slot] != null)
+                bind(slot, terms[slot]);
+    }
+    
+    /**
+     * Return the terms bound to the given number of slots, with null for
+     * unbound slots.
+     * 
+     * @param size  the number of slots
+     * @return      the array of terms
+     */
+    public Term[] save(int size) {
+        return Arrays.copyOf(slots, size);
+    }
+    
+    /**
+     * Return the term bound to the given slot.
+     * 
+     * @param slot  the slot
+     * @return      the term, or null if the slot is unbound
+     */
+    public Term get(int slot) {
+        return slots[slot];
+    }
+    
+    /**
+     * Bind the given unbound slot to the given term.
+     * 
+     * @param slot  the slot
+     * @param term  the term
+     */
+    public void bind(int slot, Term term) {
+        slots[slot] = term;
+        trail[top++] = slot;
+    }
+    
+    /**
+     * Return a mark which can later be passed to {@link #undo(int)}.
+     * 
+     * @return  the mark
+     */
+    public int mark() {
+        return top;
+    }
+    
+    /**
+     * Unbind every slot bound since the given mark was made.
+     * 
+     * @param mark  the mark
+     */
+    public void undo(int mark) {
+        while(top > mark)
+            slots[trail[--top]] = null;
+    }
+    
+    public String toString() {
+        return Arrays.toString(slots);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+/**
+ * A token which can be used to cancel one or more queries from another
+ * thread. Cancellation is cooperative: a query checks its token between
+ * steps of the evaluation, and builtins check it while waiting on I/O, and
+ * the query stops with the facts found so far.
+ * 
+ * @author  David Roberts
+ * @see     QueryOptions#setCancellation(Cancellation)
+ */
+public final class Cancellation {
+    /** Has cancellation been requested? */
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Request cancellation of the queries using this token.
+     */
+    public void cancel() {
+        cancelled = true;
+        Agenda.wake();
+    }
+    
+    /**
+     * Returns true iff cancellation has been requested.
+     * 
+     * @return  true iff cancellation has been requested
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -36,6 +36,10 @@ public final class Clause implements Serializable {
     private Literal head;
     /** The literals comprising the body of the clause */
     private Literal[] body;
+    /** The variant key of the clause, computed when first needed */
+    private transient VariantKey variantKey;
+    /** The compiled form of the clause, computed when first needed */
+    private transient CompiledClause compiled;
     
     /**
      * Create a new clause with the given head and body.
@@ -67,6 +71,15 @@ public final class Clause implements Serializable {
         return body[i];
     }
     
+    /**
+     * Returns the number of conditions in the body of this clause.
+     * 
+     * @return  the number of conditions
+     */
+    public int getBodyLength() {
+        return body.length;
+    }
+    
     /**
      * Return the variant tag for this clause.
      * 
@@ -87,6 +100,37 @@ public final class Clause implements Serializable {
         return builder.toString();
     }
     
+    /**
+     * Return the variant key for this clause.
+     * 
+     * Two clauses have equal variant keys iff they are alphabetic variants
+     * of each other. The variant key of a fact is equal to the variant key of
+     * its head.
+     * 
+     * @return  the variant key
+     */
+    public VariantKey getVariantKey() {
+        if(variantKey == null) {
+            Literal[] literals = new Literal[body.length + 1];
+            literals[0] = head;
+            System.arraycopy(body, 0, literals, 1, body.length);
+            variantKey = new VariantKey(literals);
+        }
+        return variantKey;
+    }
+    
+    /**
+     * Return the compiled form of this clause, in which its variables are
+     * numbered with slots.
+     * 
+     * @return  the compiled clause
+     */
+    public CompiledClause compile() {
+        if(compiled == null)
+            compiled = new CompiledClause(this);
+        return compiled;
+    }
+    
     /**
      * Return a clause identical to this one, but missing the first condition
      * in the body.
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * A clause compiled for fast resolution against facts. Each variable of the
+ * clause is numbered with a slot, in order of first occurrence, so that
+ * bindings can be held in a {@link Bindings} register file rather than in a
+ * substitution.
+ * 
+ * Literals are numbered from zero for the head, with the i'th condition in
+ * the body numbered i + 1.
+ * 
+ * @author  David Roberts
+ * @see     Clause#compile()
+ */
+public final class CompiledClause {
+    /** The clause */
+    private final Clause clause;
+    /** The predicate of each literal */
+    private final Predicate[] predicates;
+    /** The constant arguments of each literal, or null for variables */
+    private final Term[][] constants;
+    /** The slot of each variable argument of each literal, or -1 */
+    private final int[][] slots;
+    /** The variable numbered with each slot */
+    private final Variable[] variables;
+    
+    /**
+     * Compile the given clause.
+     * 
+     * @param clause  the clause
+     */
+    CompiledClause(Clause clause) {
+        this.clause = clause;
+        int length = clause.getBodyLength() + 1;
+        predicates = new Predicate[length];
+        constants = new Term[length][];
+        slots = new int[length][];
+        List<Variable> list = new ArrayList<Variable>();
+        for(int n = 0; n < length; n++) {
+            Literal literal = n == 0 ? clause.getHead()
+                                     : clause.getCondition(n - 1);
+            predicates[n] = literal.getPredicateSymbol();
+            constants[n] = new Term[literal.getArity()];
+            slots[n] = new int[literal.getArity()];
+            for(int i = 0; i < literal.getArity(); i++) {
+                Term argument = literal.getArgument(i);
+                if(argument instanceof Variable) {
+                    int slot = list.indexOf(argument);
+                    if(slot < 0) {
+                        slot = list.size();
+                        list.add((Variable) argument);
+                    }
+                    slots[n][i] = slot;
+                } else {
+                    constants[n][i] = argument;
+                    slots[n][i] = -1;
+                }
+            }
+        }
+        variables = list.toArray(new Variable[0]);
+    }
+    
+    /**
+     * Return the variant key of the clause.
+     * 
+     * @return  the variant key
+     */
+    public VariantKey getVariantKey() {
+        return clause.getVariantKey();
+    }
+    
+    /**
+     * Return the number of slots, i.e. the number of distinct variables.
+     * 
+     * @return  the number of slots
+     */
+    public int getNumSlots() {
+        return variables.length;
+    }
+    
+    /**
+     * Returns the number of conditions in the body of the clause.
+     * 
+     * @return  the number of conditions
+     */
+    public int getBodyLength() {
+        return predicates.length - 1;
+    }
+    
+    /**
+     * Match the given literal of the clause against the given ground fact,
+     * binding the slots of the variables it contains. If the fact does not
+     * match, some slots may have been bound before the mismatch was found,
+     * so the caller should undo the bindings to a mark made beforehand.
+     * 
+     * @param n         the number of the literal
+     * @param fact      the ground fact
+     * @param bindings  the bindings so far
+     * @return          true iff the fact matches the literal
+     */
+    public boolean match(int n, Literal fact, Bindings bindings) {
+        if(predicates[n] != fact.getPredicateSymbol())
+            return false;
+        Term[] literalConstants = constants[n];
+        int[] literalSlots = slots[n];
+        for(int i = 0; i < literalSlots.length; i++) {
+            Term argument = fact.getArgument(i);
+            int slot = literalSlots[i];
+            if(slot < 0) {
+                if(!literalConstants[i].equals(argument))
+                    return false;
+            } else {
+                Term bound = bindings.get(slot);
+                if(bound == null)
+                    bindings.bind(slot, argument);
+                else if(!bound.equals(argument))
+                    return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Build the given literal of the clause with its bound slots replaced by
+     * their terms. Unbound slots are left as the variables of the clause.
+     * 
+     * @param n         the number of the literal
+     * @param bindings  the bindings
+     * @return          the literal
+     */
+    public Literal build(int n, Bindings bindings) {
+        return build(n, bindings, null);
+    }
+    
+    /**
+     * Build the given literal of the clause with the slots bound to the
+     * given terms replaced by those terms.
+     * 
+     * @param n      the number of the literal
+     * @param terms  the term bound to each slot, or null if it is unbound
+     * @return       the literal
+     */
+    Literal build(int n, Term[] terms) {
+        return build(n, null, terms);
+    }
+    
+    /**
+     * Build the given literal of the clause, taking the bound terms from
+     * either the given register file or the given array.
+     * 
+     * @param n         the number of the literal
+     * @param bindings  the bindings, or null to use the array
+     * @param terms     the term bound to each slot
+     * @return          the literal
+     */
+    private Literal build(int n, Bindings bindings, Term[] terms) {
+        Term[] literalConstants = constants[n];
+        int[] literalSlots = slots[n];
+        Term[] arguments = new Term[literalSlots.length];
+        for(int i = 0; i < arguments.length; i++) {
+            int slot = literalSlots[i];
+            if(slot < 0) {
+                arguments[i] = literalConstants[i];
+            } else {
+                Term bound = bindings != null ? bindings.get(slot)
+                                              : terms[slot];
+                arguments[i] = bound != null ? bound : variables[slot];
+            }
+        }
+        return Literal.unchecked(predicates[n], arguments);
+    }
+}
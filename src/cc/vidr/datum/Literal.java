@@ -19,6 +19,8 @@ package cc.vidr.datum;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,6 +29,7 @@ import java.util.Map;
 import java.util.Set;
 
 import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.TermDictionary;
 import cc.vidr.datum.term.Variable;
 
 /**
@@ -36,10 +39,17 @@ import cc.vidr.datum.term.Variable;
  */
 public final class Literal implements Serializable {
     private static final long serialVersionUID = -94014254982764756L;
-    /** The predicate name/arity */
-    private String predicate;
+    /** The serialized form, which stores the predicate by name/arity */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("predicate", String.class),
+        new ObjectStreamField("arguments", Term[].class)
+    };
+    /** The predicate */
+    private transient Predicate predicate;
     /** The arguments to the literal */
-    private Term[] arguments;
+    private transient Term[] arguments;
+    /** The variant key of the literal, computed when first needed */
+    private transient VariantKey variantKey;
     
     /**
      * Create a new literal with the given predicate and arguments.
@@ -48,13 +58,45 @@ public final class Literal implements Serializable {
      * @param arguments  the list of arguments
      */
     public Literal(String predicate, Term... arguments) {
-        this.predicate = predicate.intern();
+        this(Predicate.get(predicate), arguments);
+    }
+    
+    /**
+     * Create a new literal with the given predicate and arguments.
+     * 
+     * @param predicate  the predicate
+     * @param arguments  the list of arguments
+     */
+    public Literal(Predicate predicate, Term... arguments) {
+        this.predicate = predicate;
         this.arguments = arguments;
-        if(!predicate.endsWith("/" + arguments.length))
+        if(predicate.getArity() != arguments.length)
             throw new IllegalArgumentException(
                     "Predicate arity does not match number of arguments");
     }
     
+    /**
+     * Create a new literal without checking its predicate.
+     */
+    private Literal() {}
+    
+    /**
+     * Create a new literal with the given predicate and arguments, without
+     * checking them. The arity of the predicate must match the number of
+     * arguments (e.g. because it was taken from another literal with the
+     * same number of arguments).
+     * 
+     * @param predicate  the predicate
+     * @param arguments  the list of arguments
+     * @return           the literal
+     */
+    static Literal unchecked(Predicate predicate, Term[] arguments) {
+        Literal literal = new Literal();
+        literal.predicate = predicate;
+        literal.arguments = arguments;
+        return literal;
+    }
+    
     /**
      * Create a new literal with the given predicate, and unique variables as
      * the arguments.
@@ -72,16 +114,24 @@ public final class Literal implements Serializable {
      * @return           the arity of the predicate
      */
     public static int getPredicateArity(String predicate) {
-        int slashPos = predicate.lastIndexOf('/');
-        return Integer.parseInt(predicate.substring(slashPos + 1));
+        return Predicate.get(predicate).getArity();
     }
     
     /**
      * Return the predicate of the literal.
      * 
-     * @return  the predicate
+     * @return  the interned predicate (name/arity)
      */
     public String getPredicate() {
+        return predicate.getKey();
+    }
+    
+    /**
+     * Return the predicate symbol of the literal.
+     * 
+     * @return  the predicate symbol
+     */
+    public Predicate getPredicateSymbol() {
         return predicate;
     }
     
@@ -91,7 +141,7 @@ public final class Literal implements Serializable {
      * @return  the predicate name
      */
     public String getPredicateName() {
-        return predicate.substring(0, predicate.indexOf('/'));
+        return predicate.getName();
     }
     
     /**
@@ -152,6 +202,20 @@ public final class Literal implements Serializable {
         return getVariantTag(new HashMap<Variable, String>());
     }
     
+    /**
+     * Return the variant key for this literal.
+     * 
+     * Two literals have equal variant keys iff they are alphabetic variants
+     * of one another.
+     * 
+     * @return  the variant key
+     */
+    public VariantKey getVariantKey() {
+        if(variantKey == null)
+            variantKey = new VariantKey(this);
+        return variantKey;
+    }
+    
     /**
      * Return the variant tag for this literal, using variable tags from the
      * given map.
@@ -161,7 +225,8 @@ public final class Literal implements Serializable {
      */
     public String getVariantTag(Map<Variable, String> variableTags) {
         StringBuilder builder = new StringBuilder();
-        builder.append(predicate.length()).append(':').append(predicate);
+        String key = predicate.getKey();
+        builder.append(key.length()).append(':').append(key);
         for(Term argument : arguments) {
             String tag = argument.toString();
             if(argument instanceof Variable) {
@@ -215,7 +280,7 @@ public final class Literal implements Serializable {
         Term[] newArguments = new Term[arguments.length];
         for(int i = 0; i < arguments.length; i++)
             newArguments[i] = arguments[i].subst(substitution);
-        return new Literal(predicate, newArguments);
+        return unchecked(predicate, newArguments);
     }
     
     /**
@@ -257,12 +322,22 @@ public final class Literal implements Serializable {
     }
     
     public int hashCode() {
-        return predicate.hashCode() + 13 * Arrays.hashCode(arguments);
+        return predicate.getKey().hashCode() + 13 * Arrays.hashCode(arguments);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("predicate", predicate.getKey());
+        fields.put("arguments", arguments);
+        out.writeFields();
     }
     
     private void readObject(ObjectInputStream in)
     throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
-        predicate = predicate.intern();
+        ObjectInputStream.GetField fields = in.readFields();
+        predicate = Predicate.get((String) fields.get("predicate", null));
+        arguments = (Term[]) fields.get("arguments", null);
+        // facts loaded from a database share their constants
+        TermDictionary.intern(arguments);
     }
 }
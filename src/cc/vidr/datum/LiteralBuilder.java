@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.TermDictionary;
 
 /**
  * Allows incremental construction of Literals.
@@ -43,12 +44,14 @@ public class LiteralBuilder {
     }
     
     /**
-     * Append the given argument to the current list of arguments.
+     * Append the given argument to the current list of arguments. Constants
+     * are replaced by their canonical instances.
      * 
      * @param argument  the argument
+     * @see             TermDictionary
      */
     public void addArgument(Term argument) {
-        arguments.add(argument);
+        arguments.add(TermDictionary.intern(argument));
     }
     
     /**
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.Arrays;
+
+import cc.vidr.datum.term.Term;
+
+/**
+ * A rule part way through resolution, consisting of the compiled rule, the
+ * number of conditions in its body which have been resolved, and the terms
+ * bound to its slots so far. Resolving a fact against the next condition
+ * creates a new partial clause sharing the compiled rule, so literals are
+ * only built for the conditions which are looked up and for the heads which
+ * are derived.
+ * 
+ * Two partial clauses are equal iff they are at the same position in
+ * variants of the same rule, with the same bindings.
+ * 
+ * @author  David Roberts
+ */
+final class PartialClause {
+    /** The compiled rule */
+    private final CompiledClause rule;
+    /** The number of conditions which have been resolved */
+    private final int position;
+    /** The term bound to each slot, or null if the slot is unbound */
+    private final Term[] bindings;
+    
+    /**
+     * Create a new partial clause for the given rule, with none of its
+     * conditions resolved.
+     * 
+     * @param rule  the compiled rule
+     */
+    PartialClause(CompiledClause rule) {
+        this(rule, 0, new Term[rule.getNumSlots()]);
+    }
+    
+    /**
+     * Create a new partial clause.
+     * 
+     * @param rule      the compiled rule
+     * @param position  the number of conditions which have been resolved
+     * @param bindings  the term bound to each slot
+     */
+    private PartialClause(CompiledClause rule, int position, Term[] bindings) {
+        this.rule = rule;
+        this.position = position;
+        this.bindings = bindings;
+    }
+    
+    /**
+     * Returns true iff every condition has been resolved.
+     * 
+     * @return  true iff this partial clause is a fact
+     */
+    boolean isFact() {
+        return position == rule.getBodyLength();
+    }
+    
+    /**
+     * Return the number of slots of the rule.
+     * 
+     * @return  the number of slots
+     */
+    int getNumSlots() {
+        return bindings.length;
+    }
+    
+    /**
+     * Build the head of the rule with the bindings so far.
+     * 
+     * @return  the head
+     */
+    Literal getHead() {
+        return rule.build(0, bindings);
+    }
+    
+    /**
+     * Build the next condition to be resolved with the bindings so far.
+     * 
+     * @return  the condition
+     */
+    Literal getCondition() {
+        return rule.build(position + 1, bindings);
+    }
+    
+    /**
+     * Resolve the given ground fact against the next condition.
+     * 
+     * @param fact     the ground fact
+     * @param scratch  a register file to resolve with
+     * @return         the resolvent, or null if the fact does not match
+     */
+    PartialClause resolve(Literal fact, Bindings scratch) {
+        scratch.load(bindings);
+        try {
+            if(!rule.match(position + 1, fact, scratch))
+                return null;
+            return new PartialClause(rule, position + 1,
+                                     scratch.save(bindings.length));
+        } finally {
+            scratch.undo(0);
+        }
+    }
+    
+    /**
+     * Build the clause consisting of the head and the conditions still to
+     * be resolved, with the bindings so far.
+     * 
+     * @return  the clause
+     */
+    Clause toClause() {
+        Literal[] body = new Literal[rule.getBodyLength() - position];
+        for(int i = 0; i < body.length; i++)
+            body[i] = rule.build(position + i + 1, bindings);
+        return new Clause(getHead(), body);
+    }
+    
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(o instanceof PartialClause) {
+            PartialClause p = (PartialClause) o;
+            return position == p.position
+                && Arrays.equals(bindings, p.bindings)
+                && rule.getVariantKey().equals(p.rule.getVariantKey());
+        }
+        return false;
+    }
+    
+    public int hashCode() {
+        return rule.getVariantKey().hashCode() + 13 * position
+             + 31 * Arrays.hashCode(bindings);
+    }
+    
+    public String toString() {
+        return toClause().toString();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cc.vidr.datum.builtin.Builtin;
+
+/**
+ * A predicate symbol, identified by its name and arity.
+ * 
+ * There is a single instance of each predicate, so predicates are compared
+ * by identity. Each predicate is given a dense integer ID in the order in
+ * which it is first seen, and carries the data other components keep per
+ * predicate, such as its built-in handler, so that these can be found
+ * without a map lookup.
+ * 
+ * IDs are only meaningful within a single run, so predicates are stored and
+ * serialized by their name/arity key rather than by ID.
+ * 
+ * @author  David Roberts
+ */
+public final class Predicate {
+    /** Mapping of name/arity keys to predicates */
+    private static final ConcurrentMap<String, Predicate> registry =
+        new ConcurrentHashMap<String, Predicate>();
+    /** The predicates, by ID */
+    private static final List<Predicate> predicates =
+        new ArrayList<Predicate>();
+    
+    /** The ID of the predicate */
+    private final int id;
+    /** The name of the predicate */
+    private final String name;
+    /** The arity of the predicate */
+    private final int arity;
+    /** The interned name/arity key of the predicate */
+    private final String key;
+    /** The built-in handler for the predicate, or null if it has none */
+    private volatile Builtin builtin;
+    /** The tables for goals of the predicate (guarded by TableManager) */
+    Set<Server> tables = new HashSet<Server>();
+    
+    /**
+     * Create a new predicate.
+     * 
+     * @param id     the ID of the predicate
+     * @param name   the name of the predicate
+     * @param arity  the arity of the predicate
+     * @param key    the interned name/arity key
+     */
+    private Predicate(int id, String name, int arity, String key) {
+        this.id = id;
+        this.name = name;
+        this.arity = arity;
+        this.key = key;
+    }
+    
+    /**
+     * Return the predicate with the given name/arity key, registering it if
+     * it has not been seen before.
+     * 
+     * @param key  the name/arity key
+     * @return     the predicate
+     * @throws     IllegalArgumentException if the key is malformed
+     */
+    public static Predicate get(String key) {
+        Predicate predicate = registry.get(key);
+        if(predicate != null)
+            return predicate;
+        int slashPos = key.lastIndexOf('/');
+        if(slashPos < 0)
+            throw new IllegalArgumentException(
+                    "Predicate has no arity: " + key);
+        int arity = Integer.parseInt(key.substring(slashPos + 1));
+        if(arity < 0)
+            throw new IllegalArgumentException(
+                    "Predicate has negative arity: " + key);
+        synchronized(predicates) {
+            predicate = registry.get(key);
+            if(predicate == null) {
+                key = key.intern();
+                predicate = new Predicate(predicates.size(),
+                        key.substring(0, slashPos).intern(), arity, key);
+                predicates.add(predicate);
+                registry.put(key, predicate);
+            }
+            return predicate;
+        }
+    }
+    
+    /**
+     * Return the predicate with the given name and arity, registering it if
+     * it has not been seen before.
+     * 
+     * @param name   the name of the predicate
+     * @param arity  the arity of the predicate
+     * @return       the predicate
+     */
+    public static Predicate get(String name, int arity) {
+        return get(name + "/" + arity);
+    }
+    
+    /**
+     * Return the predicate with the given ID.
+     * 
+     * @param id  the ID
+     * @return    the predicate
+     * @throws    IndexOutOfBoundsException if no predicate has the given ID
+     */
+    public static Predicate get(int id) {
+        synchronized(predicates) {
+            return predicates.get(id);
+        }
+    }
+    
+    /**
+     * Return the number of predicates registered so far. The IDs of the
+     * predicates are the integers below this number.
+     * 
+     * @return  the number of predicates
+     */
+    public static int getNumPredicates() {
+        synchronized(predicates) {
+            return predicates.size();
+        }
+    }
+    
+    /**
+     * Return the ID of this predicate.
+     * 
+     * @return  the ID
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Return the name of this predicate.
+     * 
+     * @return  the name
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Return the arity of this predicate.
+     * 
+     * @return  the arity
+     */
+    public int getArity() {
+        return arity;
+    }
+    
+    /**
+     * Return the interned name/arity key of this predicate.
+     * 
+     * @return  the key
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    /**
+     * Return the built-in handler for this predicate.
+     * 
+     * @return  the handler, or null if this is not a built-in predicate
+     */
+    public Builtin getBuiltin() {
+        return builtin;
+    }
+    
+    /**
+     * Set the built-in handler for this predicate.
+     * 
+     * @param builtin  the handler
+     */
+    public void setBuiltin(Builtin builtin) {
+        this.builtin = builtin;
+    }
+    
+    public int hashCode() {
+        return id;
+    }
+    
+    public String toString() {
+        return key;
+    }
+}
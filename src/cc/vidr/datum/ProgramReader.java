@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.antlr.runtime.RecognitionException;
+
+/**
+ * Reads a program a chunk of clauses at a time, so that programs too large
+ * to hold in memory can be parsed as they are read.
+ * 
+ * Each chunk is cut from the input after the full stop ending a clause, by
+ * scanning for full stops outside strings and comments, and is then parsed
+ * as a program of its own.
+ * 
+ * @author  David Roberts
+ * @see     Program
+ */
+public class ProgramReader {
+    /** The reader for the program */
+    private final Reader reader;
+    /** The number of clauses in each chunk */
+    private final int chunkSize;
+    
+    /**
+     * Create a new ProgramReader for the given reader.
+     * 
+     * @param reader     the reader
+     * @param chunkSize  the number of clauses in each chunk
+     */
+    public ProgramReader(Reader reader, int chunkSize) {
+        this.reader = new BufferedReader(reader);
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Read and parse the next chunk of clauses.
+     * 
+     * @return  the array of clauses, or null if there are no more clauses
+     * @throws  IOException if an I/O error occurs
+     * @throws  RecognitionException if a parsing error occurs
+     */
+    public Clause[] read() throws IOException, RecognitionException {
+        StringBuilder text = new StringBuilder();
+        int numClauses = 0;
+        boolean inString = false, inComment = false, escaped = false;
+        // has anything but whitespace and comments followed the last clause?
+        boolean pending = false;
+        while(numClauses < chunkSize) {
+            int c = reader.read();
+            if(c < 0)
+                break;
+            text.append((char) c);
+            if(inComment) {
+                if(c == '\n')
+                    inComment = false;
+            } else if(inString) {
+                if(escaped)
+                    escaped = false;
+                else if(c == '\\')
+                    escaped = true;
+                else if(c == '"')
+                    inString = false;
+            } else if(c == '%') {
+                inComment = true;
+            } else if(c == '.') {
+                numClauses++;
+                pending = false;
+            } else if(!Character.isWhitespace(c)) {
+                pending = true;
+                inString = c == '"';
+            }
+        }
+        if(numClauses == 0 && !pending)
+            return null;
+        return new Program(text.toString()).parse();
+    }
+    
+    /**
+     * Close the underlying reader.
+     * 
+     * @throws  IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+}
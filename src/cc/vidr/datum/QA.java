@@ -41,6 +41,42 @@ public final class QA {
      * @return          the facts answering the question
      */
     public static Literal[] query(String question) {
+        return Server.query(getGoals(question));
+    }
+    
+    /**
+     * Return a stream of the facts which answer the given question, posed in
+     * natural language, returning each fact as soon as it has been found.
+     * The stream must be closed once it is no longer needed.
+     * 
+     * @param question  the natural language question
+     * @return          the stream of facts answering the question
+     */
+    public static AnswerStream stream(String question) {
+        return stream(question, new QueryOptions());
+    }
+    
+    /**
+     * Return a stream of the facts which answer the given question, posed in
+     * natural language, subject to the given limits. The stream must be
+     * closed once it is no longer needed.
+     * 
+     * @param question  the natural language question
+     * @param options   the limits on the query
+     * @return          the stream of facts answering the question
+     */
+    public static AnswerStream stream(String question, QueryOptions options) {
+        return Server.stream(options, getGoals(question));
+    }
+    
+    /**
+     * Return the goals which answer the given question, posed in natural
+     * language.
+     * 
+     * @param question  the natural language question
+     * @return          the goals
+     */
+    private static Literal[] getGoals(String question) {
         question = sanitize(question);
         Template[] questionTemplates = Template.getQuestionTemplates();
         Literal[] literals = Template.parse(question, questionTemplates);
@@ -48,7 +84,7 @@ public final class QA {
         for(Literal literal : literals)
             for(Literal goal : Template.raise(literal))
                 goals.add(goal);
-        return Server.query(goals.toArray(new Literal[0]));
+        return goals.toArray(new Literal[0]);
     }
     
     /**
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+/**
+ * Limits on the evaluation of a query. A query which reaches its deadline,
+ * finds its maximum number of answers or is cancelled stops with the facts
+ * found so far; the tables it left incomplete are discarded rather than
+ * reused.
+ * 
+ * @author  David Roberts
+ */
+public final class QueryOptions {
+    /** The time by which the query must finish, in milliseconds */
+    private long deadline = Long.MAX_VALUE;
+    /** The maximum number of facts to be returned */
+    private int maxAnswers = Integer.MAX_VALUE;
+    /** The token used to cancel the query, or null */
+    private Cancellation cancellation = null;
+    
+    /**
+     * Set the wall-clock time by which the query must finish.
+     * 
+     * @param deadline  the time in milliseconds, as returned by
+     *                  System.currentTimeMillis()
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+    
+    /**
+     * Set the deadline of the query relative to the current time.
+     * 
+     * @param millis  the time allowed for the query, in milliseconds
+     */
+    public void setTimeout(long millis) {
+        setDeadline(System.currentTimeMillis() + millis);
+    }
+    
+    /**
+     * Return the time by which the query must finish.
+     * 
+     * @return  the time in milliseconds, or Long.MAX_VALUE if unlimited
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+    
+    /**
+     * Set the maximum number of facts to be returned.
+     * 
+     * @param maxAnswers  the maximum number of facts
+     */
+    public void setMaxAnswers(int maxAnswers) {
+        this.maxAnswers = maxAnswers;
+    }
+    
+    /**
+     * Return the maximum number of facts to be returned.
+     * 
+     * @return  the maximum number of facts, or Integer.MAX_VALUE if
+     *          unlimited
+     */
+    public int getMaxAnswers() {
+        return maxAnswers;
+    }
+    
+    /**
+     * Set the token used to cancel the query.
+     * 
+     * @param cancellation  the token
+     */
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+    
+    /**
+     * Return the token used to cancel the query.
+     * 
+     * @return  the token, or null if there is none
+     */
+    public Cancellation getCancellation() {
+        return cancellation;
+    }
+    
+    /**
+     * Returns true iff the query has passed its deadline or been cancelled.
+     * 
+     * @return  true iff the query should stop
+     */
+    public boolean isExpired() {
+        return (cancellation != null && cancellation.isCancelled())
+            || System.currentTimeMillis() >= deadline;
+    }
+}
@@ -18,19 +18,25 @@
 package cc.vidr.datum;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import cc.vidr.datum.builtin.Builtin;
 import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.db.FactListener;
 import cc.vidr.datum.db.RuleDatabase;
+import cc.vidr.datum.db.RuleListener;
 import cc.vidr.datum.db.jdo.JDOFactDatabase;
 import cc.vidr.datum.db.jdo.JDORuleDatabase;
+import cc.vidr.datum.term.Term;
 
 /**
  * A server infers, caches, and provides facts matching a given goal.
@@ -40,26 +46,71 @@ import cc.vidr.datum.db.jdo.JDORuleDatabase;
  * @author  David Roberts
  */
 public final class Server {
-    /** The FactDatabase to be used by servers */
+    /**
+     * The FactDatabase to be used by servers. Facts asserted to or retracted
+     * from it are added to or removed from the existing tables they match.
+     */
     public static FactDatabase factDatabase = new JDOFactDatabase();
-    /** The RuleDatabase to be used by servers */
+    /**
+     * The RuleDatabase to be used by servers. Rules asserted to or retracted
+     * from it are added to or removed from the existing tables they match.
+     */
     public static RuleDatabase ruleDatabase = new JDORuleDatabase();
-    /** Mapping of goal variant tags to servers */
-    private static Map<String, Server> servers =
-        new HashMap<String, Server>();
-    /** Mapping of clause variant tags to their proof */
-    private static Map<String, ProofNode> proofs =
-        new HashMap<String, ProofNode>();
-    
-    /** The set of facts satisfying the goal */
-    private Set<Literal> facts = new HashSet<Literal>();
-    /** The set of clients */
-    private Set<Server> clients = new HashSet<Server>();
-    /** Mapping of servers to dependent clauses */
-    private Map<Server, List<Clause>> clauses =
-        new HashMap<Server, List<Clause>>();
+    /** The FactDatabase whose changes are reflected in the tables */
+    private static FactDatabase maintained = null;
+    /** The RuleDatabase whose changes are reflected in the tables */
+    private static RuleDatabase maintainedRules = null;
+    /** Reflects changes to the fact database in the tables */
+    private static final FactListener maintenance = new FactListener() {
+        public void factAsserted(Literal fact) {
+            Server.factAsserted(fact);
+        }
+        
+        public void factRetracted(Literal fact) {
+            Server.factRetracted(fact);
+        }
+    };
+    /** Reflects changes to the rule database in the tables */
+    private static final RuleListener ruleMaintenance = new RuleListener() {
+        public void ruleAsserted(Clause rule) {
+            Server.ruleAsserted(rule);
+        }
+        
+        public void ruleRetracted(Clause rule) {
+            Server.ruleRetracted(rule);
+        }
+    };
+    /** Mapping of fact variant keys to their proof */
+    private static Map<VariantKey, ProofEntry> proofs =
+        new HashMap<VariantKey, ProofEntry>();
+    
+    /** Mapping of the facts satisfying the goal to their answer positions */
+    private Map<Literal, Integer> facts = new HashMap<Literal, Integer>();
+    /** The facts satisfying the goal, in the order they were found */
+    private List<Literal> answers = new ArrayList<Literal>();
+    /** The number of deleted facts still held as null in the answers */
+    private int holes = 0;
+    /** The subscriptions of clauses (of clients) to this server's answers */
+    private List<Subscription> subscribers = new ArrayList<Subscription>();
+    /** The subscriptions of this server's clauses to other servers */
+    private List<Subscription> subscriptions = new ArrayList<Subscription>();
     /** Is this a primary server? */
     private final boolean primary;
+    /** The goal of this server, if it is a primary server */
+    private Literal goal = null;
+    /** The standing queries listening to this server's answers */
+    private List<StandingQuery> listeners = new ArrayList<StandingQuery>();
+    /** The fact variant keys of the proofs referenced by this server */
+    private Set<VariantKey> proofKeys = new HashSet<VariantKey>();
+    /** The estimated size of this server, in bytes */
+    long size = 0;
+    /** Has this server found every fact satisfying its goal? */
+    boolean complete = false;
+    /** The frame of the evaluation which created this server */
+    Agenda.Frame frame = null;
+    /** Mapping of argument masks to indexes over the facts, once complete */
+    private Map<Integer, Map<List<Term>, List<Literal>>> indexes =
+        new HashMap<Integer, Map<List<Term>, List<Literal>>>();
     
     /**
      * Represents an individual fact in a proof.
@@ -97,6 +148,219 @@ public final class Server {
         }
     }
     
+    /**
+     * The proof of a fact, shared by every server holding the fact.
+     */
+    private static class ProofEntry {
+        /** The first node of the proof, or null if the fact was stored */
+        private final ProofNode proof;
+        /** The number of servers referencing the proof */
+        private int references = 1;
+        
+        /**
+         * Create a new entry for the given proof, referenced by one server.
+         * 
+         * @param proof  the first node of the proof
+         */
+        public ProofEntry(ProofNode proof) {
+            this.proof = proof;
+        }
+    }
+    
+    /**
+     * A task which runs a new server for the given goal.
+     */
+    private static class Evaluation implements Runnable {
+        /** The server to be run */
+        private final Server server;
+        /** The goal of the server */
+        private final Literal goal;
+        
+        /**
+         * Create a new task running the given server.
+         * 
+         * @param server  the server
+         * @param goal    the goal of the server
+         */
+        public Evaluation(Server server, Literal goal) {
+            this.server = server;
+            this.goal = goal;
+        }
+        
+        public void run() {
+            server.run(goal);
+        }
+    }
+    
+    /**
+     * A partial clause of a client server waiting on the answers of a
+     * producer server. The subscription holds a cursor into the producer's
+     * answers, and when scheduled as a task resolves every answer it has not
+     * yet seen against the clause, in a single batch. A subscription without
+     * a clause is that of a table filled from a more general table, and
+     * instead adds the answers matching the client's goal.
+     */
+    private static class Subscription implements Runnable {
+        /** The server the clause belongs to */
+        private final Server client;
+        /** The server producing answers for the next condition */
+        private final Server producer;
+        /** The clause, or null if the client follows the producer */
+        private final PartialClause clause;
+        /** The proof of the clause so far */
+        private final ProofNode proof;
+        /** The number of answers already resolved against the clause */
+        private int cursor = 0;
+        /** Is this subscription waiting on the agenda? */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Has this subscription been cancelled? */
+        private volatile boolean cancelled = false;
+        
+        /**
+         * Create a new subscription of the given clause to the given
+         * producer.
+         * 
+         * @param client    the server the clause belongs to
+         * @param producer  the server producing answers
+         * @param clause    the clause
+         * @param proof     the proof of the clause so far
+         */
+        public Subscription(Server client, Server producer,
+                            PartialClause clause, ProofNode proof) {
+            this.client = client;
+            this.producer = producer;
+            this.clause = clause;
+            this.proof = proof;
+        }
+        
+        /**
+         * Add this subscription to the agenda, unless it is already waiting.
+         */
+        public void schedule() {
+            if(scheduled.compareAndSet(false, true))
+                Agenda.schedule(this);
+        }
+        
+        public synchronized void run() {
+            scheduled.set(false);
+            if(cancelled)
+                return;
+            List<Literal> batch = producer.getAnswers(cursor);
+            cursor += batch.size();
+            Bindings bindings = clause == null ? null
+                    : new Bindings(clause.getNumSlots());
+            for(Literal fact : batch) {
+                if(fact == null)
+                    // deleted since it was found
+                    continue;
+                if(clause == null)
+                    client.addMatching(fact);
+                else
+                    client.add(clause, proof, fact, bindings);
+            }
+        }
+    }
+    
+    /**
+     * A fact deleted from a table because it may have been derived from a
+     * retracted fact or rule. The deletion is propagated to the clients of
+     * the table, and the fact is then added back to the table if it can
+     * still be derived.
+     */
+    private static class Deletion {
+        /** The table the fact was deleted from */
+        private final Server table;
+        /** The deleted fact */
+        private final Literal fact;
+        /** The position of the fact in the table's answer log */
+        private final int position;
+        /** The server trying to derive the fact again, if any */
+        private Server server = null;
+        
+        /**
+         * Record the deletion of the given fact from the given table.
+         * 
+         * @param table     the table
+         * @param fact      the fact
+         * @param position  the position of the fact in the answer log
+         */
+        public Deletion(Server table, Literal fact, int position) {
+            this.table = table;
+            this.fact = fact;
+            this.position = position;
+        }
+        
+        /**
+         * Delete every fact and clause which the clients of the table
+         * derived from the fact. Facts deleted from clients are added to the
+         * given list, to be propagated in turn.
+         * 
+         * @param deletions  the list of deletions
+         */
+        public void propagate(List<Deletion> deletions) {
+            List<Subscription> list;
+            synchronized(table.subscribers) {
+                list = new ArrayList<Subscription>(table.subscribers);
+            }
+            for(Subscription subscription : list) {
+                if(subscription.cursor <= position)
+                    // the fact was never passed to this subscription
+                    continue;
+                if(subscription.clause == null) {
+                    subscription.client.deleteMatching(fact, deletions);
+                    continue;
+                }
+                PartialClause resolvent = resolve(subscription.clause, fact,
+                                                  new Bindings(0));
+                if(resolvent != null)
+                    subscription.client.delete(resolvent, deletions);
+            }
+        }
+        
+        /**
+         * Start trying to derive the fact again from the facts and rules
+         * remaining. A table filled from a more general table is left to
+         * receive the fact from that table instead.
+         */
+        public void start() {
+            if(table.follows())
+                return;
+            if(factDatabase.search(fact).length > 0) {
+                table.addStored(fact);
+                return;
+            }
+            server = new Server(false);
+            for(Clause rule : ruleDatabase.search(fact))
+                server.add(rule);
+        }
+        
+        /**
+         * Add the fact back to the table if it has been derived again.
+         * 
+         * @return  true iff the fact was added back
+         */
+        public boolean finish() {
+            if(server == null)
+                return false;
+            synchronized(server.facts) {
+                if(server.facts.isEmpty())
+                    return false;
+            }
+            stop();
+            table.add(fact);
+            return true;
+        }
+        
+        /**
+         * Stop trying to derive the fact.
+         */
+        public void stop() {
+            if(server != null)
+                server.detach();
+            server = null;
+        }
+    }
+    
     /**
      * Construct a new server.
      * 
@@ -110,10 +374,13 @@ public final class Server {
     }
     
     /**
-     * Construct a new primary server.
+     * Construct a new primary server for the given goal.
+     * 
+     * @param goal  the goal
      */
-    private Server() {
+    private Server(Literal goal) {
         this(true);
+        this.goal = goal;
     }
     
     /**
@@ -123,7 +390,14 @@ public final class Server {
      * @return      the array of facts
      */
     public static Literal[] query(Literal goal) {
-        return getServer(goal).getFacts();
+        TableManager.begin();
+        try {
+            Server server = getServer(goal);
+            Agenda.run();
+            return server.getFacts();
+        } finally {
+            TableManager.end();
+        }
     }
     
     /**
@@ -134,12 +408,253 @@ public final class Server {
      */
     public static Literal[] query(Literal... goals) {
         Set<Literal> facts = new HashSet<Literal>();
-        for(Literal goal : goals)
-            for(Literal fact : query(goal))
-                facts.add(fact);
+        TableManager.begin();
+        try {
+            // start every goal before waiting, so that the goals can be
+            // evaluated concurrently
+            List<Server> servers = new ArrayList<Server>();
+            for(Literal goal : goals)
+                servers.add(getServer(goal));
+            Agenda.run();
+            for(Server server : servers)
+                for(Literal fact : server.getFacts())
+                    facts.add(fact);
+        } finally {
+            TableManager.end();
+        }
         return facts.toArray(new Literal[0]);
     }
     
+    /**
+     * Return a stream of the facts matching any of the given goals, which
+     * returns each fact as soon as it has been found. The stream must be
+     * closed once it is no longer needed.
+     * 
+     * @param goals  the goals
+     * @return       the stream of facts
+     */
+    public static AnswerStream stream(Literal... goals) {
+        return stream(new QueryOptions(), goals);
+    }
+    
+    /**
+     * Return a stream of the facts matching any of the given goals, subject
+     * to the given limits, which returns each fact as soon as it has been
+     * found. The stream must be closed once it is no longer needed.
+     * 
+     * @param options  the limits on the query
+     * @param goals    the goals
+     * @return         the stream of facts
+     */
+    public static AnswerStream stream(QueryOptions options, Literal... goals) {
+        Agenda.Frame frame = TableManager.begin(options);
+        List<Server> servers = new ArrayList<Server>();
+        try {
+            for(Literal goal : goals)
+                servers.add(getServer(goal));
+        } catch(RuntimeException e) {
+            TableManager.end(options, frame, true);
+            throw e;
+        }
+        return new AnswerStream(servers, options, frame);
+    }
+    
+    /**
+     * Return the facts matching any of the given goals, subject to the given
+     * limits. If a limit is reached, the facts found so far are returned.
+     * 
+     * @param options  the limits on the query
+     * @param goals    the goals
+     * @return         the array of facts
+     */
+    public static Literal[] query(QueryOptions options, Literal... goals) {
+        List<Literal> facts = new ArrayList<Literal>();
+        AnswerStream stream = stream(options, goals);
+        try {
+            while(stream.hasNext())
+                facts.add(stream.next());
+        } finally {
+            stream.close();
+        }
+        return facts.toArray(new Literal[0]);
+    }
+    
+    /**
+     * Register a standing query for the given goal. The listener is passed
+     * every fact matching the goal that is found from now on, but none of
+     * those which have already been found.
+     * 
+     * @param goal      the goal
+     * @param listener  the listener
+     * @return          the standing query
+     */
+    public static StandingQuery listen(Literal goal, AnswerListener listener) {
+        TableManager.begin();
+        try {
+            Server server = getServer(goal);
+            Agenda.run();
+            StandingQuery query;
+            synchronized(server.facts) {
+                query = new StandingQuery(goal, server, listener,
+                                          server.answers.size());
+                synchronized(server.listeners) {
+                    server.listeners.add(query);
+                }
+            }
+            return query;
+        } finally {
+            TableManager.end();
+        }
+    }
+    
+    /**
+     * Add the given newly asserted fact to every table whose goal it
+     * matches, and propagate it to the tables depending on them.
+     * 
+     * @param fact  the fact
+     */
+    private static void factAsserted(Literal fact) {
+        TableManager.begin();
+        try {
+            for(Server server : TableManager.getMatching(fact))
+                server.addStored(fact);
+            Agenda.run();
+        } finally {
+            TableManager.end();
+        }
+    }
+    
+    /**
+     * Remove the given retracted fact from every table whose goal it
+     * matches, along with the facts derived from it.
+     * 
+     * @param fact  the fact
+     */
+    private static void factRetracted(Literal fact) {
+        TableManager.beginUpdate();
+        try {
+            List<Deletion> deletions = new ArrayList<Deletion>();
+            for(Server server : TableManager.getMatching(fact))
+                server.delete(fact, deletions);
+            rederive(deletions);
+        } finally {
+            TableManager.endUpdate();
+        }
+    }
+    
+    /**
+     * Add the given newly asserted rule to every table whose goal matches
+     * its head, and propagate the facts derived from it.
+     * 
+     * @param rule  the rule
+     */
+    private static void ruleAsserted(Clause rule) {
+        // wait for the evaluations in progress, which may find the rule in
+        // the database themselves
+        TableManager.beginUpdate();
+        try {
+            for(Server server : TableManager.getMatching(rule.getHead()))
+                if(!server.follows())
+                    server.add(instantiate(rule, server.goal));
+            Agenda.run();
+        } finally {
+            TableManager.endUpdate();
+        }
+    }
+    
+    /**
+     * Remove the given retracted rule from every table whose goal matches
+     * its head, along with the facts derived from it.
+     * 
+     * @param rule  the rule
+     */
+    private static void ruleRetracted(Clause rule) {
+        TableManager.beginUpdate();
+        try {
+            List<Deletion> deletions = new ArrayList<Deletion>();
+            for(Server server : TableManager.getMatching(rule.getHead()))
+                if(!server.follows()) {
+                    PartialClause clause = new PartialClause(
+                            instantiate(rule, server.goal).compile());
+                    while(server.delete(clause, deletions));
+                }
+            rederive(deletions);
+        } finally {
+            TableManager.endUpdate();
+        }
+    }
+    
+    /**
+     * Return a renamed copy of the given rule with its head instantiated to
+     * the given goal, as found by searching the rule database for the goal.
+     * 
+     * @param rule  the rule
+     * @param goal  the goal, which must unify with the head of the rule
+     * @return      the instantiated rule
+     */
+    private static Clause instantiate(Clause rule, Literal goal) {
+        Clause clause = rule.rename();
+        try {
+            return clause.subst(clause.getHead().unify(goal));
+        } catch(UnificationException e) {
+            throw new RuntimeException(
+                    "Rule does not unify with goal: " + rule + ", " + goal);
+        }
+    }
+    
+    /**
+     * Propagate the given deletions of facts from the tables, and then add
+     * back every deleted fact that can still be derived (delete and
+     * rederive). Facts added back are propagated to the clients of their
+     * tables as usual.
+     * 
+     * @param deletions  the deletions
+     */
+    private static void rederive(List<Deletion> deletions) {
+        // the list grows as deletions are propagated
+        for(int i = 0; i < deletions.size(); i++)
+            deletions.get(i).propagate(deletions);
+        try {
+            for(Deletion deletion : deletions)
+                deletion.start();
+            boolean changed = true;
+            while(changed) {
+                Agenda.run();
+                changed = false;
+                for(Deletion deletion : deletions)
+                    if(deletion.finish())
+                        changed = true;
+            }
+        } finally {
+            for(Deletion deletion : deletions)
+                deletion.stop();
+        }
+        Set<Server> tables = new HashSet<Server>();
+        for(Deletion deletion : deletions)
+            tables.add(deletion.table);
+        for(Server table : tables)
+            table.compact();
+    }
+    
+    /**
+     * Start reflecting changes to the databases in the tables, if the
+     * databases have changed since this was last called.
+     */
+    private static synchronized void maintain() {
+        if(maintained != factDatabase) {
+            if(maintained != null)
+                maintained.removeFactListener(maintenance);
+            factDatabase.addFactListener(maintenance);
+            maintained = factDatabase;
+        }
+        if(maintainedRules != ruleDatabase) {
+            if(maintainedRules != null)
+                maintainedRules.removeRuleListener(ruleMaintenance);
+            ruleDatabase.addRuleListener(ruleMaintenance);
+            maintainedRules = ruleDatabase;
+        }
+    }
+    
     /**
      * Return the facts matching the head of the given rule, using the
      * conditions in the body of the clause rather than those in the database.
@@ -149,8 +664,15 @@ public final class Server {
      */
     public static Literal[] query(Clause clause) {
         Server server = new Server(false);
-        server.add(clause.rename());
-        return server.getFacts();
+        TableManager.begin();
+        try {
+            server.add(clause.rename());
+            Agenda.run();
+            return server.getFacts();
+        } finally {
+            server.detach();
+            TableManager.end();
+        }
     }
     
     /**
@@ -160,7 +682,12 @@ public final class Server {
      * @return      the array of facts used
      */
     public static Literal[] getProof(Literal fact) {
-        ProofNode node = proofs.get(new Clause(fact).getVariantTag());
+        ProofNode node = null;
+        synchronized(proofs) {
+            ProofEntry entry = proofs.get(fact.getVariantKey());
+            if(entry != null)
+                node = entry.proof;
+        }
         return node != null ? node.toArray() : new Literal[0];
     }
     
@@ -170,7 +697,7 @@ public final class Server {
      * @return  the number of servers
      */
     public static int getNumServers() {
-        return servers.size();
+        return TableManager.getNumTables();
     }
     
     /**
@@ -189,24 +716,324 @@ public final class Server {
      * @return      the server for the goal
      */
     private static Server getServer(Literal goal) {
-        String tag = goal.getVariantTag();
+        VariantKey key = goal.getVariantKey();
         Server server;
+        Server general = null;
         boolean newServer = false;
-        synchronized(servers) {
-            server = servers.get(tag);
+        synchronized(TableManager.class) {
+            server = TableManager.get(key);
             if(server == null) {
-                server = new Server();
-                servers.put(goal.getVariantTag(), server);
+                general = TableManager.getSubsuming(goal);
+                server = new Server(goal);
+                TableManager.put(key, server);
                 newServer = true;
+            } else {
+                Agenda.depend(server);
             }
         }
-        if(newServer)
-            server.run(goal);
+        if(!newServer)
+            return server;
+        maintain();
+        if(general != null)
+            server.follow(general);
+        else
+            Agenda.scheduleBlocking(new Evaluation(server, goal));
         return server;
     }
     
-    private synchronized Literal[] getFacts() {
-        return facts.toArray(new Literal[0]);
+    /**
+     * Fill this server from the given complete server for a more general
+     * goal, which already holds every fact matching this server's goal, and
+     * subscribe to the facts the general server finds later.
+     * 
+     * @param general  the general server
+     */
+    private void follow(Server general) {
+        Subscription subscription =
+            new Subscription(this, general, null, null);
+        synchronized(general.facts) {
+            subscription.cursor = general.answers.size();
+        }
+        synchronized(subscriptions) {
+            subscriptions.add(subscription);
+        }
+        general.subscribe(subscription);
+        for(Literal fact : general.lookup(goal))
+            addMatching(fact);
+    }
+    
+    /**
+     * Add the given fact if it matches this server's goal.
+     * 
+     * @param fact  the fact
+     */
+    private void addMatching(Literal fact) {
+        try {
+            fact.unify(goal);
+            add(fact);
+        } catch(UnificationException e) {
+            // fact doesn't match goal
+        }
+    }
+    
+    /**
+     * Return the facts held by this complete server which agree with the
+     * given goal on all of the goal's constant arguments, using an index over
+     * those arguments.
+     * 
+     * @param goal  the goal
+     * @return      the list of candidate facts
+     */
+    private List<Literal> lookup(Literal goal) {
+        int mask = 0;
+        List<Term> key = new ArrayList<Term>();
+        for(int i = 0; i < goal.getArity(); i++)
+            if(!goal.getArgument(i).isVariable()) {
+                mask |= 1 << i;
+                key.add(goal.getArgument(i));
+            }
+        Map<List<Term>, List<Literal>> index;
+        int entries = 0;
+        synchronized(facts) {
+            index = indexes.get(mask);
+            if(index == null) {
+                index = new HashMap<List<Term>, List<Literal>>();
+                for(Literal fact : answers)
+                    if(fact != null)
+                        index(index, mask, fact);
+                indexes.put(mask, index);
+                entries = facts.size();
+            }
+        }
+        if(entries > 0)
+            TableManager.resize(this, TableManager.estimateIndexSize(entries));
+        // the index grows as facts are added, so return a copy
+        synchronized(facts) {
+            List<Literal> result = index.get(key);
+            if(result == null)
+                return Collections.emptyList();
+            return new ArrayList<Literal>(result);
+        }
+    }
+    
+    /**
+     * Add the given fact to the given index over this server's facts.
+     * 
+     * @param index  the index
+     * @param mask   the arguments covered by the index
+     * @param fact   the fact
+     */
+    private static void index(Map<List<Term>, List<Literal>> index, int mask,
+                              Literal fact) {
+        List<Term> key = getIndexKey(mask, fact);
+        List<Literal> list = index.get(key);
+        if(list == null) {
+            list = new ArrayList<Literal>();
+            index.put(key, list);
+        }
+        list.add(fact);
+    }
+    
+    /**
+     * Remove the given fact from the given index over this server's facts.
+     * 
+     * @param index  the index
+     * @param mask   the arguments covered by the index
+     * @param fact   the fact
+     */
+    private static void unindex(Map<List<Term>, List<Literal>> index,
+                                int mask, Literal fact) {
+        List<Literal> list = index.get(getIndexKey(mask, fact));
+        if(list != null)
+            list.remove(fact);
+    }
+    
+    /**
+     * Return the arguments of the given fact covered by an index.
+     * 
+     * @param mask  the arguments covered by the index
+     * @param fact  the fact
+     * @return      the list of covered arguments
+     */
+    private static List<Term> getIndexKey(int mask, Literal fact) {
+        List<Term> key = new ArrayList<Term>();
+        for(int i = 0; i < fact.getArity(); i++)
+            if((mask & (1 << i)) != 0)
+                key.add(fact.getArgument(i));
+        return key;
+    }
+    
+    private Literal[] getFacts() {
+        synchronized(facts) {
+            if(facts.size() == answers.size())
+                return answers.toArray(new Literal[0]);
+            List<Literal> list = new ArrayList<Literal>(facts.size());
+            for(Literal fact : answers)
+                if(fact != null)
+                    list.add(fact);
+            return list.toArray(new Literal[0]);
+        }
+    }
+    
+    /**
+     * Remove the deleted facts from the answer log once they make up most of
+     * it, moving back the positions of the answers after them and the
+     * cursors of the subscriptions and standing queries reading the log.
+     * Only the deleted facts which every cursor has passed are removed. Must
+     * only be called while the tables are being updated and no tasks
+     * remain, so that no cursor moves and no deletion is still in progress.
+     */
+    private void compact() {
+        synchronized(facts) {
+            if(2 * holes <= answers.size())
+                return;
+            int limit = answers.size();
+            synchronized(subscribers) {
+                for(Subscription subscription : subscribers)
+                    limit = Math.min(limit, subscription.cursor);
+            }
+            synchronized(listeners) {
+                for(StandingQuery listener : listeners)
+                    limit = Math.min(limit, listener.getCursor());
+            }
+            List<Literal> log = new ArrayList<Literal>(answers.size() - holes);
+            for(int i = 0; i < answers.size(); i++) {
+                Literal fact = answers.get(i);
+                if(fact == null && i < limit)
+                    continue;
+                if(fact != null)
+                    facts.put(fact, log.size());
+                log.add(fact);
+            }
+            int removed = answers.size() - log.size();
+            answers = log;
+            holes -= removed;
+            synchronized(subscribers) {
+                for(Subscription subscription : subscribers)
+                    subscription.cursor -= removed;
+            }
+            synchronized(listeners) {
+                for(StandingQuery listener : listeners)
+                    listener.rewind(removed);
+            }
+        }
+    }
+    
+    /**
+     * Return the answers found by this server from the given position in the
+     * answer log onwards. Answers which have since been deleted are replaced
+     * by null, so that positions in the log remain valid.
+     * 
+     * @param from  the position of the first answer
+     * @return      the list of answers
+     */
+    List<Literal> getAnswers(int from) {
+        synchronized(facts) {
+            if(from >= answers.size())
+                return Collections.emptyList();
+            return new ArrayList<Literal>(
+                    answers.subList(from, answers.size()));
+        }
+    }
+    
+    /**
+     * Return the goal of this server.
+     * 
+     * @return  the goal, or null if this is not a primary server
+     */
+    Literal getGoal() {
+        return goal;
+    }
+    
+    /**
+     * Returns true iff this server was filled from a complete server for a
+     * more general goal, from which it receives its facts.
+     * 
+     * @return  true iff this server follows a more general server
+     */
+    private boolean follows() {
+        synchronized(subscriptions) {
+            for(Subscription subscription : subscriptions)
+                if(subscription.clause == null)
+                    return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Returns true iff a standing query is listening to this server, in
+     * which case it should not be evicted.
+     * 
+     * @return  true iff this server is in use by a standing query
+     */
+    boolean isPinned() {
+        synchronized(listeners) {
+            return !listeners.isEmpty();
+        }
+    }
+    
+    /**
+     * Stop passing new answers to the given standing query.
+     * 
+     * @param query  the standing query
+     */
+    void unlisten(StandingQuery query) {
+        synchronized(listeners) {
+            listeners.remove(query);
+        }
+    }
+    
+    /**
+     * Return the servers currently requesting facts from this server.
+     * 
+     * @return  the set of clients
+     */
+    Set<Server> getClients() {
+        Set<Server> clients = new HashSet<Server>();
+        synchronized(subscribers) {
+            for(Subscription subscription : subscribers)
+                clients.add(subscription.client);
+        }
+        return clients;
+    }
+    
+    /**
+     * Disconnect this server from every server it depends on or that depends
+     * on it, and discard its facts and proofs.
+     */
+    void detach() {
+        List<Subscription> list;
+        synchronized(subscriptions) {
+            list = new ArrayList<Subscription>(subscriptions);
+            subscriptions.clear();
+        }
+        for(Subscription subscription : list) {
+            subscription.cancelled = true;
+            synchronized(subscription.producer.subscribers) {
+                subscription.producer.subscribers.remove(subscription);
+            }
+        }
+        synchronized(subscribers) {
+            list = new ArrayList<Subscription>(subscribers);
+            subscribers.clear();
+        }
+        for(Subscription subscription : list) {
+            subscription.cancelled = true;
+            synchronized(subscription.client.subscriptions) {
+                subscription.client.subscriptions.remove(subscription);
+            }
+        }
+        synchronized(facts) {
+            facts.clear();
+            answers.clear();
+            holes = 0;
+            indexes.clear();
+        }
+        synchronized(proofs) {
+            for(VariantKey key : proofKeys)
+                release(key);
+            proofKeys.clear();
+        }
     }
     
     /**
@@ -217,68 +1044,188 @@ public final class Server {
      */
     private synchronized void run(Literal goal) {
         Literal[] facts;
-        if(Builtin.isBuiltinPredicate(goal.getPredicate()))
-            facts = Builtin.satisfy(goal);
-        else
+        if(Builtin.isBuiltinPredicate(goal.getPredicateSymbol())) {
+            QueryOptions options = TableManager.getOptions();
+            facts = Builtin.satisfy(goal, options);
+            if(options.isExpired())
+                // the builtin may have given up before finding every fact
+                TableManager.taint();
+        } else {
             facts = factDatabase.search(goal);
-        for(Literal fact : facts) {
-            synchronized(proofs) {
-                proofs.put(new Clause(fact).getVariantTag(), null);
-            }
-            add(fact);
         }
+        for(Literal fact : facts)
+            addStored(fact);
         for(Clause rule : ruleDatabase.search(goal))
             add(rule);
     }
     
     /**
-     * Request facts from this server.
+     * Add a fact matching this server's goal which was found in the fact
+     * database (and so has no proof).
+     * 
+     * @param fact  the matching fact
+     */
+    private void addStored(Literal fact) {
+        reference(fact.getVariantKey(), null);
+        add(fact);
+    }
+    
+    /**
+     * Reference the proof of the fact with the given variant key from this
+     * server, recording the given proof if the fact has none yet. Has no
+     * effect if this server already references the proof.
+     * 
+     * @param key    the variant key of the fact
+     * @param proof  the proof of the fact, or null if it was stored
+     */
+    private void reference(VariantKey key, ProofNode proof) {
+        synchronized(proofs) {
+            if(!proofKeys.add(key))
+                return;
+            ProofEntry entry = proofs.get(key);
+            if(entry == null)
+                proofs.put(key, new ProofEntry(proof));
+            else
+                entry.references++;
+        }
+    }
+    
+    /**
+     * Drop a reference to the proof of the fact with the given variant key,
+     * discarding the proof once no server references it. Must be called
+     * with the lock on the proofs held.
+     * 
+     * @param key  the variant key of the fact
+     */
+    private static void release(VariantKey key) {
+        ProofEntry entry = proofs.get(key);
+        if(entry != null && --entry.references == 0)
+            proofs.remove(key);
+    }
+    
+    /**
+     * Delete the given fact from this server, and record the deletion in the
+     * given list so that it can be propagated to the clients.
      * 
-     * @param client  the server requesting facts
-     * @return        the list of facts currently held by the server
+     * @param fact       the fact
+     * @param deletions  the list of deletions
      */
-    private Literal[] request(Server client) {
-        synchronized(clients) {
-            clients.add(client);
-            return facts.toArray(new Literal[0]);
+    private void delete(Literal fact, List<Deletion> deletions) {
+        int position;
+        synchronized(facts) {
+            Integer found = facts.remove(fact);
+            if(found == null)
+                return;
+            position = found;
+            answers.set(position, null);
+            holes++;
+            for(Map.Entry<Integer, Map<List<Term>, List<Literal>>> entry :
+                    indexes.entrySet())
+                unindex(entry.getValue(), entry.getKey(), fact);
         }
+        if(primary)
+            TableManager.resize(this, -TableManager.estimateSize(fact));
+        synchronized(proofs) {
+            if(proofKeys.remove(fact.getVariantKey()))
+                release(fact.getVariantKey());
+        }
+        deletions.add(new Deletion(this, fact, position));
     }
     
     /**
-     * Inform this client of a new fact.
+     * Delete the given fact from this server if it matches the server's
+     * goal.
      * 
-     * @param server  the server providing the fact
-     * @param fact    the fact
+     * @param fact       the fact
+     * @param deletions  the list of deletions
      */
-    private void respond(Server server, Literal fact) {
-        for(Clause clause : clauses(server))
-            add(clause, fact);
+    private void deleteMatching(Literal fact, List<Deletion> deletions) {
+        try {
+            fact.unify(goal);
+            delete(fact, deletions);
+        } catch(UnificationException e) {
+            // fact doesn't match goal
+        }
     }
     
     /**
-     * Return the list of clauses dependent on the given server.
+     * Delete one copy of the given clause from this server, along with every
+     * clause and fact derived from it. The facts deleted are recorded in the
+     * given list.
      * 
-     * @param server  the server
-     * @return        the clauses dependent on the server
+     * @param clause     the clause
+     * @param deletions  the list of deletions
+     * @return           true iff this server held the clause
      */
-    private List<Clause> clauses(Server server) {
-        synchronized(clauses) {
-            if(clauses.containsKey(server))
-                return clauses.get(server);
-            List<Clause> list = new ArrayList<Clause>();
-            clauses.put(server, list);
-            return list;
+    private boolean delete(PartialClause clause, List<Deletion> deletions) {
+        if(clause.isFact()) {
+            int numDeletions = deletions.size();
+            delete(clause.getHead(), deletions);
+            return deletions.size() > numDeletions;
         }
+        Subscription subscription = null;
+        synchronized(subscriptions) {
+            Iterator<Subscription> it = subscriptions.iterator();
+            while(it.hasNext()) {
+                Subscription candidate = it.next();
+                if(clause.equals(candidate.clause)) {
+                    subscription = candidate;
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        if(subscription == null)
+            return false;
+        subscription.cancelled = true;
+        synchronized(subscription.producer.subscribers) {
+            subscription.producer.subscribers.remove(subscription);
+        }
+        if(primary)
+            TableManager.resize(this, -TableManager.estimateSize(clause));
+        // delete the clauses resolved from the answers already passed to
+        // the subscription
+        List<Literal> resolved = subscription.producer.getAnswers(0)
+                .subList(0, subscription.cursor);
+        Bindings bindings = new Bindings(clause.getNumSlots());
+        for(Literal fact : resolved) {
+            if(fact == null)
+                continue;
+            PartialClause resolvent = resolve(clause, fact, bindings);
+            if(resolvent != null)
+                delete(resolvent, deletions);
+        }
+        return true;
     }
     
     /**
-     * Resolve the given fact against the given clause and add the resulting
-     * clause to this server.
+     * Subscribe to the answers of this server. Answers already found are
+     * delivered as well as those found later.
      * 
-     * @param clause  the clause
-     * @param fact    the fact
+     * @param subscription  the subscription
      */
-    private void add(Clause clause, Literal fact) {
+    private void subscribe(Subscription subscription) {
+        synchronized(subscribers) {
+            subscribers.add(subscription);
+        }
+        synchronized(facts) {
+            if(answers.isEmpty())
+                return;
+        }
+        subscription.schedule();
+    }
+    
+    /**
+     * Resolve the given fact against the next condition of the given clause
+     * and add the resulting clause to this server.
+     * 
+     * @param clause    the clause
+     * @param proof     the proof of the clause so far
+     * @param fact      the fact
+     * @param bindings  a register file to resolve with
+     */
+    private void add(PartialClause clause, ProofNode proof, Literal fact,
+                     Bindings bindings) {
         /*
          * For example, if the clause is
          *     p(X,Y,Z) :- q(X,Y), r(Y,Z).
@@ -287,20 +1234,34 @@ public final class Server {
          * Then the following clause will be added to the server
          *     p(a,b,Z) :- r(b,Z).
          */
-        try {
-            Literal condition = clause.getCondition(0);
-            Clause newClause = clause.pop().subst(condition.unify(fact));
-            String newClauseTag = newClause.getVariantTag();
-            synchronized(proofs) {
-                if(primary && !proofs.containsKey(newClauseTag))
-                    proofs.put(newClauseTag, new ProofNode(
-                            proofs.get(clause.getVariantTag()), fact));
-            }
-            add(newClause);
-        } catch(UnificationException e) {
+        PartialClause newClause = resolve(clause, fact, bindings);
+        if(newClause == null)
             throw new RuntimeException(
                     "Server returned fact that does not unify with its goal: "
-                    + fact + ", " + clause.getCondition(0));
+                    + fact + ", " + clause.getCondition());
+        add(newClause, primary ? new ProofNode(proof, fact) : null);
+    }
+    
+    /**
+     * Resolve the given fact against the next condition of the given
+     * clause. Ground facts are resolved against the compiled rule without
+     * building any literals.
+     * 
+     * @param clause    the clause
+     * @param fact      the fact
+     * @param bindings  a register file to resolve with
+     * @return          the resolvent, or null if the fact does not match
+     */
+    private static PartialClause resolve(PartialClause clause, Literal fact,
+                                         Bindings bindings) {
+        if(fact.isGround())
+            return clause.resolve(fact, bindings);
+        Clause remaining = clause.toClause();
+        try {
+            return new PartialClause(remaining.pop().subst(
+                    remaining.getCondition(0).unify(fact)).compile());
+        } catch(UnificationException e) {
+            return null;
         }
     }
     
@@ -310,15 +1271,32 @@ public final class Server {
      * @param clause  the matching clause
      */
     private void add(Clause clause) {
+        add(new PartialClause(clause.compile()), null);
+    }
+    
+    /**
+     * Add a partial clause whose head matches this server's goal.
+     * 
+     * @param clause  the matching clause
+     * @param proof   the proof of the clause so far
+     */
+    private void add(PartialClause clause, ProofNode proof) {
         if(clause.isFact()) {
-            add(clause.getHead());
+            Literal head = clause.getHead();
+            if(proof != null)
+                reference(head.getVariantKey(), proof);
+            add(head);
             return;
         }
-        Server server = getServer(clause.getCondition(0));
-        clauses(server).add(clause);
-        Literal[] facts = server.request(this);
-        for(Literal fact : facts)
-            add(clause, fact);
+        Server server = getServer(clause.getCondition());
+        Subscription subscription =
+            new Subscription(this, server, clause, proof);
+        synchronized(subscriptions) {
+            subscriptions.add(subscription);
+        }
+        if(primary)
+            TableManager.resize(this, TableManager.estimateSize(clause));
+        server.subscribe(subscription);
     }
     
     /**
@@ -328,15 +1306,23 @@ public final class Server {
      */
     private void add(Literal fact) {
         synchronized(facts) {
-            if(facts.contains(fact))
+            if(facts.containsKey(fact))
                 return;
-            facts.add(fact);
+            facts.put(fact, answers.size());
+            answers.add(fact);
+            for(Map.Entry<Integer, Map<List<Term>, List<Literal>>> entry :
+                    indexes.entrySet())
+                index(entry.getValue(), entry.getKey(), fact);
+        }
+        if(primary)
+            TableManager.resize(this, TableManager.estimateSize(fact));
+        synchronized(subscribers) {
+            for(Subscription subscription : subscribers)
+                subscription.schedule();
         }
-        Set<Server> clientsCopy;
-        synchronized(clients) {
-            clientsCopy = new HashSet<Server>(clients);
+        synchronized(listeners) {
+            for(StandingQuery listener : listeners)
+                listener.schedule();
         }
-        for(Server client : clientsCopy)
-            client.respond(this, fact);
     }
 }
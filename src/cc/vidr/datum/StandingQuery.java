@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A standing query, which passes each new fact matching its goal to a
+ * listener as the fact is found, for example as a result of a fact being
+ * asserted to the fact database.
+ * 
+ * The table for the goal of a standing query is kept until the query is
+ * cancelled, regardless of the memory budget.
+ * 
+ * @author  David Roberts
+ * @see     Server#listen(Literal, AnswerListener)
+ */
+public final class StandingQuery {
+    /** The goal of the query */
+    private final Literal goal;
+    /** The table for the goal */
+    private final Server server;
+    /** The listener to be passed new facts */
+    private final AnswerListener listener;
+    /** The number of answers of the table already passed to the listener */
+    private int cursor;
+    /** Is the delivery of new facts waiting on the agenda? */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** Has the query been cancelled? */
+    private volatile boolean cancelled = false;
+    /** Task passing new facts to the listener */
+    private final Runnable delivery = new Runnable() {
+        public void run() {
+            deliver();
+        }
+    };
+    
+    /**
+     * Create a new standing query.
+     * 
+     * @param goal      the goal
+     * @param server    the table for the goal
+     * @param listener  the listener to be passed new facts
+     * @param cursor    the number of answers already found, which are not
+     *                  passed to the listener
+     */
+    StandingQuery(Literal goal, Server server, AnswerListener listener,
+                  int cursor) {
+        this.goal = goal;
+        this.server = server;
+        this.listener = listener;
+        this.cursor = cursor;
+    }
+    
+    /**
+     * Return the goal of this query.
+     * 
+     * @return  the goal
+     */
+    public Literal getGoal() {
+        return goal;
+    }
+    
+    /**
+     * Stop passing new facts to the listener.
+     */
+    public void cancel() {
+        cancelled = true;
+        server.unlisten(this);
+    }
+    
+    /**
+     * Return the number of answers of the table already passed to the
+     * listener.
+     * 
+     * @return  the position in the table's answer log
+     */
+    int getCursor() {
+        return cursor;
+    }
+    
+    /**
+     * Move the cursor back by the given number of answers, which have been
+     * removed from the table's answer log before it.
+     * 
+     * @param count  the number of answers removed
+     */
+    void rewind(int count) {
+        cursor -= count;
+    }
+    
+    /**
+     * Add the delivery of new facts to the agenda, unless it is already
+     * waiting.
+     */
+    void schedule() {
+        if(scheduled.compareAndSet(false, true))
+            Agenda.schedule(delivery);
+    }
+    
+    /**
+     * Pass any new facts to the listener.
+     */
+    private synchronized void deliver() {
+        scheduled.set(false);
+        if(cancelled)
+            return;
+        List<Literal> batch = server.getAnswers(cursor);
+        cursor += batch.size();
+        for(Literal fact : batch)
+            if(fact != null)
+                listener.answerFound(fact);
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * Keeps track of the tables (primary servers) in use, and evicts the least
+ * recently used complete tables once their estimated size exceeds the memory
+ * budget. An evicted table is recomputed on demand the next time its goal is
+ * requested. The budget is unlimited unless set, either with
+ * {@link #setBudget(long)} or in bytes by the <code>datum.budget</code>
+ * system property.
+ * 
+ * A goal without a table of its own may instead be answered from a complete
+ * table for a more general goal (subsumptive tabling). Tables listened to by
+ * a standing query are never evicted.
+ * 
+ * @author  David Roberts
+ */
+public final class TableManager {
+    /** Estimated size of an object header plus a reference, in bytes */
+    private static final int OBJECT_OVERHEAD = 24;
+    /** Estimated size of a single argument of a literal, in bytes */
+    private static final int ARGUMENT_OVERHEAD = 40;
+    /** Estimated size of a hash table entry, in bytes */
+    private static final int ENTRY_OVERHEAD = 48;
+    /** The largest number of constant arguments considered for subsumption */
+    private static final int MAX_GENERALISED = 4;
+    
+    /** Mapping of goal variant keys to servers, in access order */
+    private static Map<VariantKey, Server> tables =
+        new LinkedHashMap<VariantKey, Server>(16, 0.75f, true);
+    /** The maximum estimated size of all tables, in bytes */
+    private static long budget = Long.getLong("datum.budget", Long.MAX_VALUE);
+    /** The estimated size of all tables, in bytes */
+    private static long size = 0;
+    /** The number of evaluations currently in progress */
+    private static int evaluations = 0;
+    /** The tables created since the last time evaluation was quiescent */
+    private static List<Server> incomplete = new ArrayList<Server>();
+    /** The limits on the evaluations in progress */
+    private static List<QueryOptions> queries = new ArrayList<QueryOptions>();
+    /** The limits on an evaluation without any */
+    private static final QueryOptions UNLIMITED = new QueryOptions();
+    /** Did an evaluation fail to find every fact for one of its tables? */
+    private static boolean tainted = false;
+    /** Are pending tasks and incomplete tables being discarded? */
+    private static boolean discarding = false;
+    /** Are the tables being updated to reflect a retraction? */
+    private static boolean updating = false;
+    
+    /**
+     * Prevent instantiation.
+     */
+    private TableManager() {}
+    
+    /**
+     * Set the memory budget for all tables.
+     * 
+     * @param bytes  the maximum estimated size of all tables, in bytes
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        if(evaluations == 0)
+            evict();
+    }
+    
+    /**
+     * Return the memory budget for all tables.
+     * 
+     * @return  the maximum estimated size of all tables, in bytes
+     */
+    public static synchronized long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Return the number of tables currently held.
+     * 
+     * @return  the number of tables
+     */
+    public static synchronized int getNumTables() {
+        return tables.size();
+    }
+    
+    /**
+     * Return the estimated size of all tables currently held.
+     * 
+     * @return  the estimated size, in bytes
+     */
+    public static synchronized long getEstimatedBytes() {
+        return size;
+    }
+    
+    /**
+     * Evict all complete tables, regardless of the budget.
+     */
+    public static synchronized void clear() {
+        long oldBudget = budget;
+        budget = 0;
+        evict();
+        budget = oldBudget;
+    }
+    
+    /**
+     * Return the estimated size of the given literal.
+     * 
+     * @param literal  the literal
+     * @return         the estimated size, in bytes
+     */
+    static long estimateSize(Literal literal) {
+        return OBJECT_OVERHEAD + ENTRY_OVERHEAD
+             + ARGUMENT_OVERHEAD * literal.getArity();
+    }
+    
+    /**
+     * Return the estimated size of the given partial clause, which shares
+     * its compiled rule with the other partial clauses of the rule.
+     * 
+     * @param clause  the partial clause
+     * @return        the estimated size, in bytes
+     */
+    static long estimateSize(PartialClause clause) {
+        return 2 * OBJECT_OVERHEAD + ARGUMENT_OVERHEAD * clause.getNumSlots();
+    }
+    
+    /**
+     * Return the estimated size of an index over a table.
+     * 
+     * @param entries  the number of facts in the table
+     * @return         the estimated size, in bytes
+     */
+    static long estimateIndexSize(int entries) {
+        return ENTRY_OVERHEAD * (long) entries;
+    }
+    
+    /**
+     * Return the table with the given goal variant key, marking it as the
+     * most recently used table.
+     * 
+     * @param key  the goal variant key
+     * @return     the table, or null if there is no such table
+     */
+    static synchronized Server get(VariantKey key) {
+        return tables.get(key);
+    }
+    
+    /**
+     * Return a complete table for a goal more general than the given goal,
+     * obtained by replacing some of its constant arguments with variables.
+     * The most specific such table is preferred.
+     * 
+     * @param goal  the goal
+     * @return      the table, or null if there is no such table
+     */
+    static synchronized Server getSubsuming(Literal goal) {
+        List<Integer> constants = new ArrayList<Integer>();
+        for(int i = 0; i < goal.getArity(); i++)
+            if(!goal.getArgument(i).isVariable())
+                constants.add(i);
+        if(constants.isEmpty() || constants.size() > MAX_GENERALISED)
+            return null;
+        // try generalising one constant, then two, and so on
+        for(int count = 1; count <= constants.size(); count++)
+            for(int subset = 1; subset < 1 << constants.size(); subset++) {
+                if(Integer.bitCount(subset) != count)
+                    continue;
+                Term[] arguments = new Term[goal.getArity()];
+                for(int i = 0; i < arguments.length; i++)
+                    arguments[i] = goal.getArgument(i);
+                for(int j = 0; j < constants.size(); j++)
+                    if((subset & (1 << j)) != 0)
+                        arguments[constants.get(j)] = new Variable();
+                Literal general = new Literal(goal.getPredicateSymbol(),
+                                              arguments);
+                Server server = tables.get(general.getVariantKey());
+                if(server != null && server.complete)
+                    return server;
+            }
+        return null;
+    }
+    
+    /**
+     * Add a new table with the given goal variant key.
+     * 
+     * @param key     the goal variant key
+     * @param server  the table
+     */
+    static synchronized void put(VariantKey key, Server server) {
+        server.frame = Agenda.getFrame();
+        if(server.frame.isNested())
+            server.frame.tables.add(server);
+        tables.put(key, server);
+        server.getGoal().getPredicateSymbol().tables.add(server);
+        incomplete.add(server);
+    }
+    
+    /**
+     * Return the tables whose goal matches the given fact.
+     * 
+     * @param fact  the fact
+     * @return      the list of tables
+     */
+    static synchronized List<Server> getMatching(Literal fact) {
+        List<Server> matching = new ArrayList<Server>();
+        for(Server server : fact.getPredicateSymbol().tables)
+            try {
+                server.getGoal().unify(fact);
+                matching.add(server);
+            } catch(UnificationException e) {
+                // fact doesn't match goal
+            }
+        return matching;
+    }
+    
+    /**
+     * Record a change in the estimated size of the given table.
+     * 
+     * @param server  the table
+     * @param delta   the change in size, in bytes
+     */
+    static synchronized void resize(Server server, long delta) {
+        server.size += delta;
+        size += delta;
+    }
+    
+    /**
+     * Record the start of an evaluation.
+     */
+    static void begin() {
+        begin(UNLIMITED);
+    }
+    
+    /**
+     * Record the start of an evaluation with the given limits.
+     * 
+     * @param options  the limits on the evaluation
+     * @return         the frame of the evaluation on the agenda
+     */
+    static synchronized Agenda.Frame begin(QueryOptions options) {
+        boolean interrupted = false;
+        while(discarding || updating)
+            try {
+                TableManager.class.wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        evaluations++;
+        queries.add(options);
+        return Agenda.enter();
+    }
+    
+    /**
+     * Record the start of an update to the tables, which is performed while
+     * no other evaluation is in progress. Waits for the evaluations in
+     * progress to end, so must not be called by a thread which has started
+     * an evaluation (or holds an open stream) itself.
+     */
+    static synchronized void beginUpdate() {
+        boolean interrupted = false;
+        while(discarding || updating || evaluations > 0)
+            try {
+                TableManager.class.wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        updating = true;
+        evaluations++;
+        queries.add(UNLIMITED);
+        Agenda.enter();
+    }
+    
+    /**
+     * Record the end of an update to the tables.
+     */
+    static void endUpdate() {
+        synchronized(TableManager.class) {
+            updating = false;
+        }
+        end();
+    }
+    
+    /**
+     * Record the end of an evaluation which reached its fixpoint.
+     */
+    static void end() {
+        end(UNLIMITED, Agenda.getFrame(), false);
+    }
+    
+    /**
+     * Record the end of an evaluation. The tables created by a nested
+     * evaluation which reached its fixpoint are complete. Once no
+     * evaluations are in progress, all tables are complete and are evicted
+     * if over budget; unless the last evaluation stopped before reaching the
+     * fixpoint or a table is known to be missing facts, in which case the
+     * remaining tasks are discarded along with the incomplete tables.
+     * 
+     * @param options    the limits the evaluation was started with
+     * @param frame      the frame returned when the evaluation was started
+     * @param abandoned  true iff the evaluation stopped before reaching the
+     *                   fixpoint
+     */
+    static void end(QueryOptions options, Agenda.Frame frame,
+                    boolean abandoned) {
+        synchronized(TableManager.class) {
+            queries.remove(options);
+            Agenda.exit(frame);
+            if(frame.isNested() && !abandoned && !tainted) {
+                for(Server server : frame.tables)
+                    server.complete = true;
+                incomplete.removeAll(new HashSet<Server>(frame.tables));
+                frame.tables.clear();
+            }
+            if(--evaluations > 0)
+                return;
+            if(!abandoned && !tainted) {
+                for(Server server : incomplete)
+                    server.complete = true;
+                incomplete.clear();
+                TableManager.class.notifyAll();
+                evict();
+                return;
+            }
+            discarding = true;
+        }
+        // tasks still being performed may need this lock to finish
+        Agenda.discard();
+        synchronized(TableManager.class) {
+            discard(incomplete);
+            incomplete.clear();
+            tainted = false;
+            discarding = false;
+            TableManager.class.notifyAll();
+            evict();
+        }
+    }
+    
+    /**
+     * Record that a table of an evaluation in progress may be missing facts,
+     * for example because a builtin gave up at the deadline, so the tables
+     * created by the evaluation cannot be trusted to be complete.
+     */
+    static synchronized void taint() {
+        tainted = true;
+    }
+    
+    /**
+     * Return the limits under which further results are needed: those of
+     * the evaluation in progress if there is only one, so that cancelling it
+     * stops the work it started. Otherwise the results are needed until the
+     * latest deadline of the evaluations in progress, since a cancelled
+     * evaluation may share its tables with the others.
+     * 
+     * @return  the limits
+     */
+    static synchronized QueryOptions getOptions() {
+        if(queries.size() == 1)
+            return queries.get(0);
+        long latest = 0;
+        for(QueryOptions options : queries)
+            latest = Math.max(latest, options.getDeadline());
+        QueryOptions options = new QueryOptions();
+        if(!queries.isEmpty())
+            options.setDeadline(latest);
+        return options;
+    }
+    
+    /**
+     * Remove the given tables, along with every table depending on them.
+     * 
+     * @param servers  the tables
+     */
+    private static void discard(List<Server> servers) {
+        Set<Server> victims = new HashSet<Server>(servers);
+        List<Server> queue = new ArrayList<Server>(servers);
+        while(!queue.isEmpty())
+            for(Server client : queue.remove(queue.size() - 1).getClients())
+                if(victims.add(client))
+                    queue.add(client);
+        remove(victims);
+    }
+    
+    /**
+     * Evict least recently used tables until the estimated size is within
+     * the budget. A table is only evicted along with every table depending on
+     * it, so no remaining table is left waiting on an evicted one.
+     */
+    private static void evict() {
+        if(size <= budget)
+            return;
+        List<Server> coldest = new ArrayList<Server>();
+        for(Server server : tables.values())
+            if(server.complete && !server.isPinned())
+                coldest.add(server);
+        Set<Server> victims = new HashSet<Server>();
+        long freed = 0;
+        // consider increasingly large sets of cold tables until enough of
+        // them can be evicted together
+        for(int n = 1; freed < size - budget; n *= 2) {
+            victims = closure(coldest.subList(0, Math.min(n, coldest.size())));
+            freed = 0;
+            for(Server victim : victims)
+                freed += victim.size;
+            if(n >= coldest.size())
+                break;
+        }
+        remove(victims);
+    }
+    
+    /**
+     * Remove the given tables, detaching them from the remaining tables.
+     * 
+     * @param victims  the tables
+     */
+    private static void remove(Set<Server> victims) {
+        if(victims.isEmpty())
+            return;
+        for(Map.Entry<VariantKey, Server> entry :
+                new ArrayList<Map.Entry<VariantKey, Server>>(
+                        tables.entrySet()))
+            if(victims.contains(entry.getValue()))
+                tables.remove(entry.getKey());
+        for(Server victim : victims) {
+            victim.getGoal().getPredicateSymbol().tables.remove(victim);
+            victim.detach();
+            size -= victim.size;
+            victim.size = 0;
+        }
+    }
+    
+    /**
+     * Return the largest subset of the given tables such that every client of
+     * a table in the subset is also in the subset.
+     * 
+     * @param candidates  the tables
+     * @return            the subset
+     */
+    private static Set<Server> closure(List<Server> candidates) {
+        Set<Server> subset = new HashSet<Server>(candidates);
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Server server : new ArrayList<Server>(subset))
+                if(!subset.containsAll(server.getClients())) {
+                    subset.remove(server);
+                    changed = true;
+                }
+        }
+        return subset;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * A key identifying a literal or clause up to renaming of its variables.
+ * 
+ * Two keys are equal iff the literals (or clauses) they were created from
+ * are alphabetic variants of each other. Unlike variant tags, keys are
+ * compared structurally: constants are compared with their own equality
+ * rather than by formatting them as strings, and variables are replaced by
+ * the order in which they first occur.
+ * 
+ * @author  David Roberts
+ * @see     Literal#getVariantTag()
+ */
+public final class VariantKey {
+    /** Multiplier used to mix the hash of each part into the whole */
+    private static final long MULTIPLIER = 0x100000001b3L;
+    
+    /**
+     * The predicate of each literal followed by its arguments, with each
+     * variable replaced by the index of its first occurrence
+     */
+    private final Object[] parts;
+    /** The 64-bit hash of the parts */
+    private final long hash;
+    
+    /**
+     * Create a new key for the given sequence of literals, numbering the
+     * variables across all of them.
+     * 
+     * @param literals  the literals
+     */
+    VariantKey(Literal... literals) {
+        int length = 0;
+        for(Literal literal : literals)
+            length += 1 + literal.getArity();
+        parts = new Object[length];
+        List<Variable> variables = new ArrayList<Variable>();
+        int n = 0;
+        for(Literal literal : literals) {
+            parts[n++] = literal.getPredicateSymbol();
+            for(int i = 0; i < literal.getArity(); i++) {
+                Term argument = literal.getArgument(i);
+                if(argument instanceof Variable) {
+                    int index = variables.indexOf(argument);
+                    if(index < 0) {
+                        index = variables.size();
+                        variables.add((Variable) argument);
+                    }
+                    parts[n++] = index;
+                } else {
+                    parts[n++] = argument;
+                }
+            }
+        }
+        long h = 1;
+        for(Object part : parts)
+            h = (h ^ part.hashCode()) * MULTIPLIER;
+        hash = h;
+    }
+    
+    /**
+     * Return the 64-bit hash of this key.
+     * 
+     * @return  the hash
+     */
+    public long getHash() {
+        return hash;
+    }
+    
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(o instanceof VariantKey) {
+            VariantKey k = (VariantKey) o;
+            if(hash != k.hash || parts.length != k.parts.length)
+                return false;
+            for(int i = 0; i < parts.length; i++)
+                // predicates are unique
+                if(parts[i] != k.parts[i] && !parts[i].equals(k.parts[i]))
+                    return false;
+            return true;
+        }
+        return false;
+    }
+    
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+    
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        int i = 0;
+        while(i < parts.length) {
+            if(i > 0)
+                builder.append(", ");
+            Predicate predicate = (Predicate) parts[i++];
+            int arity = predicate.getArity();
+            builder.append(predicate.getName());
+            for(int j = 0; j < arity; j++) {
+                builder.append(j == 0 ? '(' : ',');
+                Object part = parts[i++];
+                builder.append(part instanceof Integer ? "_" + part : part);
+            }
+            if(arity > 0)
+                builder.append(')');
+        }
+        return builder.toString();
+    }
+}
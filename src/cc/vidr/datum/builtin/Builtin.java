@@ -17,20 +17,43 @@
 
 package cc.vidr.datum.builtin;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.QueryOptions;
 
 /**
  * Handles literals with built-in predicates.
  * 
+ * Handlers which block on I/O should perform it through
+ * {@link #call(Callable, QueryOptions)}, so that a query which is cancelled
+ * or reaches its deadline stops waiting for them.
+ * 
  * @author  David Roberts
  */
 public abstract class Builtin {
-    /** Mapping of built-in predicates to their corresponding handler */
-    private static Map<String, Builtin> builtins =
-        new HashMap<String, Builtin>();
+    /** The connection timeout for a query without a deadline, in ms */
+    private static final int DEFAULT_TIMEOUT = 30000;
+    /** The interval at which a blocked handler checks its query, in ms */
+    private static final long POLL_INTERVAL = 100;
+    /** The threads performing blocking requests for handlers */
+    private static final ExecutorService requests =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "datum-builtin");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     
     static {
         // register default builtins
@@ -43,12 +66,13 @@ public abstract class Builtin {
     }
     
     /**
-     * Register the given built-in handler.
+     * Register the given built-in handler with its predicate.
      * 
      * @param builtin  the handler
+     * @see            Predicate#getBuiltin()
      */
     public static void register(Builtin builtin) {
-        builtins.put(builtin.predicate(), builtin);
+        Predicate.get(builtin.predicate()).setBuiltin(builtin);
     }
     
     /**
@@ -59,7 +83,18 @@ public abstract class Builtin {
      * @return           true iff it is a built-in predicate
      */
     public static boolean isBuiltinPredicate(String predicate) {
-        return builtins.containsKey(predicate);
+        return isBuiltinPredicate(Predicate.get(predicate));
+    }
+    
+    /**
+     * Returns true iff there is a built-in handler registered for the given
+     * predicate.
+     * 
+     * @param predicate  the predicate
+     * @return           true iff it is a built-in predicate
+     */
+    public static boolean isBuiltinPredicate(Predicate predicate) {
+        return predicate.getBuiltin() != null;
     }
     
     /**
@@ -69,13 +104,78 @@ public abstract class Builtin {
      * @return      the array of facts
      */
     public static Literal[] satisfy(Literal goal) {
+        return satisfy(goal, new QueryOptions());
+    }
+    
+    /**
+     * Return the array of facts that satisfy the given goal, giving up once
+     * the query passes its deadline or is cancelled. If it already has, no
+     * facts are returned.
+     * 
+     * @param goal     the goal literal
+     * @param options  the limits on the query
+     * @return         the array of facts
+     */
+    public static Literal[] satisfy(Literal goal, QueryOptions options) {
+        if(options.isExpired())
+            return new Literal[0];
         try {
-            return builtins.get(goal.getPredicate()).handle(goal);
+            Builtin builtin = goal.getPredicateSymbol().getBuiltin();
+            return builtin.handle(goal, options);
         } catch(Exception e) {
             return new Literal[0];
         }
     }
     
+    /**
+     * Return the time remaining until the deadline of the given query,
+     * suitable for use as a connection timeout.
+     * 
+     * @param options  the limits on the query
+     * @return         the time remaining in milliseconds (at least one), or
+     *                 a default timeout if there is no deadline
+     */
+    protected static int getTimeout(QueryOptions options) {
+        long deadline = options.getDeadline();
+        if(deadline == Long.MAX_VALUE)
+            return DEFAULT_TIMEOUT;
+        long remaining = deadline - System.currentTimeMillis();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+    }
+    
+    /**
+     * Perform the given blocking request on another thread, checking the
+     * given query while waiting, so that the caller gives up as soon as
+     * the query passes its deadline or is cancelled. The request is then
+     * interrupted, but should also have a finite timeout of its own, since
+     * blocking I/O does not always respond to interruption.
+     * 
+     * @param request  the request
+     * @param options  the limits on the query
+     * @return         the result of the request
+     * @throws         CancellationException if the query expired first
+     * @throws         Exception if the request failed
+     */
+    protected static <T> T call(Callable<T> request, QueryOptions options)
+    throws Exception {
+        Future<T> future = requests.submit(request);
+        try {
+            while(!options.isExpired())
+                try {
+                    return future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch(TimeoutException e) {
+                    // check the query again
+                }
+            throw new CancellationException();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        } finally {
+            future.cancel(true);
+        }
+    }
+    
     /**
      * Return the built-in predicate corresponding to this handler.
      * 
@@ -90,4 +190,18 @@ public abstract class Builtin {
      * @return      the array of facts satisfying the goal
      */
     protected abstract Literal[] handle(Literal goal) throws Exception;
+    
+    /**
+     * Handle the given goal, giving up once the query passes its deadline or
+     * is cancelled. Handlers which may block should override this to
+     * respect the limits.
+     * 
+     * @param goal     the goal literal
+     * @param options  the limits on the query
+     * @return         the array of facts satisfying the goal
+     */
+    protected Literal[] handle(Literal goal, QueryOptions options)
+    throws Exception {
+        return handle(goal);
+    }
 }
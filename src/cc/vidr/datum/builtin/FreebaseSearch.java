@@ -19,10 +19,12 @@ package cc.vidr.datum.builtin;
 
 import java.net.URLEncoder;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.json.simple.JSONObject;
 
 import cc.vidr.datum.Literal;
+import cc.vidr.datum.QueryOptions;
 import cc.vidr.datum.term.Atom;
 import cc.vidr.datum.term.StringTerm;
 import cc.vidr.datum.util.FreebaseUtils;
@@ -40,10 +42,15 @@ public class FreebaseSearch extends Builtin {
     }
     
     protected Literal[] handle(Literal goal) throws Exception {
+        return handle(goal, new QueryOptions());
+    }
+    
+    protected Literal[] handle(Literal goal, QueryOptions options)
+    throws Exception {
         if(!goal.getArgument(1).isVariable())
             return new Literal[0];
         String query = ((StringTerm) goal.getArgument(0)).getValue();
-        Atom atom = search(query);
+        Atom atom = search(query, options);
         return new Literal[] {
                 new Literal(predicate(), new StringTerm(query), atom) };
     }
@@ -51,12 +58,19 @@ public class FreebaseSearch extends Builtin {
     /**
      * Return the atom that is the best match for the given query.
      * 
-     * @param query  the query
-     * @return       the atom
+     * @param query    the query
+     * @param options  the limits on the query
+     * @return         the atom
      */
-    private static Atom search(String query) throws Exception {
-        List<JSONObject> result = FreebaseUtils.getResultList(
-                path + URLEncoder.encode(query, "UTF-8"));
+    private static Atom search(String query, QueryOptions options)
+    throws Exception {
+        final String request = path + URLEncoder.encode(query, "UTF-8");
+        final int timeout = getTimeout(options);
+        List<JSONObject> result = call(new Callable<List<JSONObject>>() {
+            public List<JSONObject> call() throws Exception {
+                return FreebaseUtils.getResultList(request, timeout);
+            }
+        }, options);
         JSONObject result0 = result.get(0);
         String id = (String) result0.get("id");
         return FreebaseUtils.atomFromID(id);
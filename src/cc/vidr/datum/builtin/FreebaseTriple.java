@@ -21,10 +21,12 @@ import java.net.URLEncoder;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.json.simple.JSONObject;
 
 import cc.vidr.datum.Literal;
+import cc.vidr.datum.QueryOptions;
 import cc.vidr.datum.UnificationException;
 import cc.vidr.datum.term.Atom;
 import cc.vidr.datum.term.StringTerm;
@@ -44,6 +46,11 @@ public class FreebaseTriple extends Builtin {
     }
     
     protected Literal[] handle(Literal goal) throws Exception {
+        return handle(goal, new QueryOptions());
+    }
+    
+    protected Literal[] handle(Literal goal, QueryOptions options)
+    throws Exception {
         Term subject = goal.getArgument(0);
         String property = ((StringTerm) goal.getArgument(1)).getValue();
         String type = goal.getArgument(2).toString();
@@ -53,7 +60,7 @@ public class FreebaseTriple extends Builtin {
                 "\"id\":" + FreebaseUtils.termToString(subject) + "," +
                 "\"" + property + "\":[" +
                 FreebaseUtils.termToJSON(object, type) + "]" +
-                "}]}", property, type);
+                "}]}", property, type, options);
         for(Iterator<Literal> iter = literals.iterator(); iter.hasNext();)
             try {
                 iter.next().unify(goal);
@@ -70,14 +77,20 @@ public class FreebaseTriple extends Builtin {
      * @param query     the MQL query
      * @param property  the property being queried
      * @param type      the type of the property
+     * @param options   the limits on the query
      * @return          the list of facts
      */
     @SuppressWarnings("unchecked")
-    private List<Literal> query(String query, String property, String type)
-    throws Exception {
+    private List<Literal> query(String query, String property, String type,
+                                QueryOptions options) throws Exception {
         List<Literal> list = new LinkedList<Literal>();
-        List<JSONObject> result = FreebaseUtils.getResultList(
-                path + URLEncoder.encode(query, "UTF-8"));
+        final String request = path + URLEncoder.encode(query, "UTF-8");
+        final int timeout = getTimeout(options);
+        List<JSONObject> result = call(new Callable<List<JSONObject>>() {
+            public List<JSONObject> call() throws Exception {
+                return FreebaseUtils.getResultList(request, timeout);
+            }
+        }, options);
         for(JSONObject subject : result)
             for(JSONObject object : (List<JSONObject>) subject.get(property))
                 try {
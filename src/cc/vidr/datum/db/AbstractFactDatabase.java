@@ -19,26 +19,43 @@ package cc.vidr.datum.db;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import cc.vidr.datum.Bindings;
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.CompiledClause;
 import cc.vidr.datum.Literal;
 import cc.vidr.datum.UnificationException;
 
 /**
  * A basic implementation of a FactDatabase which filters out matching facts
- * from a collection of roughly matching facts.
+ * from a collection of roughly matching facts, and keeps track of listeners.
  * 
  * @author  David Roberts
  */
 public abstract class AbstractFactDatabase implements FactDatabase {
+    /** The listeners to be notified of changes */
+    private List<FactListener> listeners =
+        new CopyOnWriteArrayList<FactListener>();
+    
     public Literal[] search(Literal goal) {
         List<Literal> facts = new ArrayList<Literal>();
-        for(Literal literal : searchRaw(goal))
-            try {
-                literal.unify(goal);
-                facts.add(literal);
-            } catch(UnificationException e) {
-                // literal doesn't match goal
+        CompiledClause pattern = new Clause(goal).compile();
+        Bindings bindings = new Bindings(pattern.getNumSlots());
+        for(Literal literal : searchRaw(goal)) {
+            if(!literal.isGround()) {
+                try {
+                    literal.unify(goal);
+                    facts.add(literal);
+                } catch(UnificationException e) {
+                    // literal doesn't match goal
+                }
+                continue;
             }
+            if(pattern.match(0, literal, bindings))
+                facts.add(literal);
+            bindings.undo(0);
+        }
         return facts.toArray(new Literal[0]);
     }
     
@@ -49,4 +66,34 @@ public abstract class AbstractFactDatabase implements FactDatabase {
      * @return      the collection of facts
      */
     protected abstract Iterable<Literal> searchRaw(Literal goal);
+    
+    public void addFactListener(FactListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeFactListener(FactListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Notify the listeners that the given fact has been asserted. Should be
+     * called by subclasses once the fact has been stored.
+     * 
+     * @param fact  the fact
+     */
+    protected void fireFactAsserted(Literal fact) {
+        for(FactListener listener : listeners)
+            listener.factAsserted(fact);
+    }
+    
+    /**
+     * Notify the listeners that the given fact has been retracted. Should be
+     * called by subclasses once the fact has been removed.
+     * 
+     * @param fact  the fact
+     */
+    protected void fireFactRetracted(Literal fact) {
+        for(FactListener listener : listeners)
+            listener.factRetracted(fact);
+    }
 }
@@ -19,6 +19,7 @@ package cc.vidr.datum.db;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import cc.vidr.datum.Clause;
 import cc.vidr.datum.Literal;
@@ -26,11 +27,15 @@ import cc.vidr.datum.UnificationException;
 
 /**
  * A basic implementation of a RuleDatabase which filters out matching rules
- * from a collection of roughly matching rules.
+ * from a collection of roughly matching rules, and keeps track of listeners.
  * 
  * @author  David Roberts
  */
 public abstract class AbstractRuleDatabase implements RuleDatabase {
+    /** The listeners to be notified of changes */
+    private List<RuleListener> listeners =
+        new CopyOnWriteArrayList<RuleListener>();
+    
     public Clause[] search(Literal goal) {
         List<Clause> rules = new ArrayList<Clause>();
         for(Clause clause : searchRaw(goal))
@@ -49,4 +54,34 @@ public abstract class AbstractRuleDatabase implements RuleDatabase {
      * @return      the collection of rules
      */
     protected abstract Iterable<Clause> searchRaw(Literal goal);
+    
+    public void addRuleListener(RuleListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeRuleListener(RuleListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Notify the listeners that the given rule has been asserted. Should be
+     * called by subclasses once the rule has been stored.
+     * 
+     * @param rule  the rule
+     */
+    protected void fireRuleAsserted(Clause rule) {
+        for(RuleListener listener : listeners)
+            listener.ruleAsserted(rule);
+    }
+    
+    /**
+     * Notify the listeners that the given rule has been retracted. Should be
+     * called by subclasses once the rule has been removed.
+     * 
+     * @param rule  the rule
+     */
+    protected void fireRuleRetracted(Clause rule) {
+        for(RuleListener listener : listeners)
+            listener.ruleRetracted(rule);
+    }
 }
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.UnificationException;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.VariantKey;
+import cc.vidr.datum.term.Term;
+
+/**
+ * A FactDatabase which caches the facts found by another FactDatabase, so
+ * that searching again for a variant of a goal does not search the
+ * underlying database.
+ * 
+ * The cache is bounded both in the number of goals and in the total weight
+ * of the entries, where the weight of an entry is one more than the number
+ * of facts it holds, so goals with no facts are cached too. Entries are
+ * evicted with a segmented LRU policy: a new entry is put on probation,
+ * and is only protected once it is found again, so a burst of goals which
+ * are searched for once cannot evict the entries which are searched for
+ * repeatedly. Protected entries which are least recently used are moved
+ * back to probation to keep the protected segment to its share of the
+ * cache, and entries are evicted from probation first.
+ * 
+ * The cache listens to the underlying database, and a fact asserted or
+ * retracted there invalidates exactly the cached goals which it matches,
+ * which are found through an index of cached goals by predicate and first
+ * argument. A search which overlaps a write to its predicate is not
+ * cached. To cache the facts of the JDO datastore, wrap it when starting
+ * up, e.g.
+ * 
+ * <pre>
+ * Server.factDatabase = new CachingFactDatabase(new JDOFactDatabase());</pre>
+ * 
+ * @author  David Roberts
+ */
+public class CachingFactDatabase implements FactDatabase {
+    /** The default maximum number of cached goals */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    /** The default maximum total weight of the cached entries */
+    public static final long DEFAULT_MAX_WEIGHT = 1000000;
+    /** The share of the cache which may be protected, in percent */
+    private static final int PROTECTED_PERCENT = 80;
+    /** Indexes the cached goals whose first argument is a variable */
+    private static final Object ANY = new Object();
+    
+    /** The underlying database */
+    private final FactDatabase db;
+    /** The maximum number of cached goals */
+    private final int maxEntries;
+    /** The maximum total weight of the cached entries */
+    private final long maxWeight;
+    /** The entries on probation, least recently used first */
+    private final Map<VariantKey, Entry> probation =
+        new LinkedHashMap<VariantKey, Entry>(16, 0.75f, true);
+    /** The protected entries, least recently used first */
+    private final Map<VariantKey, Entry> protectedEntries =
+        new LinkedHashMap<VariantKey, Entry>(16, 0.75f, true);
+    /** The total weight of the entries on probation */
+    private long probationWeight = 0;
+    /** The total weight of the protected entries */
+    private long protectedWeight = 0;
+    /** Mapping of predicates to their entries, by first argument */
+    private final Map<Predicate, Map<Object, Set<Entry>>> index =
+        new HashMap<Predicate, Map<Object, Set<Entry>>>();
+    /** Mapping of predicates to the number of writes to them */
+    private final Map<Predicate, Integer> versions =
+        new HashMap<Predicate, Integer>();
+    /** The number of searches answered from the cache */
+    private long numHits = 0;
+    /** The number of searches passed to the underlying database */
+    private long numMisses = 0;
+    /** The number of entries evicted to make room for others */
+    private long numEvictions = 0;
+    /** The number of entries invalidated by writes */
+    private long numInvalidations = 0;
+    
+    /**
+     * Create a new cache in front of the given database, with the default
+     * bounds.
+     * 
+     * @param db  the underlying database
+     */
+    public CachingFactDatabase(FactDatabase db) {
+        this(db, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+    
+    /**
+     * Create a new cache in front of the given database.
+     * 
+     * @param db          the underlying database
+     * @param maxEntries  the maximum number of cached goals
+     * @param maxWeight   the maximum total weight of the cached entries
+     */
+    public CachingFactDatabase(FactDatabase db, int maxEntries,
+                               long maxWeight) {
+        this.db = db;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        db.addFactListener(new FactListener() {
+            public void factAsserted(Literal fact) {
+                invalidate(fact);
+            }
+            
+            public void factRetracted(Literal fact) {
+                invalidate(fact);
+            }
+        });
+    }
+    
+    public Literal[] search(Literal goal) {
+        VariantKey key = goal.getVariantKey();
+        Predicate predicate = goal.getPredicateSymbol();
+        int version;
+        synchronized(this) {
+            Entry entry = probation.remove(key);
+            if(entry != null) {
+                // found again, so protect it
+                probationWeight -= entry.weight;
+                protectedEntries.put(key, entry);
+                protectedWeight += entry.weight;
+                demote();
+            } else {
+                entry = protectedEntries.get(key);
+            }
+            if(entry != null) {
+                numHits++;
+                // facts are ground, so they are the same for every variant
+                return entry.facts.clone();
+            }
+            numMisses++;
+            version = getVersion(predicate);
+        }
+        Literal[] facts = db.search(goal);
+        synchronized(this) {
+            if(getVersion(predicate) == version
+            && !probation.containsKey(key)
+            && !protectedEntries.containsKey(key))
+                add(new Entry(key, goal, facts));
+        }
+        return facts;
+    }
+    
+    public void assertFact(Literal fact) throws UnsafeException {
+        db.assertFact(fact);
+    }
+    
+    public boolean retractFact(Literal fact) {
+        return db.retractFact(fact);
+    }
+    
+    public void addFactListener(FactListener listener) {
+        db.addFactListener(listener);
+    }
+    
+    public void removeFactListener(FactListener listener) {
+        db.removeFactListener(listener);
+    }
+    
+    /**
+     * Discard every cached entry. The statistics are kept.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedEntries.clear();
+        probationWeight = 0;
+        protectedWeight = 0;
+        index.clear();
+    }
+    
+    /**
+     * Return the number of cached goals.
+     * 
+     * @return  the number of goals
+     */
+    public synchronized int size() {
+        return probation.size() + protectedEntries.size();
+    }
+    
+    /**
+     * Return the total weight of the cached entries.
+     * 
+     * @return  the weight
+     */
+    public synchronized long getWeight() {
+        return probationWeight + protectedWeight;
+    }
+    
+    /**
+     * Return the number of searches answered from the cache.
+     * 
+     * @return  the number of hits
+     */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+    
+    /**
+     * Return the number of searches passed to the underlying database.
+     * 
+     * @return  the number of misses
+     */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+    
+    /**
+     * Return the number of entries evicted to make room for others.
+     * 
+     * @return  the number of evictions
+     */
+    public synchronized long getNumEvictions() {
+        return numEvictions;
+    }
+    
+    /**
+     * Return the number of entries invalidated by facts asserted or
+     * retracted.
+     * 
+     * @return  the number of invalidations
+     */
+    public synchronized long getNumInvalidations() {
+        return numInvalidations;
+    }
+    
+    public synchronized String toString() {
+        return "CachingFactDatabase[entries " + size() + ", weight "
+             + getWeight() + ", hits " + numHits + ", misses " + numMisses
+             + ", evictions " + numEvictions + ", invalidations "
+             + numInvalidations + "]";
+    }
+    
+    /**
+     * Return the number of writes to the given predicate.
+     * 
+     * @param predicate  the predicate
+     * @return           the number of writes
+     */
+    private int getVersion(Predicate predicate) {
+        Integer version = versions.get(predicate);
+        return version == null ? 0 : version;
+    }
+    
+    /**
+     * Put the given entry on probation, evicting entries if the cache is
+     * over its bounds. Entries heavier than the whole cache are not added.
+     * 
+     * @param entry  the entry
+     */
+    private void add(Entry entry) {
+        if(entry.weight > maxWeight)
+            return;
+        probation.put(entry.key, entry);
+        probationWeight += entry.weight;
+        getIndex(entry.goal.getPredicateSymbol(), getIndexKey(entry.goal),
+                 true).add(entry);
+        while(size() > maxEntries
+           || probationWeight + protectedWeight > maxWeight) {
+            Map<VariantKey, Entry> segment =
+                probation.isEmpty() ? protectedEntries : probation;
+            remove(segment.values().iterator().next());
+            numEvictions++;
+        }
+    }
+    
+    /**
+     * Move the least recently used protected entries to probation until the
+     * protected segment is within its share of the cache.
+     */
+    private void demote() {
+        long maxProtectedWeight = maxWeight * PROTECTED_PERCENT / 100;
+        long maxProtected = (long) maxEntries * PROTECTED_PERCENT / 100;
+        Iterator<Entry> it = protectedEntries.values().iterator();
+        while(protectedEntries.size() > maxProtected
+           || protectedWeight > maxProtectedWeight) {
+            Entry entry = it.next();
+            it.remove();
+            protectedWeight -= entry.weight;
+            probation.put(entry.key, entry);
+            probationWeight += entry.weight;
+        }
+    }
+    
+    /**
+     * Remove the given entry from the cache.
+     * 
+     * @param entry  the entry
+     */
+    private void remove(Entry entry) {
+        if(probation.remove(entry.key) != null)
+            probationWeight -= entry.weight;
+        else if(protectedEntries.remove(entry.key) != null)
+            protectedWeight -= entry.weight;
+        Predicate predicate = entry.goal.getPredicateSymbol();
+        Object indexKey = getIndexKey(entry.goal);
+        Set<Entry> entries = getIndex(predicate, indexKey, false);
+        if(entries != null && entries.remove(entry) && entries.isEmpty()) {
+            Map<Object, Set<Entry>> byArgument = index.get(predicate);
+            byArgument.remove(indexKey);
+            if(byArgument.isEmpty())
+                index.remove(predicate);
+        }
+    }
+    
+    /**
+     * Remove the entries of the goals matched by the given fact, which has
+     * been asserted or retracted.
+     * 
+     * @param fact  the fact
+     */
+    private synchronized void invalidate(Literal fact) {
+        Predicate predicate = fact.getPredicateSymbol();
+        versions.put(predicate, getVersion(predicate) + 1);
+        Map<Object, Set<Entry>> byArgument = index.get(predicate);
+        if(byArgument == null)
+            return;
+        Set<Entry> candidates = new HashSet<Entry>();
+        if(byArgument.containsKey(ANY))
+            candidates.addAll(byArgument.get(ANY));
+        Object indexKey = getIndexKey(fact);
+        if(indexKey != ANY && byArgument.containsKey(indexKey))
+            candidates.addAll(byArgument.get(indexKey));
+        for(Entry entry : candidates) {
+            try {
+                entry.goal.unify(fact);
+            } catch(UnificationException e) {
+                continue;
+            }
+            remove(entry);
+            numInvalidations++;
+        }
+    }
+    
+    /**
+     * Return the key under which the given goal is indexed: its first
+     * argument if that is a constant, and ANY otherwise.
+     * 
+     * @param goal  the goal
+     * @return      the key
+     */
+    private static Object getIndexKey(Literal goal) {
+        if(goal.getArity() == 0)
+            return ANY;
+        Term argument = goal.getArgument(0);
+        return argument.isVariable() ? ANY : argument;
+    }
+    
+    /**
+     * Return the set of entries of the given predicate indexed under the
+     * given key.
+     * 
+     * @param predicate  the predicate
+     * @param indexKey   the key
+     * @param create     true to create the set if there is none
+     * @return           the set, or null if there is none and create is
+     *                   false
+     */
+    private Set<Entry> getIndex(Predicate predicate, Object indexKey,
+                                boolean create) {
+        Map<Object, Set<Entry>> byArgument = index.get(predicate);
+        if(byArgument == null) {
+            if(!create)
+                return null;
+            byArgument = new HashMap<Object, Set<Entry>>();
+            index.put(predicate, byArgument);
+        }
+        Set<Entry> entries = byArgument.get(indexKey);
+        if(entries == null && create) {
+            entries = new HashSet<Entry>();
+            byArgument.put(indexKey, entries);
+        }
+        return entries;
+    }
+    
+    /**
+     * The facts found for a goal.
+     */
+    private static class Entry {
+        /** The variant key of the goal */
+        final VariantKey key;
+        /** The goal */
+        final Literal goal;
+        /** The facts */
+        final Literal[] facts;
+        /** The weight of the entry */
+        final long weight;
+        
+        /**
+         * Create a new entry for the given goal.
+         * 
+         * @param key    the variant key of the goal
+         * @param goal   the goal
+         * @param facts  the facts
+         */
+        Entry(VariantKey key, Literal goal, Literal[] facts) {
+            this.key = key;
+            this.goal = goal;
+            this.facts = facts.clone();
+            this.weight = 1 + facts.length;
+        }
+    }
+}
@@ -41,4 +41,27 @@ public interface FactDatabase {
      * @throws      UnsafeException if the fact is not ground
      */
     void assertFact(Literal fact) throws UnsafeException;
+    
+    /**
+     * Retract the given fact.
+     * 
+     * @param fact  the fact
+     * @return      true iff the database contained the fact
+     */
+    boolean retractFact(Literal fact);
+    
+    /**
+     * Register the given listener to be notified of facts asserted to or
+     * retracted from this database.
+     * 
+     * @param listener  the listener
+     */
+    void addFactListener(FactListener listener);
+    
+    /**
+     * Stop notifying the given listener of changes to this database.
+     * 
+     * @param listener  the listener
+     */
+    void removeFactListener(FactListener listener);
 }
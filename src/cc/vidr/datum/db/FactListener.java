@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db;
+
+import cc.vidr.datum.Literal;
+
+/**
+ * Receives notification of changes to a FactDatabase.
+ * 
+ * @author  David Roberts
+ */
+public interface FactListener {
+    /**
+     * Called after the given fact has been asserted.
+     * 
+     * @param fact  the fact
+     */
+    void factAsserted(Literal fact);
+    
+    /**
+     * Called after the given fact has been retracted.
+     * 
+     * @param fact  the fact
+     */
+    void factRetracted(Literal fact);
+}
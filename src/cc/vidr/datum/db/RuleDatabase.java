@@ -42,4 +42,27 @@ public interface RuleDatabase {
      * @throws      UnsafeException if the rule is unsafe
      */
     void assertRule(Clause rule) throws UnsafeException;
+    
+    /**
+     * Retract the given rule, or any variant of it.
+     * 
+     * @param rule  the rule
+     * @return      true iff the database contained the rule
+     */
+    boolean retractRule(Clause rule);
+    
+    /**
+     * Register the given listener to be notified of rules asserted to or
+     * retracted from this database.
+     * 
+     * @param listener  the listener
+     */
+    void addRuleListener(RuleListener listener);
+    
+    /**
+     * Stop notifying the given listener of changes to this database.
+     * 
+     * @param listener  the listener
+     */
+    void removeRuleListener(RuleListener listener);
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.VariantKey;
+import cc.vidr.datum.term.Term;
+
+/**
+ * An in-memory index of rules by the arguments of their heads, which finds
+ * the rules whose heads may unify with a goal without trying every rule of
+ * its predicate.
+ * 
+ * For each argument position of a predicate, the rules are indexed by the
+ * constant in that position of their head, and the rules with a variable
+ * there are listed separately. A goal is looked up by whichever of its
+ * bound arguments selects the fewest rules, and the rules selected are
+ * only returned if every constant in their head equals the corresponding
+ * constant of the goal. Repeated variables are left to unification. Rules
+ * are kept as they were added, so they must be renamed before use.
+ * 
+ * @author  David Roberts
+ */
+public final class RuleIndex {
+    /** Mapping of predicates to their rules */
+    private final Map<Predicate, Rules> predicates =
+        new HashMap<Predicate, Rules>();
+    
+    /**
+     * Add the given rule, unless a variant of it has already been added.
+     * 
+     * @param rule  the rule
+     * @return      true iff the rule was added
+     */
+    public synchronized boolean add(Clause rule) {
+        Literal head = rule.getHead();
+        Predicate predicate = head.getPredicateSymbol();
+        Rules rules = predicates.get(predicate);
+        if(rules == null) {
+            rules = new Rules(predicate.getArity());
+            predicates.put(predicate, rules);
+        }
+        return rules.add(rule);
+    }
+    
+    /**
+     * Remove the given rule, or any variant of it.
+     * 
+     * @param rule  the rule
+     * @return      true iff the index contained the rule
+     */
+    public synchronized boolean remove(Clause rule) {
+        Predicate predicate = rule.getHead().getPredicateSymbol();
+        Rules rules = predicates.get(predicate);
+        if(rules == null || !rules.remove(rule))
+            return false;
+        if(rules.isEmpty())
+            predicates.remove(predicate);
+        return true;
+    }
+    
+    /**
+     * Return the rules whose heads may unify with the given goal.
+     * 
+     * @param goal  the goal
+     * @return      the list of rules, not renamed
+     */
+    public synchronized List<Clause> search(Literal goal) {
+        List<Clause> matches = new ArrayList<Clause>();
+        Rules rules = predicates.get(goal.getPredicateSymbol());
+        if(rules == null)
+            return matches;
+        for(VariantKey key : rules.select(goal)) {
+            Clause rule = rules.byKey.get(key);
+            if(isCompatible(rule.getHead(), goal))
+                matches.add(rule);
+        }
+        return matches;
+    }
+    
+    /**
+     * Return the number of rules in the index.
+     * 
+     * @return  the number of rules
+     */
+    public synchronized int size() {
+        int size = 0;
+        for(Rules rules : predicates.values())
+            size += rules.byKey.size();
+        return size;
+    }
+    
+    /**
+     * Returns true iff the given head has no constant differing from the
+     * constant in the same position of the given goal.
+     * 
+     * @param head  the head
+     * @param goal  the goal
+     * @return      true iff the head may unify with the goal
+     */
+    private static boolean isCompatible(Literal head, Literal goal) {
+        for(int i = 0; i < head.getArity(); i++) {
+            Term a = head.getArgument(i);
+            Term b = goal.getArgument(i);
+            if(!a.isVariable() && !b.isVariable() && !a.equals(b))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * The rules of a single predicate.
+     */
+    private static class Rules {
+        /** The rules, by variant key, in the order they were added */
+        final Map<VariantKey, Clause> byKey =
+            new LinkedHashMap<VariantKey, Clause>();
+        /** The rules with each constant in each position of their heads */
+        final List<Map<Term, Set<VariantKey>>> byConstant =
+            new ArrayList<Map<Term, Set<VariantKey>>>();
+        /** The rules with a variable in each position of their heads */
+        final List<Set<VariantKey>> byVariable =
+            new ArrayList<Set<VariantKey>>();
+        
+        /**
+         * Create a new empty set of rules for a predicate of the given
+         * arity.
+         * 
+         * @param arity  the arity
+         */
+        Rules(int arity) {
+            for(int i = 0; i < arity; i++) {
+                byConstant.add(new HashMap<Term, Set<VariantKey>>());
+                byVariable.add(new LinkedHashSet<VariantKey>());
+            }
+        }
+        
+        /**
+         * Add the given rule, unless a variant of it is already present.
+         * 
+         * @param rule  the rule
+         * @return      true iff the rule was added
+         */
+        boolean add(Clause rule) {
+            VariantKey key = rule.getVariantKey();
+            if(byKey.containsKey(key))
+                return false;
+            byKey.put(key, rule);
+            Literal head = rule.getHead();
+            for(int i = 0; i < byVariable.size(); i++) {
+                Term argument = head.getArgument(i);
+                if(argument.isVariable()) {
+                    byVariable.get(i).add(key);
+                    continue;
+                }
+                Set<VariantKey> keys = byConstant.get(i).get(argument);
+                if(keys == null) {
+                    keys = new LinkedHashSet<VariantKey>();
+                    byConstant.get(i).put(argument, keys);
+                }
+                keys.add(key);
+            }
+            return true;
+        }
+        
+        /**
+         * Remove the given rule, or any variant of it.
+         * 
+         * @param rule  the rule
+         * @return      true iff the rule was present
+         */
+        boolean remove(Clause rule) {
+            VariantKey key = rule.getVariantKey();
+            if(byKey.remove(key) == null)
+                return false;
+            Literal head = rule.getHead();
+            for(int i = 0; i < byVariable.size(); i++) {
+                Term argument = head.getArgument(i);
+                if(argument.isVariable()) {
+                    byVariable.get(i).remove(key);
+                    continue;
+                }
+                Set<VariantKey> keys = byConstant.get(i).get(argument);
+                keys.remove(key);
+                if(keys.isEmpty())
+                    byConstant.get(i).remove(argument);
+            }
+            return true;
+        }
+        
+        /**
+         * Returns true iff there are no rules.
+         * 
+         * @return  true iff there are no rules
+         */
+        boolean isEmpty() {
+            return byKey.isEmpty();
+        }
+        
+        /**
+         * Return the keys of the rules selected by the bound argument of the
+         * given goal which selects the fewest rules, or of every rule if
+         * the goal has no bound arguments.
+         * 
+         * @param goal  the goal
+         * @return      the collection of keys
+         */
+        Collection<VariantKey> select(Literal goal) {
+            Collection<VariantKey> best = byKey.keySet();
+            for(int i = 0; i < byVariable.size(); i++) {
+                Term argument = goal.getArgument(i);
+                if(argument.isVariable())
+                    continue;
+                Set<VariantKey> constants = byConstant.get(i).get(argument);
+                Set<VariantKey> variables = byVariable.get(i);
+                int size = variables.size()
+                         + (constants == null ? 0 : constants.size());
+                if(size >= best.size())
+                    continue;
+                if(constants == null) {
+                    best = variables;
+                } else {
+                    best = new ArrayList<VariantKey>(size);
+                    best.addAll(constants);
+                    best.addAll(variables);
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.jdo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.VariantKey;
+
+/**
+ * Stores large numbers of facts and rules in the JDO datastore, in batches.
+ * 
+ * Clauses are collected into batches which are each stored with a single
+ * makePersistentAll in a single transaction. Clauses which are variants of
+ * a clause already added are skipped before they reach the datastore, and
+ * those stored by an earlier import are found with one query per batch and
+ * skipped, so importing the same files again stays as fast as the first
+ * time.
+ * 
+ * Listeners of the fact and rule databases are not notified, so the loader
+ * should not be used while servers are answering queries. A loader is not
+ * thread-safe.
+ * 
+ * @author  David Roberts
+ * @see     cc.vidr.datum.tools.Import
+ */
+public class JDOBulkLoader {
+    /** The number of clauses stored in each transaction */
+    private final int batchSize;
+    /** The variant keys of the clauses added so far */
+    private final Set<VariantKey> seen = new HashSet<VariantKey>();
+    /** The clauses waiting to be stored */
+    private final List<Clause> batch = new ArrayList<Clause>();
+    /** The number of clauses stored */
+    private long numStored = 0;
+    /** The number of clauses skipped because they were already stored */
+    private long numDuplicates = 0;
+    
+    /**
+     * Create a new loader.
+     * 
+     * @param batchSize  the number of clauses stored in each transaction
+     */
+    public JDOBulkLoader(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Add the given fact or rule, storing the current batch if it is full.
+     * 
+     * @param clause  the clause
+     * @throws        UnsafeException if the clause is a non-ground fact or
+     *                an unsafe rule
+     */
+    public void add(Clause clause) throws UnsafeException {
+        if(clause.isFact() ? !clause.getHead().isGround() : !clause.isSafe())
+            throw new UnsafeException();
+        VariantKey key = clause.isFact() ? clause.getHead().getVariantKey()
+                                         : clause.getVariantKey();
+        if(!seen.add(key)) {
+            numDuplicates++;
+            return;
+        }
+        batch.add(clause);
+        if(batch.size() >= batchSize)
+            flush();
+    }
+    
+    /**
+     * Store the current batch, skipping the clauses already stored.
+     * 
+     * @throws  javax.jdo.JDOException if the batch could not be stored, in
+     *          which case none of it is
+     */
+    public void flush() {
+        if(batch.isEmpty())
+            return;
+        PersistenceManager pm = PMF.acquire();
+        Transaction tx = pm.currentTransaction();
+        try {
+            List<String> factIds = new ArrayList<String>();
+            List<String> ruleIds = new ArrayList<String>();
+            for(Clause clause : batch)
+                if(clause.isFact())
+                    factIds.add(clause.getHead().getVariantTag());
+                else
+                    ruleIds.add(clause.getVariantTag());
+            Set<String> stored = new HashSet<String>();
+            stored.addAll(getStored(pm, JDOFact.class, factIds));
+            stored.addAll(getStored(pm, JDORule.class, ruleIds));
+            List<Clause> missing = new ArrayList<Clause>();
+            for(Clause clause : batch)
+                if(!stored.contains(clause.isFact()
+                                    ? clause.getHead().getVariantTag()
+                                    : clause.getVariantTag()))
+                    missing.add(clause);
+            tx.begin();
+            pm.makePersistentAll(wrap(missing));
+            tx.commit();
+            numStored += missing.size();
+            numDuplicates += batch.size() - missing.size();
+        } finally {
+            if(tx.isActive())
+                tx.rollback();
+            PMF.release(pm);
+            batch.clear();
+        }
+    }
+    
+    /**
+     * Return the number of clauses stored so far.
+     * 
+     * @return  the number of clauses
+     */
+    public long getNumStored() {
+        return numStored;
+    }
+    
+    /**
+     * Return the number of clauses skipped so far because they had already
+     * been added or stored.
+     * 
+     * @return  the number of clauses
+     */
+    public long getNumDuplicates() {
+        return numDuplicates;
+    }
+    
+    /**
+     * Return those of the given ids which are already stored as models of
+     * the given class.
+     * 
+     * @param pm     the manager
+     * @param model  the JDOFact or JDORule class
+     * @param ids    the ids
+     * @return       the ids already stored
+     */
+    @SuppressWarnings("unchecked")
+    private static Collection<String> getStored(PersistenceManager pm,
+            Class<?> model, List<String> ids) {
+        List<String> stored = new ArrayList<String>();
+        if(ids.isEmpty())
+            return stored;
+        Query query = pm.newQuery(model, ":ids.contains(id)");
+        query.setResult("id");
+        try {
+            stored.addAll((Collection<String>) query.execute(ids));
+        } finally {
+            query.closeAll();
+        }
+        return stored;
+    }
+    
+    /**
+     * Wrap the given clauses in JDO models.
+     * 
+     * @param clauses  the clauses
+     * @return         the list of models
+     */
+    private static List<Object> wrap(List<Clause> clauses) {
+        List<Object> models = new ArrayList<Object>(clauses.size());
+        for(Clause clause : clauses)
+            models.add(wrap(clause));
+        return models;
+    }
+    
+    /**
+     * Wrap the given clause in a JDO model.
+     * 
+     * @param clause  the clause
+     * @return        the JDOFact or JDORule
+     */
+    private static Object wrap(Clause clause) {
+        return clause.isFact() ? new JDOFact(clause.getHead())
+                               : new JDORule(clause);
+    }
+}
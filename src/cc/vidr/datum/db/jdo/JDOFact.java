@@ -22,6 +22,7 @@ import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
 
+import cc.vidr.datum.BinaryCodec;
 import cc.vidr.datum.Literal;
 
 /**
@@ -39,9 +40,9 @@ public class JDOFact {
     @PrimaryKey
     private String id;
     
-    /** The fact */
-    @Persistent(serialized = "true")
-    private Literal fact;
+    /** The fact, in its binary encoding */
+    @Persistent
+    private byte[] fact;
     
     /** The predicate of the fact */
     @SuppressWarnings("unused")
@@ -75,7 +76,7 @@ public class JDOFact {
      */
     public JDOFact(Literal fact) {
         this.id = fact.getVariantTag();
-        this.fact = fact;
+        this.fact = BinaryCodec.encode(fact);
         this.predicate = fact.getPredicate();
         int arity = fact.getArity();
         if(arity > 0) argument0 = fact.getArgument(0).toString();
@@ -90,6 +91,18 @@ public class JDOFact {
      * @return  the fact.
      */
     public Literal fact() {
-        return fact;
+        return BinaryCodec.decodeLiteral(fact);
+    }
+    
+    /**
+     * Return the wrapped fact if its constants match those of the given
+     * goal. The fact is only decoded as far as the first mismatch.
+     * 
+     * @param goal  the goal
+     * @return      the fact, or null if it does not match the goal
+     * @see         BinaryCodec#decodeLiteral(byte[], Literal)
+     */
+    public Literal fact(Literal goal) {
+        return BinaryCodec.decodeLiteral(fact, goal);
     }
 }
@@ -20,6 +20,7 @@ package cc.vidr.datum.db.jdo;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 
@@ -32,46 +33,109 @@ import cc.vidr.datum.term.Term;
 /**
  * An implementation of the FactDatabase interface backed by a JDO datastore.
  * 
+ * Searches use one query for each combination of bound indexed arguments,
+ * with the predicate and the bound arguments as parameters. Each query is
+ * compiled once per pooled PersistenceManager and then reused. Facts are
+ * stored in their binary encoding, and a fact returned by a query is only
+ * decoded as far as needed to check it against the constants of the goal.
+ * 
  * @author  David Roberts
+ * @see     PMF#acquire()
  */
 public class JDOFactDatabase
 extends AbstractFactDatabase implements FactDatabase {
+    /** The keys of the compiled queries, by mask of bound arguments */
+    private static final String[] QUERY_KEYS =
+        new String[1 << JDOFact.NUM_INDEXED_ARGUMENTS];
+    
+    static {
+        for(int mask = 0; mask < QUERY_KEYS.length; mask++)
+            QUERY_KEYS[mask] = JDOFactDatabase.class.getName() + "#" + mask;
+    }
+    
     @SuppressWarnings("unchecked")
     protected Iterable<Literal> searchRaw(Literal goal) {
         List<Literal> literals = new ArrayList<Literal>();
-        PersistenceManager pm = PMF.instance().getPersistenceManager();
-        StringBuilder filterBuilder = new StringBuilder();
-        StringBuilder paramBuilder = new StringBuilder();
-        List<Object> queryArgs = new ArrayList<Object>();
         int arity = Math.min(goal.getArity(), JDOFact.NUM_INDEXED_ARGUMENTS);
-        
-        // build query
-        filterBuilder.append("predicate == predicateParam");
-        paramBuilder.append("java.lang.String predicateParam");
+        List<Object> queryArgs = new ArrayList<Object>();
         queryArgs.add(goal.getPredicate());
+        int mask = 0;
         for(int i = 0; i < arity; i++) {
             Term argument = goal.getArgument(i);
             if(argument.isVariable())
                 continue;
+            mask |= 1 << i;
+            queryArgs.add(argument.toString());
+        }
+        
+        PersistenceManager pm = PMF.acquire();
+        try {
+            Query query = (Query) pm.getUserObject(QUERY_KEYS[mask]);
+            if(query == null) {
+                query = compile(pm, mask);
+                pm.putUserObject(QUERY_KEYS[mask], query);
+            }
+            try {
+                List<JDOFact> results = (List<JDOFact>)
+                    query.executeWithArray(queryArgs.toArray());
+                for(JDOFact result : results) {
+                    Literal fact = result.fact(goal);
+                    if(fact != null)
+                        literals.add(fact);
+                }
+            } finally {
+                query.closeAll();
+            }
+        } finally {
+            PMF.release(pm);
+        }
+        return literals;
+    }
+    
+    /**
+     * Compile the query for facts with the given bound arguments.
+     * 
+     * @param pm    the manager to compile the query with
+     * @param mask  the mask of bound arguments
+     * @return      the compiled query
+     */
+    private static Query compile(PersistenceManager pm, int mask) {
+        StringBuilder filterBuilder = new StringBuilder();
+        StringBuilder paramBuilder = new StringBuilder();
+        filterBuilder.append("predicate == predicateParam");
+        paramBuilder.append("java.lang.String predicateParam");
+        for(int i = 0; i < JDOFact.NUM_INDEXED_ARGUMENTS; i++) {
+            if((mask & (1 << i)) == 0)
+                continue;
             String fieldName = "argument" + i;
             filterBuilder.append(" && ").append(fieldName).append(" == ")
                 .append(fieldName).append("Param");
             paramBuilder.append(", java.lang.String ")
                 .append(fieldName).append("Param");
-            queryArgs.add(argument.toString());
         }
-        
         Query query = pm.newQuery(JDOFact.class);
         query.setFilter(filterBuilder.toString());
         query.declareParameters(paramBuilder.toString());
+        query.compile();
+        return query;
+    }
+    
+    /**
+     * Return every fact in the datastore.
+     * 
+     * @return  the list of facts
+     */
+    @SuppressWarnings("unchecked")
+    public List<Literal> getFacts() {
+        List<Literal> literals = new ArrayList<Literal>();
+        PersistenceManager pm = PMF.acquire();
+        Query query = pm.newQuery(JDOFact.class);
         try {
-            List<JDOFact> results =
-                (List<JDOFact>) query.executeWithArray(queryArgs.toArray());
-            for(JDOFact result : results)
+            for(JDOFact result : (List<JDOFact>) query.execute())
                 literals.add(result.fact());
         } finally {
             query.closeAll();
-            pm.close();
+            PMF.release(pm);
         }
         return literals;
     }
@@ -79,11 +143,30 @@ extends AbstractFactDatabase implements FactDatabase {
     public void assertFact(Literal fact) throws UnsafeException {
         if(!fact.isGround())
             throw new UnsafeException();
-        PersistenceManager pm = PMF.instance().getPersistenceManager();
+        PersistenceManager pm = PMF.acquire();
         try {
+            pm.currentTransaction().begin();
             pm.makePersistent(new JDOFact(fact));
+            pm.currentTransaction().commit();
+        } finally {
+            PMF.release(pm);
+        }
+        fireFactAsserted(fact);
+    }
+    
+    public boolean retractFact(Literal fact) {
+        PersistenceManager pm = PMF.acquire();
+        try {
+            pm.currentTransaction().begin();
+            pm.deletePersistent(pm.getObjectById(JDOFact.class,
+                                                 fact.getVariantTag()));
+            pm.currentTransaction().commit();
+        } catch(JDOObjectNotFoundException e) {
+            return false;
         } finally {
-            pm.close();
+            PMF.release(pm);
         }
+        fireFactRetracted(fact);
+        return true;
     }
 }
@@ -22,6 +22,7 @@ import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
 
+import cc.vidr.datum.BinaryCodec;
 import cc.vidr.datum.Clause;
 
 /**
@@ -36,9 +37,9 @@ public class JDORule {
     @PrimaryKey
     private String id;
     
-    /** The rule */
-    @Persistent(serialized = "true")
-    private Clause rule;
+    /** The rule, in its binary encoding */
+    @Persistent
+    private byte[] rule;
     
     /** The predicate of the head of the rule */
     @SuppressWarnings("unused")
@@ -52,16 +53,16 @@ public class JDORule {
      */
     public JDORule(Clause rule) {
         this.id = rule.getVariantTag();
-        this.rule = rule;
+        this.rule = BinaryCodec.encode(rule);
         this.predicate = rule.getHead().getPredicate();
     }
     
     /**
-     * Return a renamed copy of the wrapped rule.
+     * Return a copy of the wrapped rule, with new variables.
      * 
      * @return  the renamed rule
      */
     public Clause rule() {
-        return rule.rename();
+        return BinaryCodec.decodeClause(rule);
     }
 }
@@ -20,6 +20,7 @@ package cc.vidr.datum.db.jdo;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 
@@ -28,42 +29,111 @@ import cc.vidr.datum.Literal;
 import cc.vidr.datum.UnsafeException;
 import cc.vidr.datum.db.AbstractRuleDatabase;
 import cc.vidr.datum.db.RuleDatabase;
+import cc.vidr.datum.db.RuleIndex;
 
 /**
  * An implementation of the RuleDatabase interface backed by a JDO datastore.
  * 
+ * Every rule is read from the datastore by the first search, and held in
+ * memory in a RuleIndex, so a search neither queries the datastore nor
+ * decodes and renames the rules whose heads cannot match the goal. Rules
+ * asserted or retracted through this database update the index; those
+ * written to the datastore by other processes are only seen after refresh
+ * is called.
+ * 
  * @author  David Roberts
+ * @see     RuleIndex
  */
 public class JDORuleDatabase
 extends AbstractRuleDatabase implements RuleDatabase {
-    @SuppressWarnings("unchecked")
+    /** The rules in the datastore, or null if they have not been read */
+    private RuleIndex index = null;
+    
     protected Iterable<Clause> searchRaw(Literal goal) {
         List<Clause> clauses = new ArrayList<Clause>();
-        PersistenceManager pm = PMF.instance().getPersistenceManager();
-        
+        for(Clause rule : getIndex().search(goal))
+            clauses.add(rule.rename());
+        return clauses;
+    }
+    
+    /**
+     * Return every rule in the datastore.
+     * 
+     * @return  the list of rules
+     */
+    @SuppressWarnings("unchecked")
+    public List<Clause> getRules() {
+        List<Clause> rules = new ArrayList<Clause>();
+        PersistenceManager pm = PMF.acquire();
         Query query = pm.newQuery(JDORule.class);
-        query.setFilter("predicate == predicateParam");
-        query.declareParameters("java.lang.String predicateParam");
         try {
-            List<JDORule> results =
-                (List<JDORule>) query.execute(goal.getPredicate());
-            for(JDORule result : results)
-                clauses.add(result.rule());
+            for(JDORule result : (List<JDORule>) query.execute())
+                rules.add(result.rule());
         } finally {
             query.closeAll();
-            pm.close();
+            PMF.release(pm);
         }
-        return clauses;
+        return rules;
+    }
+    
+    /**
+     * Discard the rules held in memory, so that they are read from the
+     * datastore again by the next search.
+     */
+    public synchronized void refresh() {
+        index = null;
+    }
+    
+    /**
+     * Return the index of the rules in the datastore, reading them if they
+     * have not been read.
+     * 
+     * @return  the index
+     */
+    private synchronized RuleIndex getIndex() {
+        if(index == null) {
+            index = new RuleIndex();
+            for(Clause rule : getRules())
+                index.add(rule);
+        }
+        return index;
     }
     
     public void assertRule(Clause rule) throws UnsafeException {
         if(!rule.isSafe())
             throw new UnsafeException();
-        PersistenceManager pm = PMF.instance().getPersistenceManager();
+        PersistenceManager pm = PMF.acquire();
         try {
+            pm.currentTransaction().begin();
             pm.makePersistent(new JDORule(rule));
+            pm.currentTransaction().commit();
+        } finally {
+            PMF.release(pm);
+        }
+        synchronized(this) {
+            if(index != null)
+                index.add(rule);
+        }
+        fireRuleAsserted(rule);
+    }
+    
+    public boolean retractRule(Clause rule) {
+        PersistenceManager pm = PMF.acquire();
+        try {
+            pm.currentTransaction().begin();
+            pm.deletePersistent(pm.getObjectById(JDORule.class,
+                                                 rule.getVariantTag()));
+            pm.currentTransaction().commit();
+        } catch(JDOObjectNotFoundException e) {
+            return false;
         } finally {
-            pm.close();
+            PMF.release(pm);
+        }
+        synchronized(this) {
+            if(index != null)
+                index.remove(rule);
         }
+        fireRuleRetracted(rule);
+        return true;
     }
 }
@@ -17,21 +17,67 @@
 
 package cc.vidr.datum.db.jdo;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
 import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 
 /**
- * A singleton class for accessing the PersistenceManagerFactory.
+ * A singleton class for accessing the PersistenceManagerFactory, and a pool
+ * of PersistenceManagers which are reused between database operations.
+ * 
+ * Pooled managers may keep the queries compiled with them as user objects,
+ * so that each query only needs to be parsed and compiled once per manager.
  * 
  * @author  David Roberts
  */
 public final class PMF {
+    /** The largest number of idle managers kept in the pool */
+    private static final int MAX_IDLE = 16;
+    
     private static final PersistenceManagerFactory instance =
         JDOHelper.getPersistenceManagerFactory("transactions-optional");
+    /** The idle managers */
+    private static final BlockingQueue<PersistenceManager> idle =
+        new LinkedBlockingQueue<PersistenceManager>(MAX_IDLE);
     
     private PMF() {}
     
     public static PersistenceManagerFactory instance() {
         return instance;
     }
+    
+    /**
+     * Take a PersistenceManager from the pool, or open a new one if the pool
+     * is empty. The manager must be returned with release once it is no
+     * longer needed, and must not be closed by the caller.
+     * 
+     * @return  the manager
+     */
+    public static PersistenceManager acquire() {
+        PersistenceManager pm;
+        do {
+            pm = idle.poll();
+        } while(pm != null && pm.isClosed());
+        return pm != null ? pm : instance.getPersistenceManager();
+    }
+    
+    /**
+     * Return the given PersistenceManager to the pool. Any transaction left
+     * active is rolled back, and the objects cached by the manager are
+     * evicted. The manager is closed if the pool is full.
+     * 
+     * @param pm  the manager
+     */
+    public static void release(PersistenceManager pm) {
+        if(pm.isClosed())
+            return;
+        if(pm.currentTransaction().isActive())
+            pm.currentTransaction().rollback();
+        pm.evictAll();
+        if(!idle.offer(pm))
+            pm.close();
+    }
 }
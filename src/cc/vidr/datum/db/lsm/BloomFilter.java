@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import cc.vidr.datum.BinaryCodec;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.term.Term;
+
+/**
+ * A bloom filter over the keys of the facts in a segment, which rules out
+ * most searches of segments which hold no matching facts.
+ * 
+ * Each fact is keyed by its predicate, by each of its arguments together
+ * with the predicate and position, and by the whole fact. A goal can only
+ * be matched by a segment containing the keys of its predicate, of each of
+ * its bound arguments and, if it is ground, of the goal itself. Keys are
+ * hashed from binary encodings, so the filter can be written to a file and
+ * read back by another process.
+ * 
+ * @author  David Roberts
+ */
+final class BloomFilter {
+    /** The number of bits per key */
+    private static final int BITS_PER_KEY = 10;
+    /** The number of bits set for each key */
+    private static final int NUM_PROBES = 7;
+    /** The offset basis of the FNV-1a hash */
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    /** The prime of the FNV-1a hash */
+    private static final long PRIME = 0x100000001b3L;
+    
+    /** The bits of the filter */
+    private final long[] bits;
+    
+    /**
+     * Create a new empty filter with room for the given number of keys.
+     * 
+     * @param numKeys  the expected number of keys
+     */
+    BloomFilter(int numKeys) {
+        this(new long[Math.max(1, (numKeys * BITS_PER_KEY + 63) / 64)]);
+    }
+    
+    /**
+     * Create a new filter with the given bits.
+     * 
+     * @param bits  the bits
+     */
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+    }
+    
+    /**
+     * Return the number of keys of the given fact.
+     * 
+     * @param fact  the fact
+     * @return      the number of keys
+     */
+    static int getNumKeys(Literal fact) {
+        return fact.getArity() + 2;
+    }
+    
+    /**
+     * Add the keys of the given ground fact to the filter.
+     * 
+     * @param fact  the fact
+     */
+    void add(Literal fact) {
+        for(long key : getKeys(fact))
+            add(key);
+    }
+    
+    /**
+     * Returns true iff the filter may contain each of the given keys.
+     * 
+     * @param keys  the keys
+     * @return      false if the filter definitely lacks one of the keys
+     */
+    boolean mightContain(long[] keys) {
+        for(long key : keys)
+            if(!mightContain(key))
+                return false;
+        return true;
+    }
+    
+    /**
+     * Return the keys which any segment holding facts matching the given
+     * goal must contain.
+     * 
+     * @param goal  the goal
+     * @return      the keys
+     */
+    static long[] getKeys(Literal goal) {
+        int numBound = 0;
+        for(int i = 0; i < goal.getArity(); i++)
+            if(!goal.getArgument(i).isVariable())
+                numBound++;
+        boolean ground = numBound == goal.getArity();
+        long[] keys = new long[1 + numBound + (ground ? 1 : 0)];
+        byte[] predicate = encode(goal.getPredicate());
+        int n = 0;
+        keys[n++] = hash(OFFSET_BASIS, predicate);
+        for(int i = 0; i < goal.getArity(); i++) {
+            Term argument = goal.getArgument(i);
+            if(argument.isVariable())
+                continue;
+            long h = hash(OFFSET_BASIS, predicate);
+            h = (h ^ i) * PRIME;
+            keys[n++] = hash(h, BinaryCodec.encode(argument));
+        }
+        if(ground)
+            keys[n++] = hash(OFFSET_BASIS, BinaryCodec.encode(goal));
+        return keys;
+    }
+    
+    /**
+     * Write the filter to the given stream.
+     * 
+     * @param out  the stream
+     * @throws     IOException if the stream could not be written to
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(bits.length);
+        for(long word : bits)
+            out.writeLong(word);
+    }
+    
+    /**
+     * Read a filter from the given stream.
+     * 
+     * @param in  the stream
+     * @return    the filter
+     * @throws    IOException if the stream could not be read from
+     */
+    static BloomFilter read(DataInputStream in) throws IOException {
+        long[] bits = new long[in.readInt()];
+        for(int i = 0; i < bits.length; i++)
+            bits[i] = in.readLong();
+        return new BloomFilter(bits);
+    }
+    
+    /**
+     * Set the bits of the given key.
+     * 
+     * @param key  the key
+     */
+    private void add(long key) {
+        long numBits = bits.length * 64L;
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        for(int i = 0; i < NUM_PROBES; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+    
+    /**
+     * Returns true iff each of the bits of the given key is set.
+     * 
+     * @param key  the key
+     * @return     false if the filter definitely lacks the key
+     */
+    private boolean mightContain(long key) {
+        long numBits = bits.length * 64L;
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        for(int i = 0; i < NUM_PROBES; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % numBits;
+            if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Continue the FNV-1a hash with the given bytes.
+     * 
+     * @param h      the hash so far
+     * @param bytes  the bytes
+     * @return       the hash
+     */
+    private static long hash(long h, byte[] bytes) {
+        for(byte b : bytes)
+            h = (h ^ (b & 0xff)) * PRIME;
+        return h;
+    }
+    
+    /**
+     * Return the UTF-8 encoding of the given string.
+     * 
+     * @param s  the string
+     * @return   the encoding
+     */
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.AbstractFactDatabase;
+import cc.vidr.datum.db.FactDatabase;
+
+/**
+ * An implementation of the FactDatabase interface which stores facts in a
+ * directory as a log-structured merge tree.
+ * 
+ * Each write is appended to a write-ahead log and recorded in an in-memory
+ * memtable, so writing a fact costs a sequential append rather than a
+ * transaction. Once the memtable holds enough writes, it is frozen and a
+ * new memtable and log are started, while a background thread flushes the
+ * frozen memtable to an immutable segment and deletes its log. Segments
+ * are searched through their bloom filters, newest first, so a search only
+ * reads the segments which may hold matching facts. When there are too
+ * many segments, the newest segments of similar sizes are compacted into
+ * one, and retractions are dropped once they reach the oldest segment.
+ * 
+ * The segments and the first log still to be flushed are listed in a
+ * manifest, which is replaced atomically. The files of a segment are forced
+ * to disk before the manifest lists it, and a log is only deleted once the
+ * manifest no longer needs it. When a database is opened, the
+ * logs written since the last flush are replayed and flushed, and any
+ * files left over from an interrupted flush or compaction are deleted. A
+ * crash of the process loses no acknowledged writes; call sync to make the
+ * writes so far survive a crash of the system. To store facts in a
+ * directory, set the database when starting up, e.g.
+ * 
+ * <pre>
+ * Server.factDatabase = new LSMFactDatabase(new File("facts"));</pre>
+ * 
+ * @author  David Roberts
+ * @see     Layer
+ */
+public class LSMFactDatabase
+extends AbstractFactDatabase implements FactDatabase {
+    /** The default number of writes held by a memtable before flushing */
+    public static final int DEFAULT_MEMTABLE_SIZE = 65536;
+    /** The number of segments above which segments are compacted */
+    private static final int MAX_SEGMENTS = 8;
+    /** The name of the manifest file */
+    private static final String MANIFEST = "MANIFEST";
+    /** The version of the manifest format */
+    private static final int MANIFEST_VERSION = 1;
+    /** The extension of log files */
+    private static final String LOG = ".log";
+    /** Creates the daemon thread which flushes and compacts segments */
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "datum-lsm");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    
+    /** The directory holding the files of the database */
+    private final File directory;
+    /** The number of writes held by a memtable before it is flushed */
+    private final int memtableSize;
+    /** Flushes memtables and compacts segments, one at a time */
+    private final ExecutorService background =
+        Executors.newSingleThreadExecutor(threadFactory);
+    /** The memtable receiving writes */
+    private Memtable memtable = new Memtable();
+    /** The frozen memtable being flushed, or null */
+    private Memtable flushing = null;
+    /** The segments, newest first; replaced rather than modified */
+    private List<Segment> segments = new ArrayList<Segment>();
+    /** The log of the memtable receiving writes */
+    private WriteAheadLog log;
+    /** The number of the log of the memtable receiving writes */
+    private int logNumber;
+    /** The number of the oldest log whose writes are not in a segment */
+    private int firstLog;
+    /** The next number to give a log or segment */
+    private int nextNumber = 1;
+    /** The exception thrown by the last flush or compaction, or null */
+    private IOException failure = null;
+    /** Has the database been closed? */
+    private boolean closed = false;
+    
+    /**
+     * Open the database in the given directory, creating it if it does not
+     * exist, with the default memtable size.
+     * 
+     * @param directory  the directory
+     * @throws           IOException if the database could not be opened
+     */
+    public LSMFactDatabase(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_SIZE);
+    }
+    
+    /**
+     * Open the database in the given directory, creating it if it does not
+     * exist.
+     * 
+     * @param directory     the directory
+     * @param memtableSize  the number of writes held by a memtable before it
+     *                      is flushed
+     * @throws              IOException if the database could not be opened
+     */
+    public LSMFactDatabase(File directory, int memtableSize)
+    throws IOException {
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        readManifest();
+        Set<Integer> logs = new TreeSet<Integer>();
+        for(String name : directory.list()) {
+            int number = getNumber(name);
+            nextNumber = Math.max(nextNumber, number + 1);
+            if(name.endsWith(LOG) && number >= firstLog)
+                logs.add(number);
+        }
+        for(int number : logs)
+            WriteAheadLog.replay(new File(directory, number + LOG), memtable);
+        if(memtable.getNumWrites() > 0) {
+            List<Segment> list = new ArrayList<Segment>(segments);
+            list.add(0, Segment.write(directory, nextNumber++,
+                    memtable.getAsserted(), memtable.getRetracted()));
+            segments = list;
+            memtable = new Memtable();
+        }
+        logNumber = nextNumber++;
+        firstLog = logNumber;
+        log = new WriteAheadLog(new File(directory, logNumber + LOG));
+        writeManifest();
+        deleteObsoleteFiles();
+    }
+    
+    protected Iterable<Literal> searchRaw(Literal goal) {
+        List<Literal> facts = new ArrayList<Literal>();
+        // facts asserted or retracted by a newer layer
+        Set<Literal> decided = new HashSet<Literal>();
+        long[] keys = BloomFilter.getKeys(goal);
+        for(Layer layer : getLayers()) {
+            if(!layer.mightContain(keys))
+                continue;
+            for(Literal fact : layer.search(goal))
+                if(decided.add(fact))
+                    facts.add(fact);
+            for(Literal fact : layer.searchRetracted(goal))
+                decided.add(fact);
+        }
+        return facts;
+    }
+    
+    /**
+     * Assert the given ground fact. The assertion is logged and recorded in
+     * the memtable, unless the database already contains the fact.
+     * 
+     * @param fact  the fact
+     * @throws      UnsafeException if the fact is not ground
+     * @throws      IllegalStateException if the database has been closed
+     * @throws      RuntimeException if the log could not be written, or
+     *              the last flush failed
+     */
+    public void assertFact(Literal fact) throws UnsafeException {
+        if(!fact.isGround())
+            throw new UnsafeException();
+        synchronized(this) {
+            if(contains(fact))
+                return;
+            write(WriteAheadLog.ASSERT, fact);
+        }
+        fireFactAsserted(fact);
+    }
+    
+    /**
+     * Retract the given fact. The retraction is logged and recorded in the
+     * memtable, if the database contains the fact.
+     * 
+     * @param fact  the fact
+     * @return      true iff the database contained the fact
+     * @throws      IllegalStateException if the database has been closed
+     * @throws      RuntimeException if the log could not be written, or
+     *              the last flush failed
+     */
+    public boolean retractFact(Literal fact) {
+        if(!fact.isGround())
+            return false;
+        synchronized(this) {
+            if(!contains(fact))
+                return false;
+            write(WriteAheadLog.RETRACT, fact);
+        }
+        fireFactRetracted(fact);
+        return true;
+    }
+    
+    /**
+     * Force the writes logged so far to disk.
+     * 
+     * @throws  IOException if the log could not be synced
+     */
+    public synchronized void sync() throws IOException {
+        log.sync();
+    }
+    
+    /**
+     * Close the database, waiting for any flush or compaction to finish.
+     * The writes held by the memtable are flushed when the database is next
+     * opened. Has no effect if the database is already closed.
+     * 
+     * @throws  IOException if the log could not be closed
+     */
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+        }
+        background.shutdown();
+        boolean interrupted = false;
+        while(true) {
+            try {
+                if(background.awaitTermination(1, TimeUnit.SECONDS))
+                    break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        synchronized(this) {
+            log.close();
+        }
+    }
+    
+    /**
+     * Return the number of segments.
+     * 
+     * @return  the number of segments
+     */
+    public synchronized int getNumSegments() {
+        return segments.size();
+    }
+    
+    /**
+     * Return the layers to be searched, newest first.
+     * 
+     * @return  the list of layers
+     */
+    private synchronized List<Layer> getLayers() {
+        List<Layer> layers = new ArrayList<Layer>(segments.size() + 2);
+        layers.add(memtable);
+        if(flushing != null)
+            layers.add(flushing);
+        layers.addAll(segments);
+        return layers;
+    }
+    
+    /**
+     * Returns true iff the database contains the given ground fact.
+     * 
+     * @param fact  the fact
+     * @return      true iff the database contains the fact
+     */
+    private boolean contains(Literal fact) {
+        long[] keys = BloomFilter.getKeys(fact);
+        for(Layer layer : getLayers()) {
+            if(!layer.mightContain(keys))
+                continue;
+            if(layer.search(fact).length > 0)
+                return true;
+            if(layer.searchRetracted(fact).length > 0)
+                return false;
+        }
+        return false;
+    }
+    
+    /**
+     * Log the given write and record it in the memtable, freezing the
+     * memtable if it is full. Must be called with the lock held.
+     * 
+     * @param type  the type of write
+     * @param fact  the fact written
+     */
+    private void write(byte type, Literal fact) {
+        if(closed)
+            throw new IllegalStateException("Database is closed");
+        if(failure != null)
+            throw new RuntimeException("Error flushing memtable", failure);
+        try {
+            log.append(type, fact);
+        } catch(IOException e) {
+            throw new RuntimeException("Error writing to log", e);
+        }
+        if(type == WriteAheadLog.ASSERT)
+            memtable.assertFact(fact);
+        else
+            memtable.retractFact(fact);
+        if(memtable.getNumWrites() >= memtableSize)
+            freeze();
+    }
+    
+    /**
+     * Freeze the memtable and start a new memtable and log, and flush the
+     * frozen memtable in the background. Waits for any flush already in
+     * progress to finish first. Must be called with the lock held.
+     */
+    private void freeze() {
+        boolean interrupted = false;
+        while(flushing != null && failure == null) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure != null)
+            throw new RuntimeException("Error flushing memtable", failure);
+        try {
+            WriteAheadLog newLog =
+                new WriteAheadLog(new File(directory, nextNumber + LOG));
+            log.close();
+            log = newLog;
+        } catch(IOException e) {
+            throw new RuntimeException("Error starting log", e);
+        }
+        logNumber = nextNumber++;
+        final Memtable frozen = memtable;
+        final int segmentNumber = nextNumber++;
+        final int frozenFirstLog = logNumber;
+        flushing = frozen;
+        memtable = new Memtable();
+        background.execute(new Runnable() {
+            public void run() {
+                flush(frozen, segmentNumber, frozenFirstLog);
+            }
+        });
+    }
+    
+    /**
+     * Flush the given frozen memtable to a new segment, and then compact
+     * the segments if there are too many.
+     * 
+     * @param frozen    the memtable
+     * @param number    the number of the segment
+     * @param newFirst  the number of the first log not flushed with it
+     */
+    private void flush(Memtable frozen, int number, int newFirst) {
+        try {
+            Segment segment = Segment.write(directory, number,
+                    frozen.getAsserted(), frozen.getRetracted());
+            synchronized(this) {
+                List<Segment> list = new ArrayList<Segment>(segments);
+                list.add(0, segment);
+                segments = list;
+                flushing = null;
+                firstLog = newFirst;
+                writeManifest();
+                notifyAll();
+            }
+            deleteObsoleteFiles();
+            compact();
+        } catch(IOException e) {
+            synchronized(this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Compact the newest segments into one if there are too many segments.
+     * The segments compacted are the newest segment and those following it
+     * which are no larger than twice the segments before them, and as many
+     * more as needed to leave no more than the maximum number of segments.
+     * 
+     * @throws  IOException if the new segment or the manifest could not be
+     *          written
+     */
+    private void compact() throws IOException {
+        List<Segment> current;
+        int number;
+        synchronized(this) {
+            current = segments;
+            if(current.size() <= MAX_SEGMENTS)
+                return;
+            number = nextNumber++;
+        }
+        int count = 1;
+        long size = current.get(0).size();
+        while(count < current.size() && current.get(count).size() <= 2 * size)
+            size += current.get(count++).size();
+        count = Math.max(count, current.size() - MAX_SEGMENTS + 1);
+        boolean oldest = count == current.size();
+        
+        List<Literal> asserted = new ArrayList<Literal>();
+        List<Literal> retracted = new ArrayList<Literal>();
+        Set<Literal> decided = new HashSet<Literal>();
+        for(Segment segment : current.subList(0, count)) {
+            for(Literal fact : segment.getAsserted())
+                if(decided.add(fact))
+                    asserted.add(fact);
+            for(Literal fact : segment.getRetracted())
+                // nothing older remains for a retraction to hide
+                if(decided.add(fact) && !oldest)
+                    retracted.add(fact);
+        }
+        Segment compacted =
+            Segment.write(directory, number, asserted, retracted);
+        synchronized(this) {
+            // segments are only replaced by the background thread
+            List<Segment> list = new ArrayList<Segment>();
+            list.add(compacted);
+            list.addAll(current.subList(count, current.size()));
+            segments = list;
+            writeManifest();
+        }
+        for(Segment segment : current.subList(0, count))
+            segment.delete();
+    }
+    
+    /**
+     * Read the segments, the first log still to be flushed and the next
+     * number to use from the manifest, if there is one.
+     * 
+     * @throws  IOException if the manifest or a segment could not be read
+     */
+    private void readManifest() throws IOException {
+        File file = new File(directory, MANIFEST);
+        if(!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if(in.readInt() != MANIFEST_VERSION)
+                throw new IOException("Unsupported manifest version");
+            nextNumber = in.readInt();
+            firstLog = in.readInt();
+            int numSegments = in.readInt();
+            for(int i = 0; i < numSegments; i++)
+                segments.add(new Segment(directory, in.readInt()));
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Replace the manifest with one listing the current segments. Must be
+     * called with the lock held.
+     * 
+     * @throws  IOException if the manifest could not be written
+     */
+    private void writeManifest() throws IOException {
+        File temporary = new File(directory, MANIFEST + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(file));
+        try {
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(nextNumber);
+            out.writeInt(firstLog);
+            out.writeInt(segments.size());
+            for(Segment segment : segments)
+                out.writeInt(segment.getNumber());
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temporary.renameTo(new File(directory, MANIFEST)))
+            throw new IOException("Could not replace manifest");
+    }
+    
+    /**
+     * Delete the logs which have been flushed, and the files of segments
+     * which are not listed in the manifest.
+     */
+    private void deleteObsoleteFiles() {
+        Set<Integer> live = new HashSet<Integer>();
+        int first;
+        synchronized(this) {
+            for(Segment segment : segments)
+                live.add(segment.getNumber());
+            first = firstLog;
+        }
+        for(String name : directory.list()) {
+            int number = getNumber(name);
+            if(number < 0)
+                continue;
+            if(name.endsWith(LOG) ? number < first : !live.contains(number))
+                new File(directory, name).delete();
+        }
+    }
+    
+    /**
+     * Return the number of the log or segment file with the given name.
+     * 
+     * @param name  the name of the file
+     * @return      the number, or -1 if the file is not a log or segment
+     */
+    private static int getNumber(String name) {
+        int dot = name.indexOf('.');
+        if(dot <= 0)
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(0, dot));
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import cc.vidr.datum.Literal;
+
+/**
+ * A batch of writes to a log-structured fact database: the memtable, or a
+ * segment flushed from one.
+ * 
+ * A layer records the last write of each fact written to it, so each fact
+ * is either asserted or retracted by the layer, never both. Layers are
+ * searched from the newest to the oldest, and the first layer to record a
+ * write of a fact decides whether it is present.
+ * 
+ * @author  David Roberts
+ * @see     LSMFactDatabase
+ */
+interface Layer {
+    /**
+     * Returns true iff this layer may record writes of facts matching a
+     * goal with the given keys.
+     * 
+     * @param keys  the keys of the goal
+     * @return      false if no fact matching the goal was written
+     * @see         BloomFilter#getKeys(Literal)
+     */
+    boolean mightContain(long[] keys);
+    
+    /**
+     * Return the facts asserted by this layer which match the given goal.
+     * 
+     * @param goal  the goal
+     * @return      the array of facts
+     */
+    Literal[] search(Literal goal);
+    
+    /**
+     * Return the facts retracted by this layer which match the given goal.
+     * 
+     * @param goal  the goal
+     * @return      the array of facts
+     */
+    Literal[] searchRetracted(Literal goal);
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.term.Term;
+
+/**
+ * The layer holding the most recent writes in memory, until it is full and
+ * is flushed to a segment.
+ * 
+ * Asserted and retracted facts are held in separate sets, each indexed by
+ * predicate and by the constant in each argument position. The constants
+ * are not interned in the global term dictionary, which only grows, so the
+ * memory held by a memtable is released once it has been flushed.
+ * 
+ * @author  David Roberts
+ */
+final class Memtable implements Layer {
+    /** The facts asserted */
+    private final FactSet asserted = new FactSet();
+    /** The facts retracted */
+    private final FactSet retracted = new FactSet();
+    /** The number of writes */
+    private int numWrites = 0;
+    
+    /**
+     * A set of ground facts, indexed by predicate and by the constant in
+     * each argument position. Searches may run while facts are being
+     * written, so all methods are synchronized.
+     */
+    private static final class FactSet {
+        /** Mapping of predicates to their facts */
+        private final Map<Predicate, Set<Literal>> facts =
+            new HashMap<Predicate, Set<Literal>>();
+        /** Mapping of predicates to an index over each argument position */
+        private final Map<Predicate, List<Map<Term, Set<Literal>>>> indexes =
+            new HashMap<Predicate, List<Map<Term, Set<Literal>>>>();
+        
+        /**
+         * Add the given fact.
+         * 
+         * @param fact  the fact
+         */
+        public synchronized void add(Literal fact) {
+            Predicate predicate = fact.getPredicateSymbol();
+            Set<Literal> set = facts.get(predicate);
+            if(set == null) {
+                set = new HashSet<Literal>();
+                facts.put(predicate, set);
+                List<Map<Term, Set<Literal>>> index =
+                    new ArrayList<Map<Term, Set<Literal>>>();
+                for(int i = 0; i < fact.getArity(); i++)
+                    index.add(new HashMap<Term, Set<Literal>>());
+                indexes.put(predicate, index);
+            }
+            if(!set.add(fact))
+                return;
+            List<Map<Term, Set<Literal>>> index = indexes.get(predicate);
+            for(int i = 0; i < fact.getArity(); i++) {
+                Set<Literal> group = index.get(i).get(fact.getArgument(i));
+                if(group == null) {
+                    group = new HashSet<Literal>();
+                    index.get(i).put(fact.getArgument(i), group);
+                }
+                group.add(fact);
+            }
+        }
+        
+        /**
+         * Remove the given fact, if present.
+         * 
+         * @param fact  the fact
+         */
+        public synchronized void remove(Literal fact) {
+            Predicate predicate = fact.getPredicateSymbol();
+            Set<Literal> set = facts.get(predicate);
+            if(set == null || !set.remove(fact))
+                return;
+            List<Map<Term, Set<Literal>>> index = indexes.get(predicate);
+            for(int i = 0; i < fact.getArity(); i++) {
+                Set<Literal> group = index.get(i).get(fact.getArgument(i));
+                group.remove(fact);
+                if(group.isEmpty())
+                    index.get(i).remove(fact.getArgument(i));
+            }
+        }
+        
+        /**
+         * Return every fact.
+         * 
+         * @return  the list of facts
+         */
+        public synchronized List<Literal> getFacts() {
+            List<Literal> list = new ArrayList<Literal>();
+            for(Set<Literal> set : facts.values())
+                list.addAll(set);
+            return list;
+        }
+        
+        /**
+         * Return the facts agreeing with the given goal on every constant
+         * argument of the goal, using the index over the argument whose
+         * constant has the fewest facts.
+         * 
+         * @param goal  the goal
+         * @return      the array of facts
+         */
+        public synchronized Literal[] search(Literal goal) {
+            Set<Literal> candidates = facts.get(goal.getPredicateSymbol());
+            if(candidates == null)
+                return new Literal[0];
+            List<Map<Term, Set<Literal>>> index =
+                indexes.get(goal.getPredicateSymbol());
+            for(int i = 0; i < goal.getArity(); i++) {
+                Term argument = goal.getArgument(i);
+                if(argument.isVariable())
+                    continue;
+                Set<Literal> group = index.get(i).get(argument);
+                if(group == null)
+                    return new Literal[0];
+                if(group.size() < candidates.size())
+                    candidates = group;
+            }
+            List<Literal> list = new ArrayList<Literal>();
+            for(Literal fact : candidates)
+                if(agrees(fact, goal))
+                    list.add(fact);
+            return list.toArray(new Literal[0]);
+        }
+        
+        /**
+         * Returns true iff the given fact has the same constant as the given
+         * goal in every position where the goal has one.
+         * 
+         * @param fact  the fact
+         * @param goal  the goal
+         * @return      true iff the fact agrees with the goal
+         */
+        private static boolean agrees(Literal fact, Literal goal) {
+            for(int i = 0; i < goal.getArity(); i++) {
+                Term argument = goal.getArgument(i);
+                if(!argument.isVariable()
+                && !argument.equals(fact.getArgument(i)))
+                    return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Record the assertion of the given ground fact.
+     * 
+     * @param fact  the fact
+     * @throws      IllegalArgumentException if the fact is not ground
+     */
+    void assertFact(Literal fact) {
+        if(!fact.isGround())
+            throw new IllegalArgumentException("Fact is not ground: " + fact);
+        retracted.remove(fact);
+        asserted.add(fact);
+        numWrites++;
+    }
+    
+    /**
+     * Record the retraction of the given ground fact.
+     * 
+     * @param fact  the fact
+     * @throws      IllegalArgumentException if the fact is not ground
+     */
+    void retractFact(Literal fact) {
+        if(!fact.isGround())
+            throw new IllegalArgumentException("Fact is not ground: " + fact);
+        asserted.remove(fact);
+        retracted.add(fact);
+        numWrites++;
+    }
+    
+    /**
+     * Return the number of writes recorded, including those overwritten by
+     * later writes.
+     * 
+     * @return  the number of writes
+     */
+    int getNumWrites() {
+        return numWrites;
+    }
+    
+    /**
+     * Return every fact asserted.
+     * 
+     * @return  the list of facts
+     */
+    List<Literal> getAsserted() {
+        return asserted.getFacts();
+    }
+    
+    /**
+     * Return every fact retracted.
+     * 
+     * @return  the list of facts
+     */
+    List<Literal> getRetracted() {
+        return retracted.getFacts();
+    }
+    
+    public boolean mightContain(long[] keys) {
+        return true;
+    }
+    
+    public Literal[] search(Literal goal) {
+        return asserted.search(goal);
+    }
+    
+    public Literal[] searchRetracted(Literal goal) {
+        return retracted.search(goal);
+    }
+}
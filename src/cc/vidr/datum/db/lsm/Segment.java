@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.snapshot.SnapshotFactDatabase;
+import cc.vidr.datum.db.snapshot.SnapshotWriter;
+
+/**
+ * An immutable layer stored in files, written when a memtable is flushed or
+ * when segments are compacted.
+ * 
+ * A segment is stored as three files named after its number: snapshots of
+ * the facts it asserts and of those it retracts, and the bloom filter over
+ * both.
+ * 
+ * @author  David Roberts
+ * @see     SnapshotFactDatabase
+ */
+final class Segment implements Layer {
+    /** The number of the segment */
+    private final int number;
+    /** The files of the segment */
+    private final File[] files;
+    /** The facts asserted */
+    private final SnapshotFactDatabase asserted;
+    /** The facts retracted */
+    private final SnapshotFactDatabase retracted;
+    /** The filter over the facts of both */
+    private final BloomFilter filter;
+    
+    /**
+     * Open the segment with the given number.
+     * 
+     * @param directory  the directory of the database
+     * @param number     the number of the segment
+     * @throws           IOException if the segment could not be read
+     */
+    Segment(File directory, int number) throws IOException {
+        this.number = number;
+        this.files = getFiles(directory, number);
+        asserted = new SnapshotFactDatabase(files[0]);
+        retracted = new SnapshotFactDatabase(files[1]);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(files[2])));
+        try {
+            filter = BloomFilter.read(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Write a segment with the given number holding the given facts, and
+     * open it. The files are forced to disk before this returns.
+     * 
+     * @param directory  the directory of the database
+     * @param number     the number of the segment
+     * @param asserted   the facts asserted
+     * @param retracted  the facts retracted
+     * @return           the segment
+     * @throws           IOException if the segment could not be written
+     */
+    static Segment write(File directory, int number, List<Literal> asserted,
+                         List<Literal> retracted) throws IOException {
+        File[] files = getFiles(directory, number);
+        int numKeys = 0;
+        for(Literal fact : asserted)
+            numKeys += BloomFilter.getNumKeys(fact);
+        for(Literal fact : retracted)
+            numKeys += BloomFilter.getNumKeys(fact);
+        BloomFilter filter = new BloomFilter(numKeys);
+        try {
+            SnapshotWriter writer = new SnapshotWriter();
+            for(Literal fact : asserted) {
+                writer.add(fact);
+                filter.add(fact);
+            }
+            writer.write(files[0]);
+            writer = new SnapshotWriter();
+            for(Literal fact : retracted) {
+                writer.add(fact);
+                filter.add(fact);
+            }
+            writer.write(files[1]);
+        } catch(UnsafeException e) {
+            throw new IllegalArgumentException("Fact is not ground");
+        }
+        FileOutputStream stream = new FileOutputStream(files[2]);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(stream));
+        try {
+            filter.write(out);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return new Segment(directory, number);
+    }
+    
+    /**
+     * Return the files of the segment with the given number.
+     * 
+     * @param directory  the directory of the database
+     * @param number     the number of the segment
+     * @return           the files
+     */
+    static File[] getFiles(File directory, int number) {
+        return new File[] {
+            new File(directory, number + ".facts"),
+            new File(directory, number + ".retracted"),
+            new File(directory, number + ".bloom")
+        };
+    }
+    
+    /**
+     * Return the number of this segment.
+     * 
+     * @return  the number
+     */
+    int getNumber() {
+        return number;
+    }
+    
+    /**
+     * Return the number of facts this segment asserts or retracts.
+     * 
+     * @return  the number of facts
+     */
+    int size() {
+        return asserted.getNumFacts() + retracted.getNumFacts();
+    }
+    
+    /**
+     * Return every fact asserted.
+     * 
+     * @return  the list of facts
+     */
+    List<Literal> getAsserted() {
+        return asserted.getFacts();
+    }
+    
+    /**
+     * Return every fact retracted.
+     * 
+     * @return  the list of facts
+     */
+    List<Literal> getRetracted() {
+        return retracted.getFacts();
+    }
+    
+    /**
+     * Delete the files of this segment. The segment can still be searched
+     * by those who opened it before.
+     */
+    void delete() {
+        for(File file : files)
+            file.delete();
+    }
+    
+    public boolean mightContain(long[] keys) {
+        return filter.mightContain(keys);
+    }
+    
+    public Literal[] search(Literal goal) {
+        return asserted.search(goal);
+    }
+    
+    public Literal[] searchRetracted(Literal goal) {
+        return retracted.search(goal);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import cc.vidr.datum.BinaryCodec;
+import cc.vidr.datum.Literal;
+
+/**
+ * An append-only log of the writes recorded in a memtable, from which the
+ * memtable is rebuilt if the database was not closed cleanly.
+ * 
+ * Each record holds the length of the binary encoding of a fact, a CRC-32
+ * checksum, the type of write and the encoding. Every record is passed to
+ * the operating system as soon as it is appended, so it survives the
+ * process crashing; it is only forced to disk when the log is synced.
+ * Replaying a log stops at the first incomplete or corrupt record, which
+ * is discarded along with anything after it.
+ * 
+ * @author  David Roberts
+ */
+final class WriteAheadLog {
+    /** Marks the record of an assertion */
+    static final byte ASSERT = 1;
+    /** Marks the record of a retraction */
+    static final byte RETRACT = 2;
+    /** The size of the header of each record, in bytes */
+    private static final int HEADER_SIZE = 9;
+    
+    /** The file being appended to */
+    private final FileOutputStream file;
+    /** The buffered stream over the file */
+    private final DataOutputStream out;
+    
+    /**
+     * Open the given log for appending, creating it if it does not exist.
+     * 
+     * @param file  the file
+     * @throws      IOException if the file could not be opened
+     */
+    WriteAheadLog(File file) throws IOException {
+        this.file = new FileOutputStream(file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.file));
+    }
+    
+    /**
+     * Append a record of the given write.
+     * 
+     * @param type  the type of write
+     * @param fact  the fact written
+     * @throws      IOException if the record could not be written
+     */
+    void append(byte type, Literal fact) throws IOException {
+        byte[] encoding = BinaryCodec.encode(fact);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(encoding);
+        out.writeInt(encoding.length);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(type);
+        out.write(encoding);
+        out.flush();
+    }
+    
+    /**
+     * Force the records appended so far to disk.
+     * 
+     * @throws  IOException if the log could not be synced
+     */
+    void sync() throws IOException {
+        out.flush();
+        file.getFD().sync();
+    }
+    
+    /**
+     * Close the log.
+     * 
+     * @throws  IOException if the log could not be closed
+     */
+    void close() throws IOException {
+        out.close();
+    }
+    
+    /**
+     * Replay the writes recorded in the given log into the given memtable,
+     * truncating the log after the last complete record.
+     * 
+     * @param file      the file
+     * @param memtable  the memtable
+     * @return          the number of writes replayed
+     * @throws          IOException if the file could not be read
+     */
+    static int replay(File file, Memtable memtable) throws IOException {
+        long length = file.length();
+        long valid = 0;
+        int numWrites = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            while(valid + HEADER_SIZE <= length) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                byte type = in.readByte();
+                if(size < 0 || valid + HEADER_SIZE + size > length)
+                    break;
+                byte[] encoding = new byte[size];
+                in.readFully(encoding);
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(encoding);
+                if((int) crc.getValue() != checksum)
+                    break;
+                Literal fact = BinaryCodec.decodeLiteralUninterned(encoding);
+                if(type == ASSERT)
+                    memtable.assertFact(fact);
+                else if(type == RETRACT)
+                    memtable.retractFact(fact);
+                else
+                    break;
+                valid += HEADER_SIZE + size;
+                numWrites++;
+            }
+        } catch(EOFException e) {
+            // the last record is incomplete
+        } catch(IllegalArgumentException e) {
+            // the checksum matched a record which is not a ground fact
+        } finally {
+            in.close();
+        }
+        if(valid < length) {
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(valid);
+            } finally {
+                truncated.close();
+            }
+        }
+        return numWrites;
+    }
+}
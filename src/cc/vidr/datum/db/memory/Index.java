@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.memory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hash index of the rows of a relation on a set of columns.
+ * 
+ * Rows are grouped by a 64-bit hash of the IDs in the indexed columns, so a
+ * group may contain rows whose IDs differ but whose hashes collide; callers
+ * must check each row against the IDs they looked up. The position of each
+ * row within its group is recorded, so removing or renumbering a row takes
+ * constant time however large its group is.
+ * 
+ * @author  David Roberts
+ */
+final class Index {
+    /** Multiplier used to mix each ID into the hash */
+    private static final long MULTIPLIER = 0x100000001b3L;
+    
+    /** The mask of the indexed columns */
+    private final long mask;
+    /** The indexed columns */
+    private final int[] columns;
+    /** Mapping of hashes to the rows with that hash */
+    private final Map<Long, IntList> groups = new HashMap<Long, IntList>();
+    /** The position of each row within its group, by row number */
+    private int[] slots = new int[4];
+    /** The number of lookups since the index was last reviewed */
+    private int uses = 0;
+    
+    /**
+     * Create a new empty index on the columns in the given mask.
+     * 
+     * @param mask  the mask of the indexed columns
+     */
+    Index(long mask) {
+        this.mask = mask;
+        columns = new int[Long.bitCount(mask)];
+        int n = 0;
+        for(int i = 0; i < 64; i++)
+            if((mask & (1L << i)) != 0)
+                columns[n++] = i;
+    }
+    
+    /**
+     * Return the mask of the indexed columns.
+     * 
+     * @return  the mask
+     */
+    long getMask() {
+        return mask;
+    }
+    
+    /**
+     * Return the number of lookups since the index was last reviewed, and
+     * start counting again.
+     * 
+     * @return  the number of lookups
+     */
+    int review() {
+        int n = uses;
+        uses = 0;
+        return n;
+    }
+    
+    /**
+     * Return the rows which may match the given pattern, which must bind
+     * every indexed column.
+     * 
+     * @param pattern  the IDs of the arguments, or 0 for free arguments
+     * @return         the list of rows, or null if there are none
+     */
+    IntList lookup(int[] pattern) {
+        uses++;
+        return groups.get(hash(pattern));
+    }
+    
+    /**
+     * Add the given row to this index.
+     * 
+     * @param columns  the columns of the relation
+     * @param row      the row number
+     */
+    void add(int[][] columns, int row) {
+        long hash = hash(columns, row);
+        IntList rows = groups.get(hash);
+        if(rows == null) {
+            rows = new IntList();
+            groups.put(hash, rows);
+        }
+        if(row >= slots.length)
+            slots = Arrays.copyOf(slots, Math.max(2 * slots.length, row + 1));
+        slots[row] = rows.size();
+        rows.add(row);
+    }
+    
+    /**
+     * Remove the given row from this index.
+     * 
+     * @param columns  the columns of the relation
+     * @param row      the row number
+     */
+    void remove(int[][] columns, int row) {
+        long hash = hash(columns, row);
+        IntList rows = groups.get(hash);
+        int slot = slots[row];
+        rows.removeAt(slot);
+        if(slot < rows.size())
+            // the last row of the group was moved into the slot
+            slots[rows.get(slot)] = slot;
+        if(rows.size() == 0)
+            groups.remove(hash);
+    }
+    
+    /**
+     * Record that the given row has been renumbered.
+     * 
+     * @param columns  the columns of the relation
+     * @param oldRow   the old row number
+     * @param newRow   the new row number
+     */
+    void move(int[][] columns, int oldRow, int newRow) {
+        int slot = slots[oldRow];
+        groups.get(hash(columns, oldRow)).set(slot, newRow);
+        slots[newRow] = slot;
+    }
+    
+    /**
+     * Return the hash of the indexed columns of the given pattern.
+     * 
+     * @param pattern  the IDs of the arguments
+     * @return         the hash
+     */
+    private long hash(int[] pattern) {
+        long h = 1;
+        for(int column : this.columns)
+            h = (h ^ pattern[column]) * MULTIPLIER;
+        return h;
+    }
+    
+    /**
+     * Return the hash of the indexed columns of the given row.
+     * 
+     * @param columns  the columns of the relation
+     * @param row      the row number
+     * @return         the hash
+     */
+    private long hash(int[][] columns, int row) {
+        long h = 1;
+        for(int column : this.columns)
+            h = (h ^ columns[column][row]) * MULTIPLIER;
+        return h;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.memory;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, used to hold the row numbers of a relation
+ * without boxing them. The order of the elements is not preserved by
+ * removal.
+ * 
+ * @author  David Roberts
+ */
+final class IntList {
+    /** The elements, followed by unused space */
+    private int[] data = new int[4];
+    /** The number of elements */
+    private int size = 0;
+    
+    /**
+     * Return the number of elements in this list.
+     * 
+     * @return  the number of elements
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Return the i'th element of this list.
+     * 
+     * @param i  the index of the element
+     * @return   the element
+     */
+    int get(int i) {
+        return data[i];
+    }
+    
+    /**
+     * Append the given value to this list.
+     * 
+     * @param value  the value
+     */
+    void add(int value) {
+        if(size == data.length)
+            data = Arrays.copyOf(data, 2 * size);
+        data[size++] = value;
+    }
+    
+    /**
+     * Replace the i'th element of this list with the given value.
+     * 
+     * @param i      the index of the element
+     * @param value  the value
+     */
+    void set(int i, int value) {
+        data[i] = value;
+    }
+    
+    /**
+     * Remove the i'th element of this list, moving the last element into
+     * its place.
+     * 
+     * @param i  the index of the element
+     */
+    void removeAt(int i) {
+        data[i] = data[--size];
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.memory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.AbstractFactDatabase;
+import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.term.Constant;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.TermDictionary;
+
+/**
+ * An implementation of the FactDatabase interface which keeps every fact in
+ * memory.
+ * 
+ * The facts of each predicate are stored as columns of term dictionary IDs,
+ * with hash indexes on the combinations of arguments which goals bind most
+ * often, so a search costs a few array and hash lookups rather than a query
+ * of a datastore. Indexes are built and dropped as the goals change.
+ * Nothing is persisted; to serve the facts of a JDO datastore from memory,
+ * load them when starting up, e.g.
+ * 
+ * <pre>
+ * Server.factDatabase =
+ *     new MemoryFactDatabase(new JDOFactDatabase().getFacts());</pre>
+ * 
+ * @author  David Roberts
+ * @see     cc.vidr.datum.tools.Benchmark
+ */
+public class MemoryFactDatabase
+extends AbstractFactDatabase implements FactDatabase {
+    /** Mapping of predicates to their facts */
+    private final Map<Predicate, Relation> relations =
+        new HashMap<Predicate, Relation>();
+    
+    /**
+     * Create a new empty database.
+     */
+    public MemoryFactDatabase() {}
+    
+    /**
+     * Create a new database containing the given facts.
+     * 
+     * @param facts  the facts
+     * @throws       UnsafeException if one of the facts is not ground
+     */
+    public MemoryFactDatabase(Iterable<Literal> facts) throws UnsafeException {
+        for(Literal fact : facts)
+            assertFact(fact);
+    }
+    
+    protected synchronized Iterable<Literal> searchRaw(Literal goal) {
+        List<Literal> facts = new ArrayList<Literal>();
+        Predicate predicate = goal.getPredicateSymbol();
+        Relation relation = relations.get(predicate);
+        if(relation == null)
+            return facts;
+        int[] pattern = new int[goal.getArity()];
+        for(int i = 0; i < pattern.length; i++) {
+            Term argument = goal.getArgument(i);
+            if(argument.isVariable())
+                continue;
+            pattern[i] = TermDictionary.lookup(argument);
+            if(pattern[i] == 0)
+                // no stored fact contains the constant
+                return facts;
+        }
+        IntList rows = relation.select(pattern);
+        for(int n = 0; n < rows.size(); n++) {
+            int row = rows.get(n);
+            Term[] arguments = new Term[pattern.length];
+            for(int i = 0; i < arguments.length; i++)
+                arguments[i] = TermDictionary.get(relation.get(i, row));
+            facts.add(new Literal(predicate, arguments));
+        }
+        return facts;
+    }
+    
+    public void assertFact(Literal fact) throws UnsafeException {
+        if(!fact.isGround())
+            throw new UnsafeException();
+        int[] row = new int[fact.getArity()];
+        for(int i = 0; i < row.length; i++)
+            row[i] = TermDictionary.getId((Constant) fact.getArgument(i));
+        boolean added;
+        synchronized(this) {
+            Predicate predicate = fact.getPredicateSymbol();
+            Relation relation = relations.get(predicate);
+            if(relation == null) {
+                relation = new Relation(row.length);
+                relations.put(predicate, relation);
+            }
+            added = relation.add(row);
+        }
+        if(added)
+            fireFactAsserted(fact);
+    }
+    
+    public boolean retractFact(Literal fact) {
+        if(!fact.isGround())
+            return false;
+        int[] row = new int[fact.getArity()];
+        for(int i = 0; i < row.length; i++) {
+            row[i] = TermDictionary.lookup(fact.getArgument(i));
+            if(row[i] == 0)
+                return false;
+        }
+        synchronized(this) {
+            Relation relation = relations.get(fact.getPredicateSymbol());
+            if(relation == null || !relation.remove(row))
+                return false;
+        }
+        fireFactRetracted(fact);
+        return true;
+    }
+    
+    /**
+     * Return the binding patterns of the given predicate which are currently
+     * indexed, as adornments with a 'b' for each bound argument and an 'f'
+     * for each free argument.
+     * 
+     * @param predicate  the predicate
+     * @return           the list of adornments
+     */
+    public synchronized List<String> getIndexedPatterns(Predicate predicate) {
+        List<String> adornments = new ArrayList<String>();
+        Relation relation = relations.get(predicate);
+        if(relation == null)
+            return adornments;
+        for(long mask : relation.getIndexedPatterns()) {
+            StringBuilder builder = new StringBuilder();
+            for(int i = 0; i < predicate.getArity(); i++)
+                builder.append(i < 64 && (mask & (1L << i)) != 0 ? 'b' : 'f');
+            adornments.add(builder.toString());
+        }
+        return adornments;
+    }
+    
+    /**
+     * Return every fact in this database.
+     * 
+     * @return  the list of facts
+     */
+    public synchronized List<Literal> getFacts() {
+        List<Literal> facts = new ArrayList<Literal>();
+        for(Map.Entry<Predicate, Relation> entry : relations.entrySet()) {
+            Predicate predicate = entry.getKey();
+            Relation relation = entry.getValue();
+            for(int row = 0; row < relation.size(); row++) {
+                Term[] arguments = new Term[predicate.getArity()];
+                for(int i = 0; i < arguments.length; i++)
+                    arguments[i] = TermDictionary.get(relation.get(i, row));
+                facts.add(new Literal(predicate, arguments));
+            }
+        }
+        return facts;
+    }
+    
+    /**
+     * Return the number of facts in this database.
+     * 
+     * @return  the number of facts
+     */
+    public synchronized int getNumFacts() {
+        int numFacts = 0;
+        for(Relation relation : relations.values())
+            numFacts += relation.size();
+        return numFacts;
+    }
+}
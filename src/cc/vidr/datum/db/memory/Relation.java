@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The facts of a single predicate, stored column by column as the term
+ * dictionary IDs of their arguments.
+ * 
+ * Lookups are counted by binding pattern, i.e. by the set of columns they
+ * bind. A pattern is given its own index on those columns the first time it
+ * is seen if no existing index covers any of its columns, and otherwise once
+ * it has been looked up often enough between reviews; until then, the index
+ * on the largest subset of its columns is used. Every so often the indexes
+ * are reviewed, and those which were not used since the last review are
+ * dropped. Indexes are kept up to date as rows are added and removed. Only
+ * the first 64 columns can be indexed, but later columns are still matched.
+ * 
+ * Adds and removes find rows through a separate index on every column,
+ * which is never dropped and whose lookups are not counted, so writes do
+ * not affect which patterns are indexed. Lookups which bind every column
+ * also use it.
+ * 
+ * Rows are numbered densely; removing a row moves the last row into its
+ * place. Relations are not thread-safe.
+ * 
+ * @author  David Roberts
+ * @see     cc.vidr.datum.term.TermDictionary
+ */
+final class Relation {
+    /** The initial number of rows allocated */
+    private static final int INITIAL_CAPACITY = 16;
+    /** The number of lookups between reviews after which a pattern is hot */
+    private static final int BUILD_THRESHOLD = 16;
+    /** The number of lookups between reviews of the indexes */
+    private static final int REVIEW_INTERVAL = 4096;
+    /** The number of columns which can be indexed */
+    private static final int MAX_INDEXED = 64;
+    
+    /** The number of columns */
+    private final int arity;
+    /** The IDs of the arguments of each row, by column */
+    private int[][] columns;
+    /** The number of rows */
+    private int size = 0;
+    /** The index on every indexable column, used to find rows */
+    private final Index primary;
+    /** Mapping of binding patterns to their indexes */
+    private final Map<Long, Index> indexes = new HashMap<Long, Index>();
+    /** The number of lookups of each unindexed pattern since the review */
+    private final Map<Long, Integer> lookups = new HashMap<Long, Integer>();
+    /** The number of lookups since the last review */
+    private int numLookups = 0;
+    
+    /**
+     * Create a new empty relation with the given number of columns.
+     * 
+     * @param arity  the number of columns
+     */
+    Relation(int arity) {
+        this.arity = arity;
+        columns = new int[arity][INITIAL_CAPACITY];
+        primary = new Index(arity < MAX_INDEXED ? (1L << arity) - 1 : -1L);
+    }
+    
+    /**
+     * Return the number of rows in this relation.
+     * 
+     * @return  the number of rows
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Return the ID in the given column of the given row.
+     * 
+     * @param column  the column
+     * @param row     the row
+     * @return        the ID
+     */
+    int get(int column, int row) {
+        return columns[column][row];
+    }
+    
+    /**
+     * Return the binding patterns which are currently indexed for lookups,
+     * as masks of the bound columns.
+     * 
+     * @return  the list of masks
+     */
+    List<Long> getIndexedPatterns() {
+        return new ArrayList<Long>(indexes.keySet());
+    }
+    
+    /**
+     * Add the given row, unless this relation already contains it.
+     * 
+     * @param row  the IDs of the arguments
+     * @return     true iff the row was added
+     */
+    boolean add(int[] row) {
+        if(find(row) >= 0)
+            return false;
+        if(arity > 0 && size == columns[0].length)
+            for(int i = 0; i < arity; i++)
+                columns[i] = Arrays.copyOf(columns[i], 2 * size);
+        for(int i = 0; i < arity; i++)
+            columns[i][size] = row[i];
+        primary.add(columns, size);
+        for(Index index : indexes.values())
+            index.add(columns, size);
+        size++;
+        return true;
+    }
+    
+    /**
+     * Remove the given row.
+     * 
+     * @param row  the IDs of the arguments
+     * @return     true iff this relation contained the row
+     */
+    boolean remove(int[] row) {
+        int r = find(row);
+        if(r < 0)
+            return false;
+        int last = size - 1;
+        primary.remove(columns, r);
+        if(r != last)
+            primary.move(columns, last, r);
+        for(Index index : indexes.values()) {
+            index.remove(columns, r);
+            if(r != last)
+                index.move(columns, last, r);
+        }
+        for(int i = 0; i < arity; i++)
+            columns[i][r] = columns[i][last];
+        size = last;
+        return true;
+    }
+    
+    /**
+     * Return the rows matching the given pattern, in which each bound column
+     * holds an ID and each free column holds 0.
+     * 
+     * @param pattern  the pattern
+     * @return         the list of matching rows
+     */
+    IntList select(int[] pattern) {
+        IntList candidates = null;
+        long mask = getMask(pattern);
+        if(mask != 0) {
+            Index index =
+                mask == primary.getMask() ? primary : getIndex(mask);
+            candidates = index.lookup(pattern);
+            if(candidates == null)
+                return new IntList();
+        }
+        IntList matching = new IntList();
+        int numCandidates = candidates == null ? size : candidates.size();
+        for(int n = 0; n < numCandidates; n++) {
+            int row = candidates == null ? n : candidates.get(n);
+            if(matches(row, pattern))
+                matching.add(row);
+        }
+        return matching;
+    }
+    
+    /**
+     * Return the row number of the given row.
+     * 
+     * @param row  the IDs of the arguments
+     * @return     the row number, or -1 if this relation does not contain
+     *             the row
+     */
+    private int find(int[] row) {
+        IntList candidates = primary.lookup(row);
+        if(candidates != null)
+            for(int n = 0; n < candidates.size(); n++)
+                if(matches(candidates.get(n), row))
+                    return candidates.get(n);
+        return -1;
+    }
+    
+    /**
+     * Returns true iff the given row matches the given pattern.
+     * 
+     * @param row      the row number
+     * @param pattern  the pattern
+     * @return         true iff every bound column of the pattern matches
+     */
+    private boolean matches(int row, int[] pattern) {
+        for(int i = 0; i < arity; i++)
+            if(pattern[i] != 0 && pattern[i] != columns[i][row])
+                return false;
+        return true;
+    }
+    
+    /**
+     * Return the mask of the indexable columns bound by the given pattern.
+     * 
+     * @param pattern  the pattern
+     * @return         the mask
+     */
+    private long getMask(int[] pattern) {
+        long mask = 0;
+        for(int i = 0; i < Math.min(arity, MAX_INDEXED); i++)
+            if(pattern[i] != 0)
+                mask |= 1L << i;
+        return mask;
+    }
+    
+    /**
+     * Return the index to be used for a lookup of the given binding pattern,
+     * recording the lookup and building a new index if necessary.
+     * 
+     * @param mask  the mask of the bound columns
+     * @return      an index on some or all of the bound columns
+     */
+    private Index getIndex(long mask) {
+        if(++numLookups == REVIEW_INTERVAL)
+            review();
+        Index index = indexes.get(mask);
+        if(index != null)
+            return index;
+        Integer count = lookups.get(mask);
+        count = count == null ? 1 : count + 1;
+        lookups.put(mask, count);
+        if(count < BUILD_THRESHOLD)
+            for(Index candidate : indexes.values()) {
+                long m = candidate.getMask();
+                if((m & ~mask) == 0 && (index == null
+                || Long.bitCount(m) > Long.bitCount(index.getMask())))
+                    index = candidate;
+            }
+        if(index == null) {
+            index = new Index(mask);
+            for(int row = 0; row < size; row++)
+                index.add(columns, row);
+            indexes.put(mask, index);
+            lookups.remove(mask);
+        }
+        return index;
+    }
+    
+    /**
+     * Drop the indexes which have not been used since the last review, and
+     * start counting lookups again.
+     */
+    private void review() {
+        for(Index index : new ArrayList<Index>(indexes.values()))
+            if(index.review() == 0)
+                indexes.remove(index.getMask());
+        lookups.clear();
+        numLookups = 0;
+    }
+}
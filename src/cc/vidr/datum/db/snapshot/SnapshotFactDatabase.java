@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cc.vidr.datum.BinaryCodec;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.Predicate;
+import cc.vidr.datum.db.AbstractFactDatabase;
+import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.TermDictionary;
+
+/**
+ * An implementation of the FactDatabase interface which serves the facts
+ * of an immutable snapshot file, written by a SnapshotWriter.
+ * 
+ * The file is mapped into memory rather than read, so opening a snapshot
+ * only reads its header and predicate directory, however many facts it
+ * holds, and the pages of the file are loaded by the operating system as
+ * they are searched and shared between the processes serving it. A goal
+ * binding an argument is answered by a binary search of the term
+ * dictionary for the constant, and of the run sorted by that argument for
+ * its facts. Constants are decoded and interned the first time they are
+ * returned by a search; those returned by getFacts, which is used to copy
+ * snapshots, are not interned. To serve a snapshot, set it as the fact
+ * database when starting up, e.g.
+ * 
+ * <pre>
+ * Server.factDatabase =
+ *     new SnapshotFactDatabase(new File("facts.snapshot"));</pre>
+ * 
+ * Facts cannot be asserted or retracted; a new snapshot must be written
+ * instead.
+ * 
+ * @author  David Roberts
+ * @see     cc.vidr.datum.tools.Snapshot
+ */
+public class SnapshotFactDatabase
+extends AbstractFactDatabase implements FactDatabase {
+    /** The mapped snapshot file */
+    private final MappedByteBuffer buffer;
+    /** The number of constants in the term dictionary */
+    private final int numTerms;
+    /** The position of the term dictionary */
+    private final int termsPosition;
+    /** Mapping of predicates to their facts */
+    private final Map<Predicate, Table> tables =
+        new HashMap<Predicate, Table>();
+    /** The constants decoded so far, by number */
+    private final ConcurrentMap<Integer, Term> terms =
+        new ConcurrentHashMap<Integer, Term>();
+    /** The number of facts in the snapshot */
+    private int numFacts = 0;
+    
+    /**
+     * Open the given snapshot file.
+     * 
+     * @param file  the file
+     * @throws      IOException if the file could not be mapped, or is not a
+     *              snapshot of a supported version
+     */
+    public SnapshotFactDatabase(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot exceeds 2 GB: " + file);
+            // the mapping remains valid once the file is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+        } finally {
+            in.close();
+        }
+        if(buffer.limit() < SnapshotWriter.HEADER_SIZE
+        || buffer.getInt(0) != SnapshotWriter.MAGIC)
+            throw new IOException("Not a snapshot: " + file);
+        if(buffer.getInt(4) != SnapshotWriter.VERSION)
+            throw new IOException("Unsupported snapshot version: " + file);
+        numTerms = buffer.getInt(8);
+        int numPredicates = buffer.getInt(12);
+        termsPosition = buffer.getInt(16);
+        int position = buffer.getInt(20);
+        for(int n = 0; n < numPredicates; n++) {
+            byte[] key = new byte[buffer.getInt(position)];
+            position += 4;
+            for(int i = 0; i < key.length; i++)
+                key[i] = buffer.get(position++);
+            Predicate predicate = Predicate.get(new String(key, "UTF-8"));
+            Table table = new Table(predicate, buffer.getInt(position),
+                                    buffer.getInt(position + 4));
+            position += 8;
+            tables.put(predicate, table);
+            numFacts += table.numRows;
+        }
+    }
+    
+    protected Iterable<Literal> searchRaw(Literal goal) {
+        List<Literal> facts = new ArrayList<Literal>();
+        Table table = tables.get(goal.getPredicateSymbol());
+        if(table == null)
+            return facts;
+        int arity = table.predicate.getArity();
+        if(arity == 0) {
+            facts.add(goal);
+            return facts;
+        }
+        int[] pattern = new int[arity];
+        int column = -1;
+        for(int i = 0; i < arity; i++) {
+            Term argument = goal.getArgument(i);
+            if(argument.isVariable()) {
+                pattern[i] = -1;
+                continue;
+            }
+            pattern[i] = find(argument);
+            if(pattern[i] < 0)
+                // no stored fact contains the constant
+                return facts;
+            if(column < 0)
+                column = i;
+        }
+        if(column < 0) {
+            for(int row = 0; row < table.numRows; row++)
+                facts.add(table.getFact(0, row));
+            return facts;
+        }
+        int number = pattern[column];
+        int block = table.findBlock(column, number);
+        for(int row = block * SnapshotWriter.BLOCK_SIZE;
+            row < table.numRows; row++) {
+            int value = table.get(column, row, column);
+            if(value > number)
+                break;
+            if(value == number && table.matches(column, row, pattern))
+                facts.add(table.getFact(column, row));
+        }
+        return facts;
+    }
+    
+    /**
+     * Not supported: snapshots are immutable.
+     * 
+     * @param fact  the fact
+     * @throws      UnsupportedOperationException always
+     */
+    public void assertFact(Literal fact) {
+        throw new UnsupportedOperationException("Snapshots are immutable");
+    }
+    
+    /**
+     * Not supported: snapshots are immutable.
+     * 
+     * @param fact  the fact
+     * @return      never returns
+     * @throws      UnsupportedOperationException always
+     */
+    public boolean retractFact(Literal fact) {
+        throw new UnsupportedOperationException("Snapshots are immutable");
+    }
+    
+    /**
+     * Return every fact in this database. The constants of the facts are
+     * shared with each other but are not interned, so copying a snapshot
+     * does not grow the global term dictionary.
+     * 
+     * @return  the list of facts
+     */
+    public List<Literal> getFacts() {
+        List<Literal> facts = new ArrayList<Literal>();
+        Map<Integer, Term> decoded = new HashMap<Integer, Term>();
+        for(Table table : tables.values())
+            for(int row = 0; row < table.numRows; row++) {
+                Term[] arguments = new Term[table.predicate.getArity()];
+                for(int i = 0; i < arguments.length; i++) {
+                    int number = table.get(0, row, i);
+                    Term term = terms.get(number);
+                    if(term == null)
+                        term = decoded.get(number);
+                    if(term == null) {
+                        term = decodeTerm(number);
+                        decoded.put(number, term);
+                    }
+                    arguments[i] = term;
+                }
+                facts.add(new Literal(table.predicate, arguments));
+            }
+        return facts;
+    }
+    
+    /**
+     * Return the number of facts in this database.
+     * 
+     * @return  the number of facts
+     */
+    public int getNumFacts() {
+        return numFacts;
+    }
+    
+    /**
+     * Return the number of the given constant in the term dictionary.
+     * 
+     * @param term  the constant
+     * @return      the number, or -1 if the snapshot does not contain it
+     */
+    private int find(Term term) {
+        byte[] encoding = BinaryCodec.encode(term);
+        int low = 0;
+        int high = numTerms - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, encoding);
+            if(comparison < 0)
+                low = middle + 1;
+            else if(comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+    
+    /**
+     * Compare the encoding of the given constant in the term dictionary with
+     * the given encoding, as unsigned byte strings.
+     * 
+     * @param number    the number of the constant
+     * @param encoding  the encoding
+     * @return          a negative number, zero or a positive number if the
+     *                  constant's encoding is less than, equal to or greater
+     *                  than the given encoding
+     */
+    private int compare(int number, byte[] encoding) {
+        int start = getTermPosition(number);
+        int length = getTermPosition(number + 1) - start;
+        for(int i = 0; i < length && i < encoding.length; i++) {
+            byte b = buffer.get(start + i);
+            if(b != encoding[i])
+                return (b & 0xff) - (encoding[i] & 0xff);
+        }
+        return length - encoding.length;
+    }
+    
+    /**
+     * Return the constant with the given number in the term dictionary,
+     * decoding it if it has not been returned before.
+     * 
+     * @param number  the number of the constant
+     * @return        the constant
+     */
+    private Term getTerm(int number) {
+        Term term = terms.get(number);
+        if(term == null) {
+            term = TermDictionary.intern(decodeTerm(number));
+            terms.putIfAbsent(number, term);
+        }
+        return term;
+    }
+    
+    /**
+     * Decode the constant with the given number in the term dictionary.
+     * 
+     * @param number  the number of the constant
+     * @return        the constant
+     */
+    private Term decodeTerm(int number) {
+        int start = getTermPosition(number);
+        byte[] encoding = new byte[getTermPosition(number + 1) - start];
+        for(int i = 0; i < encoding.length; i++)
+            encoding[i] = buffer.get(start + i);
+        return BinaryCodec.decodeTerm(encoding);
+    }
+    
+    /**
+     * Return the position of the encoding of the constant with the given
+     * number. The encoding ends where that of the next constant starts.
+     * 
+     * @param number  the number of the constant
+     * @return        the position
+     */
+    private int getTermPosition(int number) {
+        return buffer.getInt(termsPosition + 4 * number);
+    }
+    
+    /**
+     * The runs of a single predicate.
+     */
+    private class Table {
+        /** The predicate */
+        final Predicate predicate;
+        /** The number of rows in each run */
+        final int numRows;
+        /** The position of the first run */
+        final int position;
+        /** The number of blocks in each run */
+        final int numBlocks;
+        
+        /**
+         * Create a new table for the runs at the given position.
+         * 
+         * @param predicate  the predicate
+         * @param numRows    the number of rows in each run
+         * @param position   the position of the first run
+         */
+        Table(Predicate predicate, int numRows, int position) {
+            this.predicate = predicate;
+            this.numRows = numRows;
+            this.position = position;
+            this.numBlocks = SnapshotWriter.getNumBlocks(numRows);
+        }
+        
+        /**
+         * Return the position of the block index of the run sorted by the
+         * given column.
+         * 
+         * @param run  the column the run is sorted by
+         * @return     the position
+         */
+        int getRunPosition(int run) {
+            int arity = predicate.getArity();
+            return position + 4 * run * (numBlocks + numRows * arity);
+        }
+        
+        /**
+         * Return the value of the given column of the given row of a run.
+         * 
+         * @param run     the column the run is sorted by
+         * @param row     the row
+         * @param column  the column
+         * @return        the number of the constant
+         */
+        int get(int run, int row, int column) {
+            int arity = predicate.getArity();
+            return buffer.getInt(getRunPosition(run)
+                                 + 4 * (numBlocks + row * arity + column));
+        }
+        
+        /**
+         * Return the first block of the given run which may contain rows
+         * with the given value in its sort column.
+         * 
+         * @param run     the column the run is sorted by
+         * @param number  the number of the constant
+         * @return        the block
+         */
+        int findBlock(int run, int number) {
+            int runPosition = getRunPosition(run);
+            // find the number of blocks starting with a smaller value
+            int low = 0;
+            int high = numBlocks;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(buffer.getInt(runPosition + 4 * middle) < number)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            // the previous block may end with the value
+            return Math.max(low - 1, 0);
+        }
+        
+        /**
+         * Returns true iff the given row of a run has the given value in
+         * each column whose value in the pattern is not -1.
+         * 
+         * @param run      the column the run is sorted by
+         * @param row      the row
+         * @param pattern  the number of the constant in each column, or -1
+         * @return         true iff the row matches
+         */
+        boolean matches(int run, int row, int[] pattern) {
+            for(int i = 0; i < pattern.length; i++)
+                if(pattern[i] >= 0 && get(run, row, i) != pattern[i])
+                    return false;
+            return true;
+        }
+        
+        /**
+         * Return the fact stored in the given row of a run.
+         * 
+         * @param run  the column the run is sorted by
+         * @param row  the row
+         * @return     the fact
+         */
+        Literal getFact(int run, int row) {
+            Term[] arguments = new Term[predicate.getArity()];
+            for(int i = 0; i < arguments.length; i++)
+                arguments[i] = getTerm(get(run, row, i));
+            return new Literal(predicate, arguments);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.db.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import cc.vidr.datum.BinaryCodec;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.term.Term;
+
+/**
+ * Compacts a collection of facts into an immutable snapshot file, to be
+ * served by a SnapshotFactDatabase.
+ * 
+ * A snapshot starts with a header giving the number of terms and
+ * predicates and the positions of the term dictionary and the predicate
+ * directory. The dictionary holds the binary encoding of every constant,
+ * sorted by encoding, so that a constant can be found by binary search and
+ * numbered by its position. The directory gives the key of each predicate,
+ * its number of facts and the position of its runs. A predicate of arity N
+ * has N runs, each holding every fact of the predicate as a row of term
+ * numbers: run C is sorted starting with argument C, so that a goal binding
+ * any argument finds its facts in a contiguous range of rows. Each run is
+ * preceded by a block index giving the value of its sort column in every
+ * 64th row, which narrows the search to a single block.
+ * 
+ * All integers are big-endian, and every position is an offset from the
+ * start of the file, which cannot exceed 2 GB. Duplicate facts are stored
+ * once.
+ * 
+ * @author  David Roberts
+ * @see     SnapshotFactDatabase
+ */
+public class SnapshotWriter {
+    /** Identifies a snapshot file */
+    static final int MAGIC = 0x44534e50;
+    /** The version of the file format */
+    static final int VERSION = 1;
+    /** The size of the header, in bytes */
+    static final int HEADER_SIZE = 24;
+    /** The number of rows in each block of a run */
+    static final int BLOCK_SIZE = 64;
+    
+    /** Mapping of constants to their provisional numbers */
+    private final Map<Term, Integer> numbers = new HashMap<Term, Integer>();
+    /** The encoding of each constant, by provisional number */
+    private final List<byte[]> encodings = new ArrayList<byte[]>();
+    /** The rows of provisional numbers of each predicate, by key */
+    private final Map<String, List<int[]>> rows =
+        new TreeMap<String, List<int[]>>();
+    /** The number of facts added */
+    private int numFacts = 0;
+    
+    /**
+     * Add the given ground fact to the snapshot.
+     * 
+     * @param fact  the fact
+     * @throws      UnsafeException if the fact is not ground
+     */
+    public void add(Literal fact) throws UnsafeException {
+        if(!fact.isGround())
+            throw new UnsafeException();
+        int[] row = new int[fact.getArity()];
+        for(int i = 0; i < row.length; i++)
+            row[i] = number(fact.getArgument(i));
+        List<int[]> list = rows.get(fact.getPredicate());
+        if(list == null) {
+            list = new ArrayList<int[]>();
+            rows.put(fact.getPredicate(), list);
+        }
+        list.add(row);
+        numFacts++;
+    }
+    
+    /**
+     * Add each of the given ground facts to the snapshot.
+     * 
+     * @param facts  the facts
+     * @throws       UnsafeException if one of the facts is not ground
+     */
+    public void addAll(Iterable<Literal> facts) throws UnsafeException {
+        for(Literal fact : facts)
+            add(fact);
+    }
+    
+    /**
+     * Return the number of facts added, including duplicates.
+     * 
+     * @return  the number of facts
+     */
+    public int getNumFacts() {
+        return numFacts;
+    }
+    
+    /**
+     * Write the snapshot to the given file. The snapshot is written to a
+     * temporary file and forced to disk, then replaces the given file, so
+     * processes which have mapped the previous snapshot are unaffected.
+     * 
+     * @param file  the file
+     * @throws      IOException if the snapshot could not be written, or
+     *              would be too large
+     */
+    public void write(File file) throws IOException {
+        int numTerms = encodings.size();
+        int[] order = renumber();
+        
+        long position = HEADER_SIZE + 4L * (numTerms + 1);
+        int[] termPositions = new int[numTerms + 1];
+        for(int n = 0; n < numTerms; n++) {
+            termPositions[n] = (int) position;
+            position += encodings.get(order[n]).length;
+        }
+        termPositions[numTerms] = (int) position;
+        
+        int predicatesPosition = (int) position;
+        Map<String, int[][]> tables = new TreeMap<String, int[][]>();
+        Map<String, Integer> tablePositions = new HashMap<String, Integer>();
+        for(Map.Entry<String, List<int[]>> entry : rows.entrySet()) {
+            String key = entry.getKey();
+            tables.put(key, sort(entry.getValue()));
+            position += 4 + key.getBytes("UTF-8").length + 8;
+        }
+        for(Map.Entry<String, int[][]> entry : tables.entrySet()) {
+            int[][] table = entry.getValue();
+            int arity = table.length > 0 ? table[0].length : 0;
+            tablePositions.put(entry.getKey(), (int) position);
+            position += 4L * arity * (getNumBlocks(table.length)
+                                      + table.length * arity);
+            if(position > Integer.MAX_VALUE)
+                throw new IOException("Snapshot would exceed 2 GB");
+        }
+        
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(stream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numTerms);
+            out.writeInt(tables.size());
+            out.writeInt(HEADER_SIZE);
+            out.writeInt(predicatesPosition);
+            for(int termPosition : termPositions)
+                out.writeInt(termPosition);
+            for(int n = 0; n < numTerms; n++)
+                out.write(encodings.get(order[n]));
+            for(Map.Entry<String, int[][]> entry : tables.entrySet()) {
+                byte[] key = entry.getKey().getBytes("UTF-8");
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(entry.getValue().length);
+                out.writeInt(tablePositions.get(entry.getKey()));
+            }
+            for(int[][] table : tables.values())
+                writeRuns(out, table);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+    
+    /**
+     * Return the provisional number of the given constant, numbering it if
+     * it has not been seen before.
+     * 
+     * @param term  the constant
+     * @return      the provisional number
+     */
+    private int number(Term term) {
+        Integer number = numbers.get(term);
+        if(number == null) {
+            number = encodings.size();
+            numbers.put(term, number);
+            encodings.add(BinaryCodec.encode(term));
+        }
+        return number;
+    }
+    
+    /**
+     * Renumber the constants in the order of their encodings, rewriting the
+     * rows to use the final numbers.
+     * 
+     * @return  the provisional number of each constant, by final number
+     */
+    private int[] renumber() {
+        Integer[] sorted = new Integer[encodings.size()];
+        for(int n = 0; n < sorted.length; n++)
+            sorted[n] = n;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareEncodings(encodings.get(a), encodings.get(b));
+            }
+        });
+        int[] order = new int[sorted.length];
+        int[] renumbering = new int[sorted.length];
+        for(int n = 0; n < sorted.length; n++) {
+            order[n] = sorted[n];
+            renumbering[sorted[n]] = n;
+        }
+        for(List<int[]> list : rows.values())
+            for(int[] row : list)
+                for(int i = 0; i < row.length; i++)
+                    row[i] = renumbering[row[i]];
+        return order;
+    }
+    
+    /**
+     * Return the given rows sorted starting with the first column, without
+     * duplicates.
+     * 
+     * @param list  the rows
+     * @return      the sorted rows
+     */
+    private static int[][] sort(List<int[]> list) {
+        int[][] table = list.toArray(new int[0][]);
+        Arrays.sort(table, new RowComparator(0));
+        int size = 0;
+        for(int n = 0; n < table.length; n++)
+            if(size == 0 || !Arrays.equals(table[size - 1], table[n]))
+                table[size++] = table[n];
+        return Arrays.copyOf(table, size);
+    }
+    
+    /**
+     * Write the runs of the given sorted rows, each preceded by its block
+     * index.
+     * 
+     * @param out    the stream to write to
+     * @param table  the rows
+     * @throws       IOException if the stream could not be written to
+     */
+    private static void writeRuns(DataOutputStream out, int[][] table)
+    throws IOException {
+        int arity = table.length > 0 ? table[0].length : 0;
+        int[][] run = table.clone();
+        for(int column = 0; column < arity; column++) {
+            if(column > 0)
+                Arrays.sort(run, new RowComparator(column));
+            for(int n = 0; n < run.length; n += BLOCK_SIZE)
+                out.writeInt(run[n][column]);
+            for(int[] row : run)
+                for(int number : row)
+                    out.writeInt(number);
+        }
+    }
+    
+    /**
+     * Return the number of blocks in a run of the given number of rows.
+     * 
+     * @param numRows  the number of rows
+     * @return         the number of blocks
+     */
+    static int getNumBlocks(int numRows) {
+        return (numRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+    
+    /**
+     * Compare the given encodings as unsigned byte strings.
+     * 
+     * @param a  the first encoding
+     * @param b  the second encoding
+     * @return   a negative number, zero or a positive number if the first
+     *           encoding is less than, equal to or greater than the second
+     */
+    private static int compareEncodings(byte[] a, byte[] b) {
+        for(int i = 0; i < a.length && i < b.length; i++)
+            if(a[i] != b[i])
+                return (a[i] & 0xff) - (b[i] & 0xff);
+        return a.length - b.length;
+    }
+    
+    /**
+     * Orders rows by their columns, starting with a given column and
+     * wrapping around to the first.
+     */
+    private static class RowComparator implements Comparator<int[]> {
+        /** The column compared first */
+        private final int start;
+        
+        /**
+         * Create a new comparator starting with the given column.
+         * 
+         * @param start  the column compared first
+         */
+        RowComparator(int start) {
+            this.start = start;
+        }
+        
+        public int compare(int[] a, int[] b) {
+            for(int i = 0; i < a.length; i++) {
+                int column = (start + i) % a.length;
+                if(a[column] != b[column])
+                    return a[column] < b[column] ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
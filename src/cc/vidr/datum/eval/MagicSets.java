@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.eval;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.builtin.Builtin;
+import cc.vidr.datum.db.RuleDatabase;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * Rewrites the rules relevant to a goal using supplementary magic sets, so
+ * that bottom-up evaluation of the rewritten program only derives facts
+ * which are relevant to the goal.
+ * 
+ * Each predicate with rules is specialised to the binding patterns
+ * (adornments) it is called with, reading conditions from left to right. For
+ * example, the goal <code>ancestor(alice, Y)</code> is answered by the
+ * predicate <code>ancestor@bf/2</code>, whose rules only fire for the first
+ * arguments recorded in the magic predicate
+ * <code>magic@ancestor@bf/1</code>, seeded with <code>alice</code>.
+ * Supplementary predicates hold the bindings of each rule part way through
+ * its body, so that no prefix of a body is joined more than once.
+ * 
+ * Predicates without rules, and builtin predicates, are left untouched and
+ * are looked up with the arguments bound so far.
+ * 
+ * @author  David Roberts
+ */
+public class MagicSets {
+    /** Separates the parts of generated predicate names */
+    private static final char SEPARATOR = '@';
+    /** Prefix of magic predicate names */
+    private static final String MAGIC = "magic";
+    /** Prefix of supplementary predicate names */
+    private static final String SUPPLEMENTARY = "sup";
+    
+    /** The database providing rules */
+    private final RuleDatabase ruleDatabase;
+    
+    /**
+     * Create a new rewriter for the rules in the given database.
+     * 
+     * @param ruleDatabase  the database providing rules
+     */
+    public MagicSets(RuleDatabase ruleDatabase) {
+        this.ruleDatabase = ruleDatabase;
+    }
+    
+    /**
+     * Returns true iff the given predicate was generated by a rewriting.
+     * 
+     * @param predicate  the predicate
+     * @return           true iff the predicate was generated
+     */
+    public static boolean isGenerated(String predicate) {
+        return predicate.indexOf(SEPARATOR) >= 0;
+    }
+    
+    /**
+     * Return the adornment of the given literal, with a 'b' for each argument
+     * that is a constant and an 'f' for each argument that is a variable.
+     * 
+     * @param literal  the literal
+     * @return         the adornment
+     */
+    public static String getAdornment(Literal literal) {
+        return getAdornment(literal, new HashSet<Variable>());
+    }
+    
+    /**
+     * Return the literal answering the given goal in the rewritten program.
+     * 
+     * @param goal  the goal
+     * @return      the adorned goal
+     */
+    public static Literal adorn(Literal goal) {
+        return adorn(goal, getAdornment(goal));
+    }
+    
+    /**
+     * Return the literal in the original program corresponding to the given
+     * fact of an adorned predicate.
+     * 
+     * @param fact  the adorned fact
+     * @return      the original fact
+     */
+    public static Literal unadorn(Literal fact) {
+        return new Literal(unadorn(fact.getPredicate()), arguments(fact));
+    }
+    
+    /**
+     * Return the predicate in the original program corresponding to the
+     * given adorned predicate.
+     * 
+     * @param predicate  the adorned predicate
+     * @return           the original predicate
+     */
+    private static String unadorn(String predicate) {
+        return predicate.substring(0, predicate.lastIndexOf(SEPARATOR))
+             + predicate.substring(predicate.lastIndexOf('/'));
+    }
+    
+    /**
+     * Return the adornment of the given adorned predicate.
+     * 
+     * @param predicate  the adorned predicate
+     * @return           the adornment
+     */
+    private static String getAdornment(String predicate) {
+        return predicate.substring(predicate.lastIndexOf(SEPARATOR) + 1,
+                                   predicate.lastIndexOf('/'));
+    }
+    
+    /**
+     * Rewrite the rules relevant to the given goal. The rewritten program
+     * includes the seed fact for the goal, and its answers are the facts of
+     * the predicate of the adorned goal.
+     * 
+     * @param goal  the goal
+     * @return      the rewritten program
+     * @see         #adorn(Literal)
+     */
+    public List<Clause> rewrite(Literal goal) {
+        List<Clause> program = new ArrayList<Clause>();
+        String adornment = getAdornment(goal);
+        program.add(new Clause(magic(goal, adornment)));
+        Set<String> seen = new HashSet<String>();
+        LinkedList<String> queue = new LinkedList<String>();
+        seen.add(adorn(goal, adornment).getPredicate());
+        queue.add(adorn(goal, adornment).getPredicate());
+        int ruleNumber = 0;
+        while(!queue.isEmpty()) {
+            String call = queue.removeFirst();
+            String callAdornment = getAdornment(call);
+            // facts of the predicate which are stored rather than derived
+            Literal stored = new Literal(unadorn(call));
+            program.add(new Clause(adorn(stored, callAdornment),
+                    magic(stored, callAdornment), stored));
+            for(Clause rule : ruleDatabase.search(stored))
+                ruleNumber = rewrite(rule, callAdornment, ruleNumber,
+                                     program, seen, queue);
+        }
+        return program;
+    }
+    
+    /**
+     * Rewrite the given rule for the given adornment of its head.
+     * 
+     * @param rule        the rule
+     * @param adornment   the adornment of the head
+     * @param ruleNumber  the number of rules rewritten so far
+     * @param program     the rewritten program to add to
+     * @param seen        the adorned predicates rewritten so far
+     * @param queue       the calls still to be rewritten
+     * @return            the number of rules rewritten so far
+     */
+    private int rewrite(Clause rule, String adornment, int ruleNumber,
+                        List<Clause> program, Set<String> seen,
+                        LinkedList<String> queue) {
+        Literal head = rule.getHead();
+        String prefix = SUPPLEMENTARY + SEPARATOR + ruleNumber + SEPARATOR;
+        Set<Variable> bound = new HashSet<Variable>();
+        for(int i = 0; i < head.getArity(); i++)
+            if(adornment.charAt(i) == 'b'
+            && head.getArgument(i) instanceof Variable)
+                bound.add((Variable) head.getArgument(i));
+        Literal supplementary = supplementary(prefix, 0,
+                live(bound, rule, 0));
+        program.add(new Clause(supplementary, magic(head, adornment)));
+        for(int i = 0; i < rule.getBodyLength(); i++) {
+            Literal condition = rule.getCondition(i);
+            if(!Builtin.isBuiltinPredicate(condition.getPredicate())
+            && ruleDatabase.search(new Literal(
+                    condition.getPredicate())).length > 0) {
+                String conditionAdornment = getAdornment(condition, bound);
+                program.add(new Clause(magic(condition, conditionAdornment),
+                                       supplementary));
+                Literal call = adorn(condition, conditionAdornment);
+                if(seen.add(call.getPredicate()))
+                    queue.add(call.getPredicate());
+                condition = call;
+            }
+            bound.addAll(condition.variables());
+            Literal next = supplementary(prefix, i + 1,
+                    live(bound, rule, i + 1));
+            program.add(new Clause(next, supplementary, condition));
+            supplementary = next;
+        }
+        program.add(new Clause(adorn(head, adornment), supplementary));
+        return ruleNumber + 1;
+    }
+    
+    /**
+     * Return the adornment of the given literal, given the set of variables
+     * which are already bound.
+     * 
+     * @param literal  the literal
+     * @param bound    the bound variables
+     * @return         the adornment
+     */
+    private static String getAdornment(Literal literal, Set<Variable> bound) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < literal.getArity(); i++) {
+            Term argument = literal.getArgument(i);
+            builder.append(!argument.isVariable() || bound.contains(argument)
+                           ? 'b' : 'f');
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Return the given literal with its predicate specialised to the given
+     * adornment.
+     * 
+     * @param literal    the literal
+     * @param adornment  the adornment
+     * @return           the adorned literal
+     */
+    private static Literal adorn(Literal literal, String adornment) {
+        return new Literal(literal.getPredicateName() + SEPARATOR + adornment
+                           + "/" + literal.getArity(), arguments(literal));
+    }
+    
+    /**
+     * Return the magic literal for the given literal, whose arguments are
+     * the bound arguments of the literal.
+     * 
+     * @param literal    the literal
+     * @param adornment  the adornment of the literal
+     * @return           the magic literal
+     */
+    private static Literal magic(Literal literal, String adornment) {
+        List<Term> arguments = new ArrayList<Term>();
+        for(int i = 0; i < literal.getArity(); i++)
+            if(adornment.charAt(i) == 'b')
+                arguments.add(literal.getArgument(i));
+        return new Literal(MAGIC + SEPARATOR + literal.getPredicateName()
+                           + SEPARATOR + adornment + "/" + arguments.size(),
+                           arguments.toArray(new Term[0]));
+    }
+    
+    /**
+     * Return a supplementary literal over the given variables.
+     * 
+     * @param prefix     the prefix of the supplementary predicate name
+     * @param position   the position in the body of the rule
+     * @param variables  the variables
+     * @return           the supplementary literal
+     */
+    private static Literal supplementary(String prefix, int position,
+                                         List<Variable> variables) {
+        return new Literal(prefix + position + "/" + variables.size(),
+                           variables.toArray(new Term[0]));
+    }
+    
+    /**
+     * Return the bound variables which are still needed after the given
+     * position in the body of the given rule, i.e. those occurring in the
+     * head or in a later condition.
+     * 
+     * @param bound     the bound variables
+     * @param rule      the rule
+     * @param position  the position in the body of the rule
+     * @return          the list of live variables, in a fixed order
+     */
+    private static List<Variable> live(Set<Variable> bound, Clause rule,
+                                       int position) {
+        Set<Variable> needed = new LinkedHashSet<Variable>();
+        collect(rule.getHead(), needed);
+        for(int i = position; i < rule.getBodyLength(); i++)
+            collect(rule.getCondition(i), needed);
+        needed.retainAll(bound);
+        return new ArrayList<Variable>(needed);
+    }
+    
+    /**
+     * Add the variables of the given literal to the given set, in order.
+     * 
+     * @param literal    the literal
+     * @param variables  the set of variables
+     */
+    private static void collect(Literal literal, Set<Variable> variables) {
+        for(int i = 0; i < literal.getArity(); i++)
+            if(literal.getArgument(i) instanceof Variable)
+                variables.add((Variable) literal.getArgument(i));
+    }
+    
+    /**
+     * Return the arguments of the given literal.
+     * 
+     * @param literal  the literal
+     * @return         the array of arguments
+     */
+    private static Term[] arguments(Literal literal) {
+        Term[] arguments = new Term[literal.getArity()];
+        for(int i = 0; i < arguments.length; i++)
+            arguments[i] = literal.getArgument(i);
+        return arguments;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.eval;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.db.RuleDatabase;
+
+/**
+ * A goal-directed bottom-up evaluation engine. Each query is rewritten with
+ * magic sets, and the rewritten program is evaluated set-at-a-time by a
+ * semi-naive engine, so only facts relevant to the query are derived.
+ * 
+ * Nothing is kept between queries.
+ * 
+ * @author  David Roberts
+ * @see     MagicSets
+ */
+public class MagicSetsEngine {
+    /** The rewriter for the rules */
+    private final MagicSets magicSets;
+    /** The database providing facts */
+    private final FactDatabase factDatabase;
+    
+    /**
+     * Create a new engine for the given databases.
+     * 
+     * @param ruleDatabase  the database providing rules
+     * @param factDatabase  the database providing facts
+     */
+    public MagicSetsEngine(RuleDatabase ruleDatabase,
+                           FactDatabase factDatabase) {
+        this.magicSets = new MagicSets(ruleDatabase);
+        this.factDatabase = factDatabase;
+    }
+    
+    /**
+     * Return an array of facts matching the given goal.
+     * 
+     * @param goal  the goal
+     * @return      the array of facts
+     */
+    public Literal[] query(Literal goal) {
+        SemiNaiveEngine engine =
+            new SemiNaiveEngine(null, factDatabase, false);
+        engine.evaluate(magicSets.rewrite(goal));
+        Literal adornedGoal = MagicSets.adorn(goal);
+        Literal[] facts = SemiNaiveEngine.select(
+                engine.getRelation(adornedGoal.getPredicate()), adornedGoal);
+        for(int i = 0; i < facts.length; i++)
+            facts[i] = MagicSets.unadorn(facts[i]);
+        return facts;
+    }
+    
+    /**
+     * Convenience method to aggregate the facts matching the given goals.
+     * 
+     * @param goals  the goals
+     * @return       the array of facts
+     */
+    public Literal[] query(Literal... goals) {
+        Set<Literal> facts = new HashSet<Literal>();
+        for(Literal goal : goals)
+            facts.addAll(Arrays.asList(query(goal)));
+        return facts.toArray(new Literal[0]);
+    }
+}
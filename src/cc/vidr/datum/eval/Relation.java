@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.term.Term;
+
+/**
+ * A set of ground facts for a single predicate, with hash indexes on
+ * combinations of arguments built as they are needed.
+ * 
+ * @author  David Roberts
+ */
+class Relation {
+    /** The facts in this relation, in the order they were added */
+    private List<Literal> facts = new ArrayList<Literal>();
+    /** The set of facts in this relation */
+    private Set<Literal> set = new HashSet<Literal>();
+    /** Mapping of argument masks to the index over those arguments */
+    private Map<Integer, Map<List<Term>, List<Literal>>> indexes =
+        new HashMap<Integer, Map<List<Term>, List<Literal>>>();
+    
+    /**
+     * Add the given fact to this relation.
+     * 
+     * @param fact  the fact
+     * @return      true iff the fact was not already in the relation
+     */
+    public boolean add(Literal fact) {
+        if(!set.add(fact))
+            return false;
+        facts.add(fact);
+        for(Map.Entry<Integer, Map<List<Term>, List<Literal>>> entry :
+                indexes.entrySet())
+            index(entry.getValue(), entry.getKey(), fact);
+        return true;
+    }
+    
+    /**
+     * Returns true iff the given fact is in this relation.
+     * 
+     * @param fact  the fact
+     * @return      true iff the fact is in the relation
+     */
+    public boolean contains(Literal fact) {
+        return set.contains(fact);
+    }
+    
+    /**
+     * Return the number of facts in this relation.
+     * 
+     * @return  the number of facts
+     */
+    public int size() {
+        return facts.size();
+    }
+    
+    /**
+     * Return the facts in this relation.
+     * 
+     * @return  the list of facts
+     */
+    public List<Literal> facts() {
+        return facts;
+    }
+    
+    /**
+     * Return the facts in this relation which agree with the given goal on
+     * all of the goal's constant arguments. Repeated variables in the goal
+     * are not checked.
+     * 
+     * @param goal  the goal
+     * @return      the list of candidate facts
+     */
+    public List<Literal> lookup(Literal goal) {
+        int mask = 0;
+        Term[] key = new Term[goal.getArity()];
+        int keyLength = 0;
+        for(int i = 0; i < goal.getArity(); i++)
+            if(!goal.getArgument(i).isVariable()) {
+                mask |= 1 << i;
+                key[keyLength++] = goal.getArgument(i);
+            }
+        if(mask == 0)
+            return facts;
+        Map<List<Term>, List<Literal>> index = indexes.get(mask);
+        if(index == null) {
+            index = new HashMap<List<Term>, List<Literal>>();
+            for(Literal fact : facts)
+                index(index, mask, fact);
+            indexes.put(mask, index);
+        }
+        List<Literal> result =
+            index.get(Arrays.asList(Arrays.copyOf(key, keyLength)));
+        if(result == null)
+            return Collections.emptyList();
+        return result;
+    }
+    
+    /**
+     * Add the given fact to the given index.
+     * 
+     * @param index  the index
+     * @param mask   the arguments covered by the index
+     * @param fact   the fact
+     */
+    private static void index(Map<List<Term>, List<Literal>> index, int mask,
+                              Literal fact) {
+        List<Term> key = new ArrayList<Term>();
+        for(int i = 0; i < fact.getArity(); i++)
+            if((mask & (1 << i)) != 0)
+                key.add(fact.getArgument(i));
+        List<Literal> list = index.get(key);
+        if(list == null) {
+            list = new ArrayList<Literal>();
+            index.put(key, list);
+        }
+        list.add(fact);
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cc.vidr.datum.Bindings;
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.CompiledClause;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnificationException;
+import cc.vidr.datum.VariantKey;
+import cc.vidr.datum.builtin.Builtin;
+import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.db.FactListener;
+import cc.vidr.datum.db.RuleDatabase;
+import cc.vidr.datum.db.RuleListener;
+
+/**
+ * A bottom-up evaluation engine, which computes every fact of the predicates
+ * relevant to a goal rather than only those matching the goal. The rules are
+ * split into strata of mutually recursive predicates, and each stratum is
+ * evaluated to a fixpoint in turn, using semi-naive evaluation (only joining
+ * against the facts derived in the previous round) and hash joins.
+ * 
+ * Computed relations are kept by the engine, so later queries over the same
+ * predicates are answered without further evaluation. They are not maintained
+ * incrementally: once a fact or rule is asserted or retracted, every relation
+ * is discarded and recomputed on demand. The engine should be closed once it
+ * is no longer needed, so that it stops listening for changes.
+ * 
+ * @author  David Roberts
+ */
+public class SemiNaiveEngine {
+    /** The database providing rules */
+    private final RuleDatabase ruleDatabase;
+    /** The database providing facts */
+    private final FactDatabase factDatabase;
+    /** Mapping of predicates to their fully computed relations */
+    private Map<String, Relation> relations = new HashMap<String, Relation>();
+    /** Mapping of goal variant keys to facts looked up in the fact database */
+    private Map<VariantKey, List<Literal>> lookups =
+        new HashMap<VariantKey, List<Literal>>();
+    /** The bindings of the rule being joined */
+    private final Bindings bindings = new Bindings(0);
+    /** Have the databases changed since the relations were computed? */
+    private volatile boolean stale = false;
+    /** Marks the relations stale when a fact changes */
+    private final FactListener factListener = new FactListener() {
+        public void factAsserted(Literal fact) {
+            stale = true;
+        }
+        
+        public void factRetracted(Literal fact) {
+            stale = true;
+        }
+    };
+    /** Marks the relations stale when a rule changes */
+    private final RuleListener ruleListener = new RuleListener() {
+        public void ruleAsserted(Clause rule) {
+            stale = true;
+        }
+        
+        public void ruleRetracted(Clause rule) {
+            stale = true;
+        }
+    };
+    
+    /**
+     * Create a new engine for the given databases, which listens for
+     * changes to them.
+     * 
+     * @param ruleDatabase  the database providing rules
+     * @param factDatabase  the database providing facts
+     */
+    public SemiNaiveEngine(RuleDatabase ruleDatabase,
+                           FactDatabase factDatabase) {
+        this(ruleDatabase, factDatabase, true);
+    }
+    
+    /**
+     * Create a new engine for the given databases.
+     * 
+     * @param ruleDatabase  the database providing rules, or null if the
+     *                      rules are given to {@link #evaluate(List)}
+     * @param factDatabase  the database providing facts
+     * @param listen        should the engine listen for changes to the
+     *                      databases?
+     */
+    SemiNaiveEngine(RuleDatabase ruleDatabase, FactDatabase factDatabase,
+                    boolean listen) {
+        this.ruleDatabase = ruleDatabase;
+        this.factDatabase = factDatabase;
+        if(listen) {
+            factDatabase.addFactListener(factListener);
+            if(ruleDatabase != null)
+                ruleDatabase.addRuleListener(ruleListener);
+        }
+    }
+    
+    /**
+     * Stop listening for changes to the databases.
+     */
+    public void close() {
+        factDatabase.removeFactListener(factListener);
+        if(ruleDatabase != null)
+            ruleDatabase.removeRuleListener(ruleListener);
+    }
+    
+    /**
+     * Return an array of facts matching the given goal.
+     * 
+     * @param goal  the goal
+     * @return      the array of facts
+     */
+    public synchronized Literal[] query(Literal goal) {
+        if(stale) {
+            stale = false;
+            relations.clear();
+            lookups.clear();
+        }
+        if(!relations.containsKey(goal.getPredicate()))
+            evaluate(collectRules(goal.getPredicate()));
+        return select(relations.get(goal.getPredicate()), goal);
+    }
+    
+    /**
+     * Convenience method to aggregate the facts matching the given goals.
+     * 
+     * @param goals  the goals
+     * @return       the array of facts
+     */
+    public Literal[] query(Literal... goals) {
+        Set<Literal> facts = new HashSet<Literal>();
+        for(Literal goal : goals)
+            facts.addAll(Arrays.asList(query(goal)));
+        return facts.toArray(new Literal[0]);
+    }
+    
+    /**
+     * Return every fact of the given predicate.
+     * 
+     * @param predicate  the predicate
+     * @return           the array of facts
+     */
+    public Literal[] materialize(String predicate) {
+        return query(new Literal(predicate));
+    }
+    
+    /**
+     * Return the facts in the given relation matching the given goal.
+     * 
+     * @param relation  the relation, or null if it is empty
+     * @param goal      the goal
+     * @return          the array of facts
+     */
+    static Literal[] select(Relation relation, Literal goal) {
+        List<Literal> facts = new ArrayList<Literal>();
+        if(relation != null)
+            for(Literal fact : relation.lookup(goal))
+                try {
+                    fact.unify(goal);
+                    facts.add(fact);
+                } catch(UnificationException e) {
+                    // fact doesn't match goal
+                }
+        return facts.toArray(new Literal[0]);
+    }
+    
+    /**
+     * Return the computed relation for the given predicate.
+     * 
+     * @param predicate  the predicate
+     * @return           the relation, or null if it has not been computed
+     */
+    Relation getRelation(String predicate) {
+        return relations.get(predicate);
+    }
+    
+    /**
+     * Return the rules for the given predicate, along with the rules for
+     * every predicate they depend on, excluding predicates whose relations
+     * have already been computed.
+     * 
+     * @param predicate  the predicate
+     * @return           the list of rules
+     */
+    private List<Clause> collectRules(String predicate) {
+        List<Clause> rules = new ArrayList<Clause>();
+        Set<String> seen = new HashSet<String>();
+        LinkedList<String> queue = new LinkedList<String>();
+        queue.add(predicate);
+        seen.add(predicate);
+        while(!queue.isEmpty()) {
+            String p = queue.removeFirst();
+            for(Clause rule : ruleDatabase.search(new Literal(p))) {
+                rules.add(rule);
+                for(int i = 0; i < rule.getBodyLength(); i++) {
+                    String q = rule.getCondition(i).getPredicate();
+                    if(!relations.containsKey(q) && seen.add(q))
+                        queue.add(q);
+                }
+            }
+        }
+        // predicates without rules still need their facts loaded, so give
+        // them a placeholder (non-ground) fact
+        for(String p : seen)
+            if(!Builtin.isBuiltinPredicate(p) && !containsHead(rules, p))
+                rules.add(new Clause(new Literal(p)));
+        return rules;
+    }
+    
+    /**
+     * Evaluate the given program, adding the relations for every predicate
+     * defined by it (together with the facts in the fact database) to the
+     * computed relations.
+     * 
+     * @param rules  the rules of the program
+     */
+    void evaluate(List<Clause> rules) {
+        Map<String, List<Clause>> rulesByHead =
+            new HashMap<String, List<Clause>>();
+        for(Clause rule : rules) {
+            String head = rule.getHead().getPredicate();
+            List<Clause> list = rulesByHead.get(head);
+            if(list == null) {
+                list = new ArrayList<Clause>();
+                rulesByHead.put(head, list);
+            }
+            list.add(rule);
+        }
+        for(List<String> stratum : stratify(rulesByHead))
+            evaluate(stratum, rulesByHead);
+    }
+    
+    /**
+     * Evaluate a single stratum of mutually recursive predicates to a
+     * fixpoint.
+     * 
+     * @param stratum      the predicates in the stratum
+     * @param rulesByHead  mapping of predicates to their rules
+     */
+    private void evaluate(List<String> stratum,
+                          Map<String, List<Clause>> rulesByHead) {
+        Set<String> recursive = new HashSet<String>(stratum);
+        List<Clause> rules = new ArrayList<Clause>();
+        Map<String, Relation> delta = new HashMap<String, Relation>();
+        for(String predicate : stratum) {
+            Relation relation = new Relation();
+            if(!Builtin.isBuiltinPredicate(predicate)
+            && !MagicSets.isGenerated(predicate))
+                for(Literal fact : factDatabase.search(new Literal(predicate)))
+                    relation.add(fact);
+            for(Clause rule : rulesByHead.get(predicate))
+                if(!rule.isFact())
+                    rules.add(rule);
+                else if(rule.getHead().isGround())
+                    relation.add(rule.getHead());
+            relations.put(predicate, relation);
+            delta.put(predicate, null);
+        }
+        // the first round joins against everything, after which only joins
+        // involving a fact derived in the previous round can produce
+        // anything new
+        Map<String, Relation> derived = new HashMap<String, Relation>();
+        for(Clause rule : rules)
+            join(rule, -1, null, derived);
+        while(merge(derived, delta)) {
+            derived = new HashMap<String, Relation>();
+            for(Clause rule : rules)
+                for(int i = 0; i < rule.getBodyLength(); i++)
+                    if(recursive.contains(rule.getCondition(i).getPredicate()))
+                        join(rule, i, delta, derived);
+        }
+    }
+    
+    /**
+     * Add the derived facts to the computed relations, replacing the delta
+     * relations with the facts which were actually new.
+     * 
+     * @param derived  the facts derived in the last round
+     * @param delta    the delta relations to be replaced
+     * @return         true iff any new facts were derived
+     */
+    private boolean merge(Map<String, Relation> derived,
+                          Map<String, Relation> delta) {
+        boolean changed = false;
+        for(String predicate : delta.keySet()) {
+            Relation newFacts = new Relation();
+            Relation relation = relations.get(predicate);
+            Relation facts = derived.get(predicate);
+            if(facts != null)
+                for(Literal fact : facts.facts())
+                    if(relation.add(fact)) {
+                        newFacts.add(fact);
+                        changed = true;
+                    }
+            delta.put(predicate, newFacts);
+        }
+        return changed;
+    }
+    
+    /**
+     * Join the conditions of the given rule, adding the head of every
+     * resulting ground clause to the derived facts.
+     * 
+     * @param rule       the rule
+     * @param deltaAt    the position of the condition to be joined against the
+     *                   delta relation, or -1 to use full relations throughout
+     * @param delta      the delta relations
+     * @param derived    the derived facts
+     */
+    private void join(Clause rule, int deltaAt, Map<String, Relation> delta,
+                      Map<String, Relation> derived) {
+        CompiledClause compiled = rule.compile();
+        bindings.reset(compiled.getNumSlots());
+        join(compiled, 0, deltaAt, delta, derived);
+    }
+    
+    /**
+     * Join the conditions of the given compiled rule from the given position
+     * onwards, with the conditions before it already matched by the current
+     * bindings. Bindings made by each candidate fact are undone before the
+     * next is tried, so no clauses are built along the way.
+     * 
+     * @param rule       the compiled rule
+     * @param position   the position of the first condition to be joined
+     * @param deltaAt    the position of the condition to be joined against the
+     *                   delta relation, or -1 to use full relations throughout
+     * @param delta      the delta relations
+     * @param derived    the derived facts
+     */
+    private void join(CompiledClause rule, int position, int deltaAt,
+                      Map<String, Relation> delta,
+                      Map<String, Relation> derived) {
+        if(position == rule.getBodyLength()) {
+            Literal head = rule.build(0, bindings);
+            String predicate = head.getPredicate();
+            if(!head.isGround() || relations.get(predicate).contains(head))
+                return;
+            Relation relation = derived.get(predicate);
+            if(relation == null) {
+                relation = new Relation();
+                derived.put(predicate, relation);
+            }
+            relation.add(head);
+            return;
+        }
+        Literal condition = rule.build(position + 1, bindings);
+        int mark = bindings.mark();
+        for(Literal fact : candidates(condition, position == deltaAt
+                                                 ? delta : relations)) {
+            if(rule.match(position + 1, fact, bindings))
+                join(rule, position + 1, deltaAt, delta, derived);
+            bindings.undo(mark);
+        }
+    }
+    
+    /**
+     * Return the facts roughly matching the given condition. Facts of
+     * predicates which are not defined by the program being evaluated are
+     * looked up in the fact database.
+     * 
+     * @param condition  the condition
+     * @param source     the relations to take facts from
+     * @return           the candidate facts
+     */
+    private List<Literal> candidates(Literal condition,
+                                     Map<String, Relation> source) {
+        if(Builtin.isBuiltinPredicate(condition.getPredicate()))
+            return Arrays.asList(Builtin.satisfy(condition));
+        Relation relation = source.get(condition.getPredicate());
+        if(relation != null)
+            return relation.lookup(condition);
+        if(source != relations)
+            return Collections.emptyList();
+        VariantKey key = condition.getVariantKey();
+        List<Literal> facts = lookups.get(key);
+        if(facts == null) {
+            facts = Arrays.asList(factDatabase.search(condition));
+            lookups.put(key, facts);
+        }
+        return facts;
+    }
+    
+    /**
+     * Split the predicates defined by the given rules into strata, such that
+     * each stratum only depends on itself and earlier strata.
+     * 
+     * @param rulesByHead  mapping of predicates to their rules
+     * @return             the list of strata
+     */
+    private List<List<String>> stratify(
+            Map<String, List<Clause>> rulesByHead) {
+        Stratifier stratifier = new Stratifier(rulesByHead);
+        for(String predicate : rulesByHead.keySet())
+            stratifier.visit(predicate);
+        return stratifier.strata;
+    }
+    
+    /**
+     * Returns true iff one of the given rules has a head with the given
+     * predicate.
+     */
+    private static boolean containsHead(List<Clause> rules, String predicate) {
+        for(Clause rule : rules)
+            if(rule.getHead().getPredicate() == predicate)
+                return true;
+        return false;
+    }
+    
+    /**
+     * Finds the strongly connected components of the predicate dependency
+     * graph, using Tarjan's algorithm. Components are found in dependency
+     * order.
+     */
+    private static class Stratifier {
+        /** Mapping of predicates to their rules */
+        private final Map<String, List<Clause>> rulesByHead;
+        /** Mapping of visited predicates to their visit index */
+        private Map<String, Integer> index = new HashMap<String, Integer>();
+        /** Mapping of visited predicates to their lowest reachable index */
+        private Map<String, Integer> lowLink = new HashMap<String, Integer>();
+        /** The stack of predicates in unfinished components */
+        private LinkedList<String> stack = new LinkedList<String>();
+        /** The set of predicates on the stack */
+        private Set<String> onStack = new HashSet<String>();
+        /** The strata found so far */
+        private List<List<String>> strata = new ArrayList<List<String>>();
+        
+        /**
+         * Create a new stratifier for the given rules.
+         * 
+         * @param rulesByHead  mapping of predicates to their rules
+         */
+        public Stratifier(Map<String, List<Clause>> rulesByHead) {
+            this.rulesByHead = rulesByHead;
+        }
+        
+        /**
+         * Visit the given predicate, if it has not already been visited.
+         * 
+         * @param predicate  the predicate
+         */
+        public void visit(String predicate) {
+            if(index.containsKey(predicate)
+            || !rulesByHead.containsKey(predicate))
+                return;
+            index.put(predicate, index.size());
+            lowLink.put(predicate, index.get(predicate));
+            stack.addFirst(predicate);
+            onStack.add(predicate);
+            for(Clause rule : rulesByHead.get(predicate))
+                for(int i = 0; i < rule.getBodyLength(); i++) {
+                    String dependency = rule.getCondition(i).getPredicate();
+                    if(!rulesByHead.containsKey(dependency))
+                        continue;
+                    if(!index.containsKey(dependency)) {
+                        visit(dependency);
+                        lowLink.put(predicate, Math.min(lowLink.get(predicate),
+                                lowLink.get(dependency)));
+                    } else if(onStack.contains(dependency)) {
+                        lowLink.put(predicate, Math.min(lowLink.get(predicate),
+                                index.get(dependency)));
+                    }
+                }
+            if(lowLink.get(predicate).equals(index.get(predicate))) {
+                List<String> stratum = new ArrayList<String>();
+                String member;
+                do {
+                    member = stack.removeFirst();
+                    onStack.remove(member);
+                    stratum.add(member);
+                } while(member != predicate);
+                strata.add(stratum);
+            }
+        }
+    }
+}
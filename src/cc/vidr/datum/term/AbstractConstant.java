@@ -30,6 +30,8 @@ public abstract class AbstractConstant<T> implements Constant {
     private static final long serialVersionUID = -6448707812888360999L;
     /** The data which uniquely identifies the constant */
     protected T data;
+    /** The ID of the constant if it is a canonical instance, otherwise 0 */
+    transient int id;
     
     /**
      * Create a new Constant with the given data.
@@ -49,6 +51,27 @@ public abstract class AbstractConstant<T> implements Constant {
         return data;
     }
     
+    /**
+     * Return the ID of this constant in the term dictionary.
+     * 
+     * @return  the ID, or 0 if this is not a canonical instance
+     * @see     TermDictionary
+     */
+    public final int getId() {
+        return id;
+    }
+    
+    /**
+     * Returns true iff this constant and the given constant are both
+     * canonical instances, and so are equal iff they are identical.
+     * 
+     * @param other  the other constant
+     * @return       true iff the constants can be compared by identity
+     */
+    protected final boolean areCanonical(AbstractConstant<?> other) {
+        return id != 0 && other.id != 0;
+    }
+    
     public final void unify(Term term, Substitution substitution)
     throws UnificationException {
         if(term.isVariable())
@@ -73,6 +73,8 @@ extends AbstractConstant<DateTime> implements Constant {
             return true;
         if(o instanceof DateTimeTerm) {
             DateTimeTerm d = (DateTimeTerm) o;
+            if(areCanonical(d))
+                return false;
             return data.equals(d.data);
         }
         return false;
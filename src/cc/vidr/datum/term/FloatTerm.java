@@ -48,6 +48,8 @@ public class FloatTerm extends AbstractConstant<Double> implements Constant {
             return true;
         if(o instanceof FloatTerm) {
             FloatTerm f = (FloatTerm) o;
+            if(areCanonical(f))
+                return false;
             return data.equals(f.data);
         }
         return false;
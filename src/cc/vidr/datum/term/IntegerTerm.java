@@ -48,6 +48,8 @@ public class IntegerTerm extends AbstractConstant<Long> implements Constant {
             return true;
         if(o instanceof IntegerTerm) {
             IntegerTerm i = (IntegerTerm) o;
+            if(areCanonical(i))
+                return false;
             return data.equals(i.data);
         }
         return false;
@@ -54,6 +54,8 @@ public class Measurement extends AbstractConstant<Double> implements Constant {
             return true;
         if(o instanceof Measurement) {
             Measurement m = (Measurement) o;
+            if(areCanonical(m))
+                return false;
             return data.equals(m.data) && unit.equals(m.unit);
         }
         return false;
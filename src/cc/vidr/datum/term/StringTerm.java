@@ -59,6 +59,8 @@ extends AbstractConstant<String> implements Constant {
             return true;
         if(o instanceof StringTerm) {
             StringTerm s = (StringTerm) o;
+            if(areCanonical(s))
+                return false;
             return data.equals(s.data);
         }
         return false;
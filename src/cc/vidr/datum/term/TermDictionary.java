@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.term;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A global dictionary of constants, mapping each distinct constant to a
+ * single canonical instance and a dense integer ID.
+ * 
+ * Facts which mention the same constant then share one instance of it, and
+ * canonical instances can be compared by identity, or by ID, rather than by
+ * comparing their data. IDs are assigned in the order in which constants are
+ * first interned, starting from one, and are never reused; the dictionary
+ * only grows, so it is intended for the constants of the stored facts and
+ * rules rather than for values computed during evaluation.
+ * 
+ * All methods are thread-safe.
+ * 
+ * @author  David Roberts
+ */
+public final class TermDictionary {
+    /** The canonical instance of each interned constant */
+    private static final ConcurrentMap<Constant, AbstractConstant<?>>
+    canonical = new ConcurrentHashMap<Constant, AbstractConstant<?>>();
+    /** The canonical instances, by ID (the entry at index zero is unused) */
+    private static volatile AbstractConstant<?>[] constants =
+        new AbstractConstant<?>[1024];
+    /** The number of IDs assigned so far, plus one */
+    private static int nextId = 1;
+    /** Guards the assignment of IDs */
+    private static final Object lock = new Object();
+    
+    /**
+     * Prevent instantiation.
+     */
+    private TermDictionary() {}
+    
+    /**
+     * Return the canonical instance of the given term, adding it to the
+     * dictionary if it has not been seen before. Variables are returned
+     * unchanged.
+     * 
+     * @param term  the term
+     * @return      the canonical instance of the term
+     */
+    public static Term intern(Term term) {
+        if(!(term instanceof AbstractConstant<?>))
+            return term;
+        AbstractConstant<?> constant = (AbstractConstant<?>) term;
+        if(constant.id != 0)
+            return constant;
+        AbstractConstant<?> existing = canonical.get(constant);
+        if(existing != null)
+            return existing;
+        synchronized(lock) {
+            existing = canonical.get(constant);
+            if(existing != null)
+                return existing;
+            if(nextId == constants.length)
+                constants = Arrays.copyOf(constants, 2 * nextId);
+            constants[nextId] = constant;
+            constant.id = nextId++;
+            canonical.put(constant, constant);
+            return constant;
+        }
+    }
+    
+    /**
+     * Return the ID of the given term if it is in the dictionary, without
+     * adding it.
+     * 
+     * @param term  the term
+     * @return      the ID of the term, or 0 if it is a variable or has not
+     *              been interned
+     */
+    public static int lookup(Term term) {
+        if(!(term instanceof AbstractConstant<?>))
+            return 0;
+        AbstractConstant<?> constant = (AbstractConstant<?>) term;
+        if(constant.id != 0)
+            return constant.id;
+        AbstractConstant<?> existing = canonical.get(constant);
+        return existing == null ? 0 : existing.id;
+    }
+    
+    /**
+     * Replace each term of the given array with its canonical instance.
+     * 
+     * @param terms  the array of terms
+     */
+    public static void intern(Term[] terms) {
+        for(int i = 0; i < terms.length; i++)
+            terms[i] = intern(terms[i]);
+    }
+    
+    /**
+     * Return the ID of the given constant, adding it to the dictionary if it
+     * has not been seen before.
+     * 
+     * @param constant  the constant
+     * @return          the ID of the constant
+     */
+    public static int getId(Constant constant) {
+        return ((AbstractConstant<?>) intern(constant)).id;
+    }
+    
+    /**
+     * Return the canonical constant with the given ID.
+     * 
+     * @param id  the ID
+     * @return    the constant
+     * @throws    IndexOutOfBoundsException if no constant has the given ID
+     */
+    public static Constant get(int id) {
+        AbstractConstant<?>[] array = constants;
+        if(id <= 0 || id >= array.length || array[id] == null)
+            throw new IndexOutOfBoundsException("Invalid term ID: " + id);
+        return array[id];
+    }
+    
+    /**
+     * Return the number of constants in the dictionary.
+     * 
+     * @return  the number of constants
+     */
+    public static int size() {
+        synchronized(lock) {
+            return nextId - 1;
+        }
+    }
+}
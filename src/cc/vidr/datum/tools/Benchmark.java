@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.FactDatabase;
+import cc.vidr.datum.db.jdo.JDOFactDatabase;
+import cc.vidr.datum.db.memory.MemoryFactDatabase;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+import cc.vidr.datum.util.Random;
+
+/**
+ * Compares the time taken to search the JDO datastore with the time taken
+ * to search the same facts held in a MemoryFactDatabase.
+ * 
+ * The goals are made from facts chosen at random from the datastore, with
+ * either the first or the last argument left bound, as they would be when
+ * a server looks up a sub-goal. The JDO datastore is timed both for the
+ * first lookups, which compile its queries, and for repeated lookups. The
+ * datastore is only read from, so facts should be loaded with Import
+ * beforehand.
+ * 
+ * @author  David Roberts
+ */
+public class Benchmark {
+    /** The default number of goals searched for */
+    private static final int DEFAULT_NUM_GOALS = 1000;
+    
+    public static void main(String[] args) throws UnsafeException {
+        int numGoals = args.length > 0 ? Integer.parseInt(args[0])
+                                       : DEFAULT_NUM_GOALS;
+        JDOFactDatabase jdo = new JDOFactDatabase();
+        long start = System.nanoTime();
+        Literal[] facts = jdo.getFacts().toArray(new Literal[0]);
+        report("Loaded " + facts.length + " facts", start, 1);
+        if(facts.length == 0) {
+            System.err.println("The datastore is empty; run Import first.");
+            return;
+        }
+        start = System.nanoTime();
+        MemoryFactDatabase memory =
+            new MemoryFactDatabase(Arrays.asList(facts));
+        report("Built memory database", start, 1);
+        
+        List<Literal> goals = new ArrayList<Literal>();
+        for(int n = 0; n < numGoals; n++)
+            goals.add(generalise(Random.element(facts), n % 2 == 0));
+        // the first lookups compile queries and open persistence managers
+        start = System.nanoTime();
+        int numAnswers = search(jdo, goals);
+        report("JDOFactDatabase, first lookups", start, goals.size());
+        if(search(memory, goals) != numAnswers)
+            System.err.println("The databases returned different answers!");
+        System.out.println(goals.size() + " goals, " + numAnswers
+                           + " answers");
+        
+        start = System.nanoTime();
+        search(jdo, goals);
+        report("JDOFactDatabase, repeated lookups", start, goals.size());
+        start = System.nanoTime();
+        search(memory, goals);
+        report("MemoryFactDatabase", start, goals.size());
+    }
+    
+    /**
+     * Return a goal matching the given fact, with every argument except the
+     * first or the last replaced by a variable.
+     * 
+     * @param fact   the fact
+     * @param first  true to keep the first argument, false to keep the last
+     * @return       the goal
+     */
+    private static Literal generalise(Literal fact, boolean first) {
+        Term[] arguments = new Term[fact.getArity()];
+        int bound = first ? 0 : arguments.length - 1;
+        for(int i = 0; i < arguments.length; i++)
+            arguments[i] = i == bound ? fact.getArgument(i) : new Variable();
+        return new Literal(fact.getPredicateSymbol(), arguments);
+    }
+    
+    /**
+     * Search the given database for each of the given goals.
+     * 
+     * @param db     the database
+     * @param goals  the goals
+     * @return       the total number of facts found
+     */
+    private static int search(FactDatabase db, List<Literal> goals) {
+        int numAnswers = 0;
+        for(Literal goal : goals)
+            numAnswers += db.search(goal).length;
+        return numAnswers;
+    }
+    
+    /**
+     * Print the time taken since the given start time.
+     * 
+     * @param what   a description of what was timed
+     * @param start  the start time, in nanoseconds
+     * @param count  the number of operations timed
+     */
+    private static void report(String what, long start, int count) {
+        long elapsed = System.nanoTime() - start;
+        System.out.print(what + ": " + elapsed / 1000000 + " ms");
+        if(count > 1)
+            System.out.print(" (" + elapsed / 1000 / count + " us each)");
+        System.out.println();
+    }
+}
@@ -18,25 +18,47 @@
 package cc.vidr.datum.tools;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
 import org.antlr.runtime.RecognitionException;
 import org.apache.commons.lang.StringUtils;
 
+import cc.vidr.datum.AnswerStream;
 import cc.vidr.datum.Clause;
 import cc.vidr.datum.Literal;
 import cc.vidr.datum.Program;
 import cc.vidr.datum.QA;
 import cc.vidr.datum.Server;
+import cc.vidr.datum.TableManager;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.CachingFactDatabase;
+import cc.vidr.datum.db.jdo.JDOFactDatabase;
+import cc.vidr.datum.db.lsm.LSMFactDatabase;
+import cc.vidr.datum.db.memory.MemoryFactDatabase;
+import cc.vidr.datum.db.snapshot.SnapshotFactDatabase;
 
 /**
  * Interactive question answering console.
  * 
+ * Usage: <code>Console [-memory | -snapshot FILE | -lsm DIR]
+ * [-budget BYTES]</code>
+ * 
+ * Facts are served from the JDO datastore, from an in-memory database
+ * loaded from the datastore at startup, from the given snapshot file, or
+ * from the log-structured database in the given directory, through a cache
+ * of the goals searched for. The tables of answers are limited to the given
+ * memory budget, if any.
+ * 
  * @author  David Roberts
  */
 public class Console {
     private static final boolean DEBUG = true;
+    /** The usage line printed when the arguments are not understood */
+    private static final String USAGE =
+        "Usage: Console [-memory | -snapshot FILE | -lsm DIR] "
+        + "[-budget BYTES]";
     
     private static void printFact(Literal fact, int depth) {
         Literal[] proof = Server.getProof(fact);
@@ -49,7 +71,47 @@ public class Console {
             printFact(literal, depth + 1);
     }
     
-    public static void main(String[] args) throws IOException {
+    /**
+     * Load every fact in the JDO datastore into an in-memory database.
+     * 
+     * @return  the database
+     * @throws  UnsafeException if the datastore holds a non-ground fact
+     */
+    private static MemoryFactDatabase loadMemory() throws UnsafeException {
+        System.out.print("Loading facts into memory... ");
+        System.out.flush();
+        MemoryFactDatabase db =
+            new MemoryFactDatabase(new JDOFactDatabase().getFacts());
+        System.out.println(db.getNumFacts() + " facts.");
+        return db;
+    }
+    
+    public static void main(String[] args)
+    throws IOException, UnsafeException {
+        try {
+            for(int i = 0; i < args.length; i++) {
+                boolean hasValue = i + 1 < args.length;
+                if(args[i].equals("-memory"))
+                    Server.factDatabase = loadMemory();
+                else if(args[i].equals("-snapshot") && hasValue)
+                    Server.factDatabase =
+                        new SnapshotFactDatabase(new File(args[++i]));
+                else if(args[i].equals("-lsm") && hasValue)
+                    Server.factDatabase =
+                        new LSMFactDatabase(new File(args[++i]));
+                else if(args[i].equals("-budget") && hasValue)
+                    TableManager.setBudget(Long.parseLong(args[++i]));
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+        } catch(IllegalArgumentException e) {
+            // NumberFormatException, for a malformed budget, is one too
+            System.err.println(USAGE);
+            return;
+        }
+        CachingFactDatabase cache =
+            new CachingFactDatabase(Server.factDatabase);
+        Server.factDatabase = cache;
         System.out.print("Warming up... ");
         System.out.flush();
         QA.query("");
@@ -66,27 +128,39 @@ public class Console {
                 System.out.println("Bye.");
                 break;
             }
-            Literal[] facts;
+            long startTime = System.nanoTime();
+            AnswerStream facts;
             if(q.startsWith("?-")) {
                 try {
                     Program program = new Program(q.substring(2));
                     Clause[] query = program.parse();
-                    facts = Server.query(query[0].getHead());
+                    facts = Server.stream(query[0].getHead());
                 } catch (RecognitionException e) {
-                    facts = new Literal[0];
+                    facts = Server.stream();
                 }
             } else {
-                facts = QA.query(q);
+                facts = QA.stream(q);
+            }
+            int numAnswers = 0;
+            try {
+                while(facts.hasNext()) {
+                    printFact(facts.next(), 0);
+                    numAnswers++;
+                }
+            } finally {
+                facts.close();
             }
-            for(Literal fact : facts)
-                printFact(fact, 0);
-            if(facts.length == 0)
+            if(numAnswers == 0)
                 System.out.println("I don't know.");
             if(DEBUG) {
+                if(numAnswers > 0)
+                    System.err.println("first answer after "
+                            + facts.getFirstAnswerTime() / 1000000 + " ms");
                 System.err.println((Server.getNumServers() - numServers)
                         + " servers spawned");
                 System.err.println((Server.getNumFacts() - numFacts)
                         + " facts retrieved/generated");
+                System.err.println(cache);
             }
         }
     }
@@ -18,38 +18,226 @@
 package cc.vidr.datum.tools;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jdo.JDOException;
 
 import org.antlr.runtime.RecognitionException;
 
+import cc.vidr.datum.Clause;
 import cc.vidr.datum.Program;
+import cc.vidr.datum.ProgramReader;
 import cc.vidr.datum.Server;
 import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.jdo.JDOBulkLoader;
+import cc.vidr.datum.db.lsm.LSMFactDatabase;
 
 /**
  * Datalog program importer.
  * 
+ * Usage: <code>Import [-lsm DIR | -bulk [-batch SIZE] [-threads N]]
+ * FILE...</code>
+ * 
+ * By default each file is parsed in full and its clauses are asserted to
+ * the databases of the servers one at a time. The facts can instead be
+ * asserted to the log-structured database in DIR, which is created if it
+ * does not exist. In bulk mode the files are
+ * parsed a chunk at a time, by up to N threads in parallel, and the clauses
+ * are stored directly in the JDO datastore in transactions of SIZE clauses,
+ * skipping duplicates. Progress is reported as the clauses are stored.
+ * 
  * @author  David Roberts
+ * @see     JDOBulkLoader
  */
 public class Import {
-    public static void main(String[] args) {
-        for(String arg : args) {
+    /** The default number of clauses stored in each transaction */
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    /** The number of clauses parsed at a time in bulk mode */
+    private static final int CHUNK_SIZE = 1000;
+    /** The number of parsed chunks waiting to be stored */
+    private static final int QUEUE_CAPACITY = 16;
+    /** The interval between progress reports, in milliseconds */
+    private static final long PROGRESS_INTERVAL = 5000;
+    /** Marks the end of a file in the queue of parsed chunks */
+    private static final Clause[] END = new Clause[0];
+    
+    public static void main(String[] args)
+    throws InterruptedException, IOException {
+        List<String> files = new ArrayList<String>();
+        String lsm = null;
+        boolean bulk = false;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-lsm"))
+                lsm = args[++i];
+            else if(args[i].equals("-bulk"))
+                bulk = true;
+            else if(args[i].equals("-batch"))
+                batchSize = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-threads"))
+                numThreads = Integer.parseInt(args[++i]);
+            else
+                files.add(args[i]);
+        }
+        if(bulk && lsm != null) {
+            System.err.println("-lsm cannot be used with -bulk");
+        } else if(bulk) {
+            bulkImport(files, batchSize, numThreads);
+        } else if(lsm != null) {
+            LSMFactDatabase db = new LSMFactDatabase(new File(lsm));
+            Server.factDatabase = db;
+            try {
+                for(String file : files)
+                    importFile(file);
+                db.sync();
+            } finally {
+                db.close();
+            }
+        } else {
+            for(String file : files)
+                importFile(file);
+        }
+    }
+    
+    /**
+     * Parse the given file in full, and assert its clauses to the databases
+     * of the servers.
+     * 
+     * @param file  the name of the file
+     */
+    private static void importFile(String file) {
+        try {
+            System.out.print("Loading '" + file + "'... ");
+            System.out.flush();
+            Program program = new Program(new File(file));
+            program.parse();
+            program.assertFacts(Server.factDatabase);
+            program.assertRules(Server.ruleDatabase);
+            System.out.println("OK");
+        } catch(RecognitionException e) {
+            System.err.println("Malformed input: " + e.getMessage());
+        } catch(UnsafeException e) {
+            System.err.println("Unsafe rule or non-ground fact " +
+            		   "encountered: " + e.getMessage());
+        } catch(IOException e) {
+            System.err.println("Error opening file: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Parse the given files in parallel, and store their clauses in the JDO
+     * datastore in batches.
+     * 
+     * @param files       the names of the files
+     * @param batchSize   the number of clauses stored in each transaction
+     * @param numThreads  the number of files parsed at once
+     * @throws            InterruptedException if interrupted while waiting
+     *                    for a file to be parsed
+     */
+    private static void bulkImport(List<String> files, int batchSize,
+                                   int numThreads)
+    throws InterruptedException {
+        final BlockingQueue<Clause[]> queue =
+            new ArrayBlockingQueue<Clause[]>(QUEUE_CAPACITY);
+        ExecutorService parsers = Executors.newFixedThreadPool(numThreads);
+        for(final String file : files)
+            parsers.execute(new Runnable() {
+                public void run() {
+                    parse(file, queue);
+                }
+            });
+        parsers.shutdown();
+        
+        JDOBulkLoader loader = new JDOBulkLoader(batchSize);
+        long startTime = System.currentTimeMillis();
+        long reportTime = startTime;
+        int remaining = files.size();
+        try {
+            while(remaining > 0) {
+                Clause[] chunk = queue.take();
+                if(chunk == END) {
+                    remaining--;
+                    continue;
+                }
+                for(Clause clause : chunk)
+                    try {
+                        loader.add(clause);
+                    } catch(UnsafeException e) {
+                        System.err.println("Unsafe rule or non-ground fact "
+                                           + "encountered: " + clause);
+                    }
+                if(System.currentTimeMillis() - reportTime
+                        >= PROGRESS_INTERVAL) {
+                    report(loader, startTime);
+                    reportTime = System.currentTimeMillis();
+                }
+            }
+            loader.flush();
+        } catch(JDOException e) {
+            System.err.println("Error storing clauses: " + e.getMessage());
+        } finally {
+            // parsers may be blocked on the full queue
+            parsers.shutdownNow();
+            queue.clear();
+        }
+        report(loader, startTime);
+    }
+    
+    /**
+     * Parse the given file a chunk at a time, adding each chunk to the given
+     * queue, followed by the end marker.
+     * 
+     * @param file   the name of the file
+     * @param queue  the queue of parsed chunks
+     */
+    private static void parse(String file, BlockingQueue<Clause[]> queue) {
+        try {
+            ProgramReader reader =
+                new ProgramReader(new FileReader(file), CHUNK_SIZE);
+            try {
+                Clause[] chunk;
+                while((chunk = reader.read()) != null)
+                    queue.put(chunk);
+            } finally {
+                reader.close();
+            }
+            System.out.println("Parsed '" + file + "'");
+        } catch(RecognitionException e) {
+            System.err.println("Malformed input in '" + file + "': "
+                               + e.getMessage());
+        } catch(IOException e) {
+            System.err.println("Error reading '" + file + "': "
+                               + e.getMessage());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
             try {
-                System.out.print("Loading '" + arg + "'... ");
-                System.out.flush();
-                Program program = new Program(new File(arg));
-                program.parse();
-                program.assertFacts(Server.factDatabase);
-                program.assertRules(Server.ruleDatabase);
-                System.out.println("OK");
-            } catch(RecognitionException e) {
-                System.err.println("Malformed input: " + e.getMessage());
-            } catch(UnsafeException e) {
-                System.err.println("Unsafe rule or non-ground fact " +
-                		   "encountered: " + e.getMessage());
-            } catch(IOException e) {
-                System.err.println("Error opening file: " + e.getMessage());
+                queue.put(END);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
+    
+    /**
+     * Print the progress of the given loader.
+     * 
+     * @param loader     the loader
+     * @param startTime  the time at which loading started, in milliseconds
+     */
+    private static void report(JDOBulkLoader loader, long startTime) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println("Stored " + loader.getNumStored() + " clauses in "
+                + elapsed / 1000 + " s (" + loader.getNumStored() * 1000
+                / elapsed + " per second), skipped "
+                + loader.getNumDuplicates() + " duplicates");
+    }
 }
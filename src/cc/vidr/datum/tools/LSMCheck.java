@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnificationException;
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.FactListener;
+import cc.vidr.datum.db.lsm.LSMFactDatabase;
+import cc.vidr.datum.term.Atom;
+import cc.vidr.datum.term.IntegerTerm;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * Checks an LSMFactDatabase against a naive model, a set of facts.
+ * 
+ * Random facts are asserted and retracted, with a small memtable so that
+ * many segments are flushed and compacted, and random goals are searched
+ * for along the way. The database is then closed and reopened, and finally
+ * a crash is simulated by leaving the database open and appending a torn
+ * record to its log, after which a second database opened in the same
+ * directory must hold every fact written before the crash. The check runs
+ * in a fresh temporary directory, which is deleted afterwards.
+ * 
+ * Usage: LSMCheck [OPERATIONS [SEED]]
+ * 
+ * @author  David Roberts
+ */
+public class LSMCheck {
+    /** The default number of random asserts and retracts */
+    private static final int DEFAULT_NUM_OPERATIONS = 20000;
+    /** The number of writes held by a memtable during the random phase */
+    private static final int MEMTABLE_SIZE = 50;
+    /** The number of goals searched for after each phase */
+    private static final int NUM_GOALS = 2000;
+    /** A record header promising more bytes than follow it */
+    private static final byte[] TORN_RECORD = {0, 0, 0, 20, 1, 2, 3, 4, 1};
+    
+    /** Random number generator */
+    private static Random random;
+    /** The number of mismatches found */
+    private static int failures = 0;
+    
+    public static void main(String[] args)
+    throws IOException, UnsafeException {
+        int numOperations = args.length > 0 ? Integer.parseInt(args[0])
+                                            : DEFAULT_NUM_OPERATIONS;
+        random = args.length > 1 ? new Random(Long.parseLong(args[1]))
+                                 : new Random();
+        File directory = File.createTempFile("lsmcheck", "");
+        if(!directory.delete() || !directory.mkdir())
+            throw new IOException("Could not create " + directory);
+        try {
+            check(directory, numOperations);
+        } finally {
+            for(File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        if(failures > 0) {
+            System.out.println("FAILED with " + failures + " mismatches");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+    
+    /**
+     * Run the check in the given empty directory.
+     * 
+     * @param directory      the directory
+     * @param numOperations  the number of random asserts and retracts
+     */
+    private static void check(File directory, int numOperations)
+    throws IOException, UnsafeException {
+        Set<Literal> model = new HashSet<Literal>();
+        LSMFactDatabase db = new LSMFactDatabase(directory, MEMTABLE_SIZE);
+        final int[] events = new int[2];
+        db.addFactListener(new FactListener() {
+            public void factAsserted(Literal fact) {
+                events[0]++;
+            }
+            
+            public void factRetracted(Literal fact) {
+                events[1]++;
+            }
+        });
+        int numAsserted = 0, numRetracted = 0, maxSegments = 0;
+        for(int n = 0; n < numOperations; n++) {
+            Literal fact = randomFact();
+            if(random.nextInt(3) > 0) {
+                if(model.add(fact))
+                    numAsserted++;
+                db.assertFact(fact);
+            } else {
+                boolean contained = model.remove(fact);
+                if(contained)
+                    numRetracted++;
+                if(db.retractFact(fact) != contained)
+                    fail("retractFact(" + fact + ") != " + contained);
+            }
+            if(n % 500 == 0) {
+                search(db, model, 50);
+                maxSegments = Math.max(maxSegments, db.getNumSegments());
+            }
+        }
+        search(db, model, NUM_GOALS);
+        if(events[0] != numAsserted || events[1] != numRetracted)
+            fail(events[0] + " assert and " + events[1] + " retract events"
+                 + ", expected " + numAsserted + " and " + numRetracted);
+        System.out.println(numOperations + " writes: " + model.size()
+                           + " facts, " + db.getNumSegments()
+                           + " segments (at most " + maxSegments + ")");
+        db.close();
+        
+        // with a larger memtable, nothing is flushed before the crash
+        db = new LSMFactDatabase(directory, 1000);
+        search(db, model, NUM_GOALS);
+        System.out.println("Reopened: " + db.getNumSegments()
+                           + " segments");
+        for(int n = 0; n < 30; n++) {
+            Literal fact = randomFact();
+            model.add(fact);
+            db.assertFact(fact);
+        }
+        db.sync();
+        File log = null;
+        for(File file : directory.listFiles())
+            if(file.getName().endsWith(".log")
+               && (log == null || number(file) > number(log)))
+                log = file;
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(TORN_RECORD);
+        out.close();
+        LSMFactDatabase recovered = new LSMFactDatabase(directory, 1000);
+        search(recovered, model, NUM_GOALS);
+        recovered.assertFact(randomFact());
+        recovered.close();
+        System.out.println("Recovered from a torn log: "
+                           + recovered.getNumSegments() + " segments");
+    }
+    
+    /**
+     * Search the database for random goals, comparing the facts found with
+     * those of the model.
+     * 
+     * @param db        the database
+     * @param model     the facts the database should contain
+     * @param numGoals  the number of goals
+     */
+    private static void search(LSMFactDatabase db, Set<Literal> model,
+                               int numGoals) {
+        for(int n = 0; n < numGoals; n++) {
+            Literal goal = randomGoal();
+            Set<String> expected = new TreeSet<String>();
+            for(Literal fact : model) {
+                try {
+                    fact.unify(goal);
+                    expected.add(fact.toString());
+                } catch(UnificationException e) {
+                    // fact does not match goal
+                }
+            }
+            Set<String> found = new TreeSet<String>();
+            Literal[] facts = db.search(goal);
+            for(Literal fact : facts)
+                found.add(fact.toString());
+            if(!found.equals(expected) || facts.length != found.size())
+                fail(goal + " found " + found + ", expected " + expected);
+        }
+    }
+    
+    /**
+     * Record and report a mismatch.
+     * 
+     * @param message  a description of the mismatch
+     */
+    private static void fail(String message) {
+        if(failures++ < 10)
+            System.out.println("Mismatch: " + message);
+    }
+    
+    /**
+     * Return the number of the given log file.
+     * 
+     * @param file  the file
+     * @return      the number
+     */
+    private static int number(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.indexOf('.')));
+    }
+    
+    /**
+     * Return a random fact, with up to three arguments drawn from a small
+     * set of constants so that facts are often written more than once.
+     * 
+     * @return  the fact
+     */
+    private static Literal randomFact() {
+        int arity = 1 + random.nextInt(3);
+        Term[] arguments = new Term[arity];
+        for(int i = 0; i < arity; i++)
+            arguments[i] = random.nextInt(4) == 0
+                         ? new IntegerTerm(random.nextInt(30))
+                         : new Atom("c" + random.nextInt(30));
+        return new Literal("q" + arity + "/" + arity, arguments);
+    }
+    
+    /**
+     * Return a random goal, made from a random fact by replacing some of
+     * its arguments with variables.
+     * 
+     * @return  the goal
+     */
+    private static Literal randomGoal() {
+        Literal fact = randomFact();
+        Term[] arguments = new Term[fact.getArity()];
+        for(int i = 0; i < arguments.length; i++)
+            arguments[i] = random.nextBoolean() ? new Variable()
+                                                : fact.getArgument(i);
+        return new Literal(fact.getPredicateSymbol(), arguments);
+    }
+}
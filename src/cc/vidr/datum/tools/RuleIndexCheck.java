@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import cc.vidr.datum.Clause;
+import cc.vidr.datum.Literal;
+import cc.vidr.datum.UnificationException;
+import cc.vidr.datum.VariantKey;
+import cc.vidr.datum.db.RuleIndex;
+import cc.vidr.datum.term.Atom;
+import cc.vidr.datum.term.Term;
+import cc.vidr.datum.term.Variable;
+
+/**
+ * Checks a RuleIndex against a naive scan of a list of rules.
+ * 
+ * Random rules are added and removed, and random goals are looked up, with
+ * heads drawn from a few constants and two variables so that rules are
+ * often variants of each other and often share or repeat variables. For
+ * each goal, the rules whose heads unify with it must be the same whether
+ * they are taken from the index or from the whole list.
+ * 
+ * Usage: RuleIndexCheck [OPERATIONS [SEED]]
+ * 
+ * @author  David Roberts
+ */
+public class RuleIndexCheck {
+    /** The default number of random adds, removes and lookups */
+    private static final int DEFAULT_NUM_OPERATIONS = 30000;
+    /** The number of distinct constants in rule heads and goals */
+    private static final int NUM_CONSTANTS = 5;
+    
+    /** Random number generator */
+    private static Random random;
+    /** The number of mismatches found */
+    private static int failures = 0;
+    
+    public static void main(String[] args) {
+        int numOperations = args.length > 0 ? Integer.parseInt(args[0])
+                                            : DEFAULT_NUM_OPERATIONS;
+        random = args.length > 1 ? new Random(Long.parseLong(args[1]))
+                                 : new Random();
+        RuleIndex index = new RuleIndex();
+        List<Clause> rules = new ArrayList<Clause>();
+        int numLookups = 0;
+        for(int n = 0; n < numOperations; n++) {
+            int arity = random.nextInt(4);
+            if(random.nextInt(4) == 0) {
+                Clause rule = randomRule(arity);
+                boolean contained = contains(rules, rule);
+                if(index.add(rule) == contained)
+                    fail("add(" + rule + ") == " + contained);
+                if(!contained)
+                    rules.add(rule);
+            } else if(random.nextInt(8) == 0 && !rules.isEmpty()) {
+                // remove a renamed variant of the rule that was added
+                Clause rule = rules.remove(random.nextInt(rules.size()));
+                if(!index.remove(rule.rename()))
+                    fail("remove(" + rule + ") == false");
+            } else {
+                Literal goal = randomGoal(arity);
+                Set<VariantKey> found = unifying(index.search(goal), goal);
+                if(!found.equals(unifying(rules, goal)))
+                    fail("search(" + goal + ")");
+                numLookups++;
+            }
+        }
+        if(index.size() != rules.size())
+            fail("size() == " + index.size() + ", expected " + rules.size());
+        System.out.println(numOperations + " operations, " + numLookups
+                           + " lookups, " + rules.size() + " rules");
+        if(failures > 0) {
+            System.out.println("FAILED with " + failures + " mismatches");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+    
+    /**
+     * Returns true iff the list contains a variant of the given rule.
+     * 
+     * @param rules  the list of rules
+     * @param rule   the rule
+     * @return       true iff the list contains a variant of the rule
+     */
+    private static boolean contains(List<Clause> rules, Clause rule) {
+        VariantKey key = rule.getVariantKey();
+        for(Clause other : rules)
+            if(other.getVariantKey().equals(key))
+                return true;
+        return false;
+    }
+    
+    /**
+     * Return the keys of the given rules whose heads unify with the goal.
+     * 
+     * @param rules  the rules
+     * @param goal   the goal
+     * @return       the set of variant keys
+     */
+    private static Set<VariantKey> unifying(List<Clause> rules,
+                                            Literal goal) {
+        Set<VariantKey> keys = new HashSet<VariantKey>();
+        for(Clause rule : rules) {
+            try {
+                rule.rename().getHead().unify(goal);
+                keys.add(rule.getVariantKey());
+            } catch(UnificationException e) {
+                // rule doesn't match goal
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * Record and report a mismatch.
+     * 
+     * @param message  a description of the mismatch
+     */
+    private static void fail(String message) {
+        if(failures++ < 10)
+            System.out.println("Mismatch: " + message);
+    }
+    
+    /**
+     * Return a random rule with a head of the given arity, whose arguments
+     * are constants or either of the two variables of its body.
+     * 
+     * @param arity  the arity of the head
+     * @return       the rule
+     */
+    private static Clause randomRule(int arity) {
+        Variable[] variables = {new Variable(), new Variable()};
+        Term[] arguments = new Term[arity];
+        for(int i = 0; i < arity; i++)
+            arguments[i] = random.nextBoolean()
+                         ? variables[random.nextInt(variables.length)]
+                         : randomConstant();
+        return new Clause(new Literal("h" + arity + "/" + arity, arguments),
+                          new Literal("b/2", variables));
+    }
+    
+    /**
+     * Return a random goal of the given arity. Each argument is a constant
+     * or a distinct variable.
+     * 
+     * @param arity  the arity of the goal
+     * @return       the goal
+     */
+    private static Literal randomGoal(int arity) {
+        Term[] arguments = new Term[arity];
+        for(int i = 0; i < arity; i++)
+            arguments[i] = random.nextBoolean() ? new Variable()
+                                                : randomConstant();
+        return new Literal("h" + arity + "/" + arity, arguments);
+    }
+    
+    /**
+     * Return one of the constants used in heads and goals.
+     * 
+     * @return  the constant
+     */
+    private static Term randomConstant() {
+        return new Atom("k" + random.nextInt(NUM_CONSTANTS));
+    }
+}
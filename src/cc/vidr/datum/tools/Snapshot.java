@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2010  David Roberts <d@vidr.cc>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cc.vidr.datum.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import cc.vidr.datum.UnsafeException;
+import cc.vidr.datum.db.jdo.JDOFactDatabase;
+import cc.vidr.datum.db.snapshot.SnapshotWriter;
+
+/**
+ * Fact snapshot compactor.
+ * 
+ * Usage: <code>Snapshot FILE</code>
+ * 
+ * Writes every fact in the JDO datastore to an immutable snapshot file,
+ * which the console can then serve with <code>-snapshot FILE</code>
+ * instead of querying the datastore. The datastore is only read from, so
+ * facts should be loaded with Import beforehand, and the snapshot must be
+ * written again once they have changed.
+ * 
+ * @author  David Roberts
+ * @see     cc.vidr.datum.db.snapshot.SnapshotFactDatabase
+ */
+public class Snapshot {
+    public static void main(String[] args)
+    throws IOException, UnsafeException {
+        if(args.length != 1) {
+            System.err.println("Usage: Snapshot FILE");
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        System.out.print("Reading facts... ");
+        System.out.flush();
+        SnapshotWriter writer = new SnapshotWriter();
+        writer.addAll(new JDOFactDatabase().getFacts());
+        System.out.println(writer.getNumFacts() + " facts");
+        System.out.print("Writing '" + args[0] + "'... ");
+        System.out.flush();
+        File file = new File(args[0]);
+        writer.write(file);
+        System.out.println(file.length() + " bytes in "
+                           + (System.currentTimeMillis() - startTime)
+                           + " ms");
+    }
+}
@@ -58,10 +58,29 @@ public final class FreebaseUtils {
      *              server
      * @throws      ParseException if the server returns malformed JSON
      */
-    @SuppressWarnings("unchecked")
     public static List<JSONObject> getResultList(String path)
+    throws IOException, ParseException {
+        return getResultList(path, 0);
+    }
+    
+    /**
+     * Return the list of JSON objects returned by the API for the given query,
+     * giving up if the server takes longer than the given timeout to respond.
+     * 
+     * @param path     the API service path
+     * @param timeout  the connect and read timeout in milliseconds, or zero
+     *                 for no timeout
+     * @return         the list of JSON objects
+     * @throws         IOException if there was an error communicating with the
+     *                 server, or it timed out
+     * @throws         ParseException if the server returns malformed JSON
+     */
+    @SuppressWarnings("unchecked")
+    public static List<JSONObject> getResultList(String path, int timeout)
     throws IOException, ParseException {
         URLConnection connection = new URL(endpoint + path).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
         connection.connect();
         InputStream stream = connection.getInputStream();
         Reader reader = new InputStreamReader(stream);